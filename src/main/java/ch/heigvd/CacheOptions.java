@@ -0,0 +1,28 @@
+package ch.heigvd;
+
+import picocli.CommandLine;
+import java.io.File;
+
+/**
+ * Options of the on-disk result cache (disabled unless --cache-dir is given).
+ */
+public class CacheOptions {
+    @CommandLine.Option(
+            names = {"--cache-dir"},
+            description = "Enable the result cache in this directory: re-running a command on unchanged inputs with the same options copies the cached output instead of recomputing it."
+    )
+    public File cacheDir;
+
+    @CommandLine.Option(
+            names = {"--cache-max-mb"},
+            description = "Maximum size of the cache directory; least recently used results are evicted beyond it.",
+            defaultValue = "1024"
+    )
+    public long cacheMaxMb;
+
+    @CommandLine.Option(
+            names = {"--cache-link"},
+            description = "On a cache hit, hard-link the output to the cached file instead of copying it (same file system only; the output is then read-only)."
+    )
+    public boolean cacheLink;
+}
@@ -6,14 +6,32 @@ import java.io.File;
 public class IOOptions {
     @CommandLine.Option(
             names={"-i","--input"},
-            required=true
+            description="Input image, or - for standard input. Required, except for batch and watch."
     )
     public File inputFile;
 
     @CommandLine.Option(
             names={"-o","--output"},
-            required=true
+            description="Output file, or - for standard output (needs --format). Required, except for batch and watch."
     )
     public File outputFile;
-}
 
+    @CommandLine.Option(
+            names={"--format"},
+            description="Output format (png, jpg, ...). Default: the output file extension."
+    )
+    public String format;
+
+    @CommandLine.Option(
+            names={"--colors"},
+            description="Write PNG/GIF outputs as indexed images with at most N colors (2-256). Default: 0, full color."
+    )
+    public int colors;
+
+    @CommandLine.Option(
+            names={"--dither"},
+            description="Dithering used by --colors: none, ordered or floyd-steinberg. Default: ${DEFAULT-VALUE}.",
+            defaultValue="none"
+    )
+    public String dither;
+}
@@ -1,9 +1,20 @@
 package ch.heigvd;
 
 import ch.heigvd.commands.*;
+import ch.heigvd.util.Frames;
+import ch.heigvd.util.GcMonitor;
+import ch.heigvd.util.Images;
+import ch.heigvd.util.MemoryBudget;
+import ch.heigvd.util.Metrics;
+import ch.heigvd.util.PixelPool;
+import ch.heigvd.util.ResultCache;
 
 import picocli.CommandLine;
 
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
 @CommandLine.Command(
         description = "A small CLI with subcommands to process images.",
         version = "1.3", // Fully operational CLI while respecting the constraints
@@ -13,7 +24,18 @@ import picocli.CommandLine;
                 Invert.class,
                 Rotate.class,
                 Mirror.class,
-                TileA4.class
+                TileA4.class,
+                Resize.class,
+                Blur.class,
+                Sharpen.class,
+                Edge.class,
+                Stats.class,
+                AutoLevels.class,
+                ColorAdjust.class,
+                Pyramid.class,
+                Crop.class,
+                Batch.class,
+                Watch.class
         },
         scope = CommandLine.ScopeType.INHERIT,
         mixinStandardHelpOptions = true
@@ -24,9 +46,222 @@ public class ImageToolBox {
     @CommandLine.Mixin
     public IOOptions io;
 
+    @CommandLine.Mixin
+    public CacheOptions cache;
+
+    @CommandLine.Mixin
+    public MemoryOptions memory;
+
+    @CommandLine.Mixin
+    public MetricsOptions metrics;
+
+    // Déroulement du job de cette instance, pour les métriques
+    private boolean cacheHit;
+    private boolean framedRun;
+
     public static void main(String[] args)
     {
-        int exitCode = new CommandLine(new ImageToolBox()).execute(args);
+        ImageToolBox app = new ImageToolBox();
+        GcMonitor.Snapshot gcBefore = GcMonitor.snapshot();
+        int exitCode = app.commandLine().execute(args);
+        try {
+            Metrics.export();
+        } catch (Exception e) {
+            System.err.println("[metrics] " + e.getMessage());
+        }
+        if (app.memory != null && app.memory.gcReport) {
+            GcMonitor.Snapshot gc = GcMonitor.snapshot().since(gcBefore);
+            PixelPool.Stats pool = PixelPool.stats();
+            System.err.println("[gc] " + gc.collections() + " collections, " + gc.millis() + " ms; pixel pool "
+                    + pool.hits() + " reused / " + pool.misses() + " allocated, " + (pool.retainedBytes() >> 20) + " MB kept");
+        }
         System.exit(exitCode);
     }
+
+    /** Parses and runs one command line in this JVM (each input of a batch); returns its exit code. */
+    public static int run(String... args) {
+        return new ImageToolBox().commandLine().execute(args);
+    }
+
+    private CommandLine commandLine() {
+        CommandLine cmd = new CommandLine(this);
+        cmd.setExecutionStrategy(this::executeCached);
+        // batch, watch : la commande à lancer et ses options sont des paramètres, même si elles ressemblent aux nôtres
+        cmd.getSubcommands().get("batch").setStopAtPositional(true);
+        cmd.getSubcommands().get("watch").setStopAtPositional(true);
+        return cmd;
+    }
+
+    /**
+     * Runs the subcommand normally, unless --cache-dir is set and the subcommand is {@link Cacheable}: the output is
+     * then served from the result cache when possible, and stored there after a successful run.
+     * Pipes (-i - or -o -) always run the command.
+     */
+    private int executeCached(CommandLine.ParseResult parseResult) {
+        Integer help = CommandLine.executeHelpRequest(parseResult);
+        if (help != null) {
+            return help;
+        }
+        checkRequired(parseResult);
+        if (metrics.metricsOut != null && !metrics.metricsOut.isEmpty()) {
+            Metrics.enable(metrics.metricsOut);
+        }
+        Object command = parseResult.subcommand().commandSpec().userObject();
+        if (!Metrics.enabled() || command instanceof Batch || command instanceof Watch) {
+            // batch et watch : chacune de leurs images est mesurée comme un job
+            return executeJob(parseResult);
+        }
+        long start = Metrics.start();
+        long ioBefore = Metrics.ioNanos();
+        int exitCode = executeJob(parseResult);
+        if (cacheHit) {
+            Metrics.cached(io.inputFile, io.outputFile);
+        } else {
+            Metrics.job(start, ioBefore, framedRun, exitCode == 0, io.inputFile, io.outputFile);
+        }
+        return exitCode;
+    }
+
+    private int executeJob(CommandLine.ParseResult parseResult) {
+        CommandLine.IExecutionStrategy run = new CommandLine.RunLast();
+        boolean pipe = Images.isStdio(io.inputFile) || Images.isStdio(io.outputFile);
+        if (Images.isStdio(io.outputFile)) {
+            // L'image part sur stdout : les messages passent sur stderr
+            System.setOut(System.err);
+        }
+        CommandLine.ParseResult sub = parseResult.subcommand();
+        if (cache.cacheDir == null || pipe || sub == null
+                || !(sub.commandSpec().userObject() instanceof Cacheable c) || !c.cacheable()) {
+            return runAdmitted(parseResult, run);
+        }
+
+        ResultCache rc = new ResultCache(cache.cacheDir, cache.cacheMaxMb * 1024 * 1024, cache.cacheLink);
+        Path output = io.outputFile.toPath();
+        String key;
+        try {
+            key = ResultCache.key(parseResult.commandSpec().version()[0], sub.commandSpec(), io);
+            if (rc.fetch(key, output)) {
+                System.out.println("Cache hit (" + key.substring(0, 12) + "): " + io.outputFile);
+                cacheHit = true;
+                return 0;
+            }
+            ResultCache.detach(output);
+        } catch (IllegalArgumentException e) {
+            // Entrée manquante ou invalide : la commande elle-même rapportera l'erreur
+            return runAdmitted(parseResult, run);
+        } catch (Exception e) {
+            // Le cache ne doit jamais empêcher la commande de tourner
+            System.err.println("[cache] " + e.getMessage());
+            return runAdmitted(parseResult, run);
+        }
+
+        int exitCode = runAdmitted(parseResult, run);
+        if (exitCode == 0) {
+            try {
+                rc.store(key, output);
+            } catch (Exception e) {
+                System.err.println("[cache] " + e.getMessage());
+            }
+        }
+        return exitCode;
+    }
+
+    /** -i and -o are required by every subcommand except batch and watch, which find their own inputs. */
+    private void checkRequired(CommandLine.ParseResult parseResult) {
+        CommandLine.ParseResult sub = parseResult.subcommand();
+        if (sub == null) {
+            throw new CommandLine.ParameterException(parseResult.commandSpec().commandLine(), "Missing required subcommand");
+        }
+        if (sub.commandSpec().userObject() instanceof Batch || sub.commandSpec().userObject() instanceof Watch) {
+            return;
+        }
+        List<String> missing = new ArrayList<>();
+        if (io.inputFile == null) missing.add("'--input=<inputFile>'");
+        if (io.outputFile == null) missing.add("'--output=<outputFile>'");
+        if (!missing.isEmpty()) {
+            throw new CommandLine.ParameterException(sub.commandSpec().commandLine(),
+                    "Missing required option" + (missing.size() > 1 ? "s: " : ": ") + String.join(", ", missing));
+        }
+    }
+
+    /**
+     * Runs the subcommand under the JVM-wide memory budget when it is {@link Budgeted}: its peak footprint is
+     * estimated from the image headers and reserved before anything is decoded, then released when it ends.
+     */
+    private int runAdmitted(CommandLine.ParseResult parseResult, CommandLine.IExecutionStrategy run) {
+        CommandLine.ParseResult sub = parseResult.subcommand();
+        Framed framed = framed(sub);
+        if (sub == null || !(sub.commandSpec().userObject() instanceof Budgeted job)) {
+            return execute(parseResult, run, framed);
+        }
+        String name = sub.commandSpec().name();
+        MemoryBudget.Policy policy;
+        try {
+            policy = MemoryBudget.Policy.parse(memory.overBudget);
+        } catch (IllegalArgumentException e) {
+            System.err.println("[memory] " + e.getMessage());
+            return 1;
+        }
+        MemoryBudget.Lease lease;
+        try {
+            MemoryBudget budget = MemoryBudget.shared(memory.maxMemoryMb);
+            // Plusieurs images : une empreinte par image en vol
+            long frames = (framed != null) ? Frames.window() : 1;
+            long need = frames * job.memoryEstimate();
+            if (!budget.fits(need) && job.reduceMemory()) {
+                System.err.println("[memory] " + name + " needs about " + (need >> 20) + " MB (budget "
+                        + budget.capacityMb() + " MB): switching to its low-memory mode.");
+                need = frames * job.memoryEstimate();
+            }
+            lease = budget.acquire(name, need, policy);
+        } catch (IllegalStateException e) {
+            System.err.println("[memory] " + e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("[memory] Interrupted while waiting for memory.");
+            return 1;
+        } catch (RuntimeException e) {
+            // Entrée illisible ou options invalides : la commande elle-même rapportera l'erreur
+            return execute(parseResult, run, framed);
+        }
+        try (lease) {
+            return execute(parseResult, run, framed);
+        }
+    }
+
+    /**
+     * The subcommand to run on every frame when it is {@link Framed}, the input has several frames (animated GIF,
+     * multi-page TIFF) and the output format can hold them; null otherwise (first frame only, as before).
+     */
+    private Framed framed(CommandLine.ParseResult sub) {
+        if (sub == null || !(sub.commandSpec().userObject() instanceof Framed f) || !f.framed()) {
+            return null;
+        }
+        try {
+            if (!Frames.sequenceFormat(Images.outputFormat(io.outputFile, io)) || Frames.count(io.inputFile) < 2) {
+                return null;
+            }
+        } catch (RuntimeException e) {
+            // Entrée illisible : la commande elle-même rapportera l'erreur
+            return null;
+        }
+        return f;
+    }
+
+    private int execute(CommandLine.ParseResult parseResult, CommandLine.IExecutionStrategy run, Framed framed) {
+        if (framed == null) {
+            return run.execute(parseResult);
+        }
+        String name = parseResult.subcommand().commandSpec().name();
+        framedRun = true;
+        try {
+            Frames.Result r = Frames.process(io.inputFile, io.outputFile, framed::transform, framed.pointwise(), io);
+            System.out.println(r.frames() + " frames processed (" + name + ", " + r.width() + "x" + r.height() + ").");
+            return 0;
+        } catch (Exception e) {
+            System.err.println("[" + name + "] " + e.getMessage());
+            return 1;
+        }
+    }
 }
@@ -0,0 +1,27 @@
+package ch.heigvd;
+
+import picocli.CommandLine;
+
+/**
+ * Options of the memory admission control (see {@link ch.heigvd.util.MemoryBudget}).
+ */
+public class MemoryOptions {
+    @CommandLine.Option(
+            names = {"--max-memory"},
+            description = "Heap budget in MB shared by all jobs; each job reserves its estimated peak (from the image headers) before decoding. Default: 90% of the maximum heap."
+    )
+    public long maxMemoryMb;
+
+    @CommandLine.Option(
+            names = {"--over-budget"},
+            description = "When a job's memory is not free: queue (wait for other jobs) or reject. A job larger than the whole budget first switches to a low-memory mode when the command has one, and is rejected otherwise.",
+            defaultValue = "queue"
+    )
+    public String overBudget;
+
+    @CommandLine.Option(
+            names = {"--gc-report"},
+            description = "Print the garbage collections (count and time) and the pixel-buffer pool usage of the run on stderr."
+    )
+    public boolean gcReport;
+}
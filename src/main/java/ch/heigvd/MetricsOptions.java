@@ -0,0 +1,17 @@
+package ch.heigvd;
+
+import picocli.CommandLine;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Options of the run metrics export (see {@link ch.heigvd.util.Metrics}).
+ */
+public class MetricsOptions {
+    @CommandLine.Option(
+            names = {"--metrics-out"},
+            description = "Write the run metrics (stage latencies p50/p95/p99/max, images, bytes and pixels processed, heap peak, GC time) to this file: Prometheus text format if it ends with .prom, JSON otherwise. Repeat the option for both. Rewritten periodically by batch and watch."
+    )
+    public List<File> metricsOut;
+}
@@ -16,15 +16,12 @@ public class TestImages {
             io.outputFile = new File("image/output.jpg");
         }
 
-        // Simule le mixin : on assigne manuellement à Images.io
-        Images.io = io;
-
         // Lecture de l’image
-        BufferedImage img = Images.readImage();
+        BufferedImage img = Images.readImage(io.inputFile);
         System.out.println("Image lue : " + img.getWidth() + "x" + img.getHeight());
 
         // Écriture (on réécrit la même image ici)
-        Images.writeImage(img);
+        Images.writeImage(img, io.outputFile, io);
         System.out.println("Image écrite dans " + io.outputFile.getPath());
     }
 }
@@ -0,0 +1,112 @@
+package ch.heigvd.commands;
+
+import ch.heigvd.ImageToolBox;
+import ch.heigvd.util.Histogram;
+import ch.heigvd.util.Images;
+import ch.heigvd.util.PixelPool;
+import ch.heigvd.util.PointOps;
+import picocli.CommandLine;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.Callable;
+
+@CommandLine.Command(
+        name = "autolevels",
+        description = "Stretch each channel to the full 0-255 range, from the image histogram."
+)
+public class AutoLevels implements Callable<Integer>, Cacheable, Budgeted, Framed {
+
+    @CommandLine.Option(
+            names = {"--clip"},
+            description = "Percentage of the darkest and of the brightest pixels ignored when finding the range (robust to outliers).",
+            defaultValue = "0.5"
+    )
+    public double clipPercent;
+
+    @CommandLine.Option(
+            names = {"--linked"},
+            description = "Use the same range for the three channels (keeps the color balance, only fixes contrast)."
+    )
+    public boolean linked;
+
+    @CommandLine.ParentCommand
+    protected ImageToolBox parent;
+
+    /** Decoded input + output buffer. */
+    @Override
+    public long memoryEstimate() {
+        return 2 * ARGB * Budgeted.pixels(parent.io.inputFile);
+    }
+
+    @Override
+    public Integer call() {
+        try {
+            checkClip();
+
+            int[][] range = new int[2][];
+            BufferedImage imageOut = stretch(Images.readImage(parent.io.inputFile), range);
+            int[] lo = range[0];
+            int[] hi = range[1];
+
+            Images.writeImage(imageOut, parent.io.outputFile, parent.io);
+            PixelPool.release(imageOut);
+            System.out.println("Levels adjusted (R " + lo[0] + "-" + hi[0] + ", G " + lo[1] + "-" + hi[1]
+                    + ", B " + lo[2] + "-" + hi[2] + " -> 0-255).");
+            return 0;
+
+        } catch (Exception e) {
+            System.err.println("[autolevels] " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /** Each frame is stretched from its own histogram. */
+    @Override
+    public BufferedImage transform(BufferedImage imageIn) {
+        checkClip();
+        return stretch(imageIn, new int[2][]);
+    }
+
+    private void checkClip() {
+        if (clipPercent < 0 || clipPercent >= 50) {
+            throw new IllegalArgumentException("Invalid --clip: " + clipPercent + " (expected 0 - 50).");
+        }
+    }
+
+    // range reçoit les bornes trouvées : {lo, hi} par canal
+    private BufferedImage stretch(BufferedImage imageIn, int[][] range) {
+        // --- 1) Histogrammes (une passe) ---
+        Histogram hist = Histogram.of(imageIn);
+
+        double clip = clipPercent / 100.0;
+        int[] lo = new int[3];
+        int[] hi = new int[3];
+        for (int c = 0; c < 3; c++) {
+            lo[c] = hist.percentile(c, clip);
+            hi[c] = hist.percentile(c, 1.0 - clip);
+        }
+        if (linked) {
+            int l = Math.min(lo[0], Math.min(lo[1], lo[2]));
+            int h = Math.max(hi[0], Math.max(hi[1], hi[2]));
+            lo = new int[]{l, l, l};
+            hi = new int[]{h, h, h};
+        }
+        range[0] = lo;
+        range[1] = hi;
+
+        // --- 2) Une table par canal ---
+        int[][] lut = new int[3][256];
+        for (int c = 0; c < 3; c++) {
+            for (int v = 0; v < 256; v++) {
+                if (hi[c] <= lo[c]) {
+                    lut[c][v] = v; // canal uniforme : inchangé
+                } else {
+                    lut[c][v] = (int) Math.round((v - lo[c]) * 255.0 / (hi[c] - lo[c]));
+                }
+            }
+        }
+
+        // --- 3) Application (deuxième passe) ---
+        return PointOps.apply(imageIn, null, PointOps.Lut.perChannel(lut[0], lut[1], lut[2]));
+    }
+}
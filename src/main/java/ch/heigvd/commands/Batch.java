@@ -0,0 +1,230 @@
+package ch.heigvd.commands;
+
+import ch.heigvd.ImageToolBox;
+import ch.heigvd.util.Metrics;
+import ch.heigvd.util.WorkQueue;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+@CommandLine.Command(
+        name = "batch",
+        description = "Run a command on every input of a manifest. Start the same batch in several processes "
+                + "(or on several machines sharing --queue): they split the work, take over the chunks of a crashed "
+                + "worker and skip what is already done when restarted."
+)
+public class Batch implements Callable<Integer> {
+
+    @CommandLine.Option(
+            names = {"--manifest"},
+            required = true,
+            description = "Text file with one input per line (blank lines and # comments ignored; relative paths are relative to the manifest)."
+    )
+    public Path manifest;
+
+    @CommandLine.Option(
+            names = {"--queue"},
+            required = true,
+            description = "Directory shared by the workers of this batch (leases, journal, completed chunks). Local disk or NFS."
+    )
+    public Path queue;
+
+    @CommandLine.Option(
+            names = {"--out-dir"},
+            required = true,
+            description = "Output directory; each output keeps the path of its input relative to the manifest."
+    )
+    public Path outDir;
+
+    @CommandLine.Option(
+            names = {"--chunk"},
+            description = "Inputs claimed at once by a worker.",
+            defaultValue = "16"
+    )
+    public int chunk;
+
+    @CommandLine.Option(
+            names = {"--lease-seconds"},
+            description = "A chunk whose worker stopped renewing its lease for this long is taken over by another worker.",
+            defaultValue = "60"
+    )
+    public int leaseSeconds;
+
+    @CommandLine.Option(
+            names = {"--no-wait"},
+            description = "Exit when no chunk is left to claim, instead of waiting for the chunks held by other workers."
+    )
+    public boolean noWait;
+
+    @CommandLine.Parameters(
+            paramLabel = "COMMAND",
+            arity = "1..*",
+            description = "The command run on each input, with its options (e.g. resize --width 800 --height 600)."
+    )
+    public List<String> command;
+
+    @CommandLine.ParentCommand
+    protected ImageToolBox parent;
+
+    @CommandLine.Spec
+    CommandLine.Model.CommandSpec spec;
+
+    @Override
+    public Integer call() {
+        try {
+            if (leaseSeconds < 1) {
+                throw new IllegalArgumentException("--lease-seconds must be at least 1.");
+            }
+            Path base = manifest.toAbsolutePath().getParent();
+            List<String> inputs = readManifest(manifest);
+            if (inputs.isEmpty()) {
+                throw new IllegalArgumentException("Empty manifest: " + manifest);
+            }
+            List<String> globals = globalOptions(spec);
+            String ext = (parent.io.format != null) ? parent.io.format.trim().toLowerCase() : null;
+
+            int ok = 0, failed = 0, skipped = 0;
+            long ttl = leaseSeconds * 1000L;
+            try (WorkQueue q = new WorkQueue(queue, inputs, chunk, String.join(" ", globals) + " " + String.join(" ", command), ttl)) {
+                System.out.println("Worker " + q.owner() + ": " + inputs.size() + " inputs in " + q.chunks() + " chunks.");
+                // Chaque worker commence ailleurs dans la file : moins de collisions sur les mêmes baux
+                int start = Math.floorMod(q.owner().hashCode(), q.chunks());
+
+                while (q.doneCount() < q.chunks()) {
+                    boolean claimed = false;
+                    for (int k = 0; k < q.chunks(); k++) {
+                        int c = (start + k) % q.chunks();
+                        if (q.isDone(c)) continue;
+                        try (WorkQueue.Lease lease = q.claim(c)) {
+                            if (lease == null) continue;
+                            claimed = true;
+                            Set<Integer> finished = lease.finished();
+                            int chunkOk = 0, chunkFailed = 0;
+                            List<String> entries = q.chunk(c);
+                            for (int j = 0; j < entries.size() && !lease.lost(); j++) {
+                                int index = q.firstIndex(c) + j;
+                                if (finished.contains(index)) {
+                                    skipped++;
+                                    continue;
+                                }
+                                int code = runOne(globals, base, entries.get(j), ext);
+                                if (lease.lost()) break; // repris par un autre worker : il refera cette entrée
+                                if (code == 0) {
+                                    chunkOk++;
+                                    lease.record(index, "ok");
+                                } else {
+                                    chunkFailed++;
+                                    lease.record(index, "failed " + code);
+                                }
+                            }
+                            ok += chunkOk;
+                            failed += chunkFailed;
+                            if (!lease.lost()) {
+                                lease.complete("ok=" + chunkOk + ",failed=" + chunkFailed);
+                            }
+                            Metrics.export();
+                        }
+                    }
+                    if (!claimed) {
+                        if (noWait) break;
+                        // Les morceaux restants sont tenus par d'autres : on attend qu'ils finissent ou expirent
+                        Thread.sleep(Math.min(ttl / 3, 5000));
+                    }
+                }
+                System.out.println("Batch worker done: " + ok + " ok, " + failed + " failed, " + skipped
+                        + " already done; " + q.doneCount() + "/" + q.chunks() + " chunks complete.");
+            }
+            return (failed > 0) ? 1 : 0;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("[batch] Interrupted.");
+            return 1;
+        } catch (Exception e) {
+            System.err.println("[batch] " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Runs the command on one input. The output is written to a temp file next to its final place and renamed over
+     * it only on success, so that a crash never leaves a truncated output behind.
+     */
+    private int runOne(List<String> globals, Path base, String entry, String ext) throws IOException {
+        Path input = base.resolve(entry).normalize();
+        Path relative = Path.of(entry).isAbsolute() ? input.getFileName() : Path.of(entry).normalize();
+        String name = relative.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String stem = (dot > 0) ? name.substring(0, dot) : name;
+        String suffix = (ext != null) ? ext : (dot > 0 ? name.substring(dot + 1) : "png");
+
+        Path output = outDir.resolve(relative).resolveSibling(stem + "." + suffix);
+        Files.createDirectories(output.getParent());
+        Path tmp = output.resolveSibling("." + stem + "." + ProcessHandle.current().pid() + ".tmp." + suffix);
+
+        List<String> args = new ArrayList<>(globals);
+        args.addAll(List.of("-i", input.toString(), "-o", tmp.toString()));
+        args.addAll(command);
+        int code;
+        try {
+            code = ImageToolBox.run(args.toArray(new String[0]));
+        } catch (RuntimeException e) {
+            System.err.println("[batch] " + entry + ": " + e.getMessage());
+            code = 1;
+        }
+        if (code == 0 && Files.exists(tmp)) {
+            Files.move(tmp, output, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.deleteIfExists(tmp);
+            System.err.println("[batch] Failed: " + entry + " (exit code " + code + ").");
+            if (code == 0) code = 1;
+        }
+        return code;
+    }
+
+    /**
+     * Global options given to {@code spec}'s command (--format, --colors, --cache-dir...), before or after its name,
+     * to pass on to each run; -i/-o and help are left out.
+     */
+    static List<String> globalOptions(CommandLine.Model.CommandSpec spec) {
+        List<String> args = new ArrayList<>();
+        List<CommandLine.Model.OptionSpec> matched = new ArrayList<>(spec.parent().commandLine().getParseResult().matchedOptions());
+        for (CommandLine.Model.OptionSpec o : spec.commandLine().getParseResult().matchedOptions()) {
+            if (o.inherited()) matched.add(o);
+        }
+        for (CommandLine.Model.OptionSpec o : matched) {
+            String name = o.longestName();
+            // --metrics-out : un fichier par processus, écrit par celui-ci seulement
+            if (o.usageHelp() || o.versionHelp() || name.equals("--input") || name.equals("--output")
+                    || name.equals("--metrics-out")) {
+                continue;
+            }
+            if (o.arity().max() == 0) {
+                args.add(name);
+            } else {
+                for (String value : o.originalStringValues()) {
+                    args.add(name);
+                    args.add(value);
+                }
+            }
+        }
+        return args;
+    }
+
+    private static List<String> readManifest(Path manifest) throws IOException {
+        List<String> inputs = new ArrayList<>();
+        for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            String s = line.trim();
+            if (!s.isEmpty() && !s.startsWith("#")) inputs.add(s);
+        }
+        return inputs;
+    }
+}
@@ -0,0 +1,79 @@
+package ch.heigvd.commands;
+
+import ch.heigvd.ImageToolBox;
+import ch.heigvd.util.Convolution;
+import ch.heigvd.util.Images;
+import picocli.CommandLine;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.Callable;
+
+@CommandLine.Command(
+        name = "blur",
+        description = "Blur an image (Gaussian, or box blurs whose cost does not depend on the radius)."
+)
+public class Blur implements Callable<Integer>, Cacheable, Budgeted, Framed {
+
+    @CommandLine.Option(
+            names = {"-s", "--sigma"},
+            description = "Standard deviation of the blur in pixels.",
+            defaultValue = "2.0"
+    )
+    public double sigma;
+
+    @CommandLine.Option(
+            names = {"--method"},
+            description = "gaussian (exact kernel), box3 (three box blurs, same cost for any sigma), box (single box) "
+                    + "or auto (gaussian up to sigma 3, box3 beyond).",
+            defaultValue = "auto"
+    )
+    public String method;
+
+    @CommandLine.Option(
+            names = {"--radius"},
+            description = "Box radius in pixels for --method box (default: derived from --sigma)."
+    )
+    public int radius;
+
+    @CommandLine.Option(
+            names = {"--border"},
+            description = "How pixels outside the image are taken: clamp (repeat the edge) or reflect (mirror).",
+            defaultValue = "clamp"
+    )
+    public String border;
+
+    @CommandLine.ParentCommand
+    protected ImageToolBox parent;
+
+    /** Decoded input + ARGB copy + one intermediate pass + output. */
+    @Override
+    public long memoryEstimate() {
+        return 4 * ARGB * Budgeted.pixels(parent.io.inputFile);
+    }
+
+    @Override
+    public BufferedImage transform(BufferedImage imageIn) {
+        if (sigma < 0) {
+            throw new IllegalArgumentException("Invalid --sigma: " + sigma + " (expected >= 0).");
+        }
+        Convolution.Method m = Convolution.Method.parse(method);
+        Convolution.Border b = Convolution.Border.parse(border);
+        return Convolution.blur(imageIn, sigma, m, radius, b);
+    }
+
+    @Override
+    public Integer call() {
+        try {
+            BufferedImage imageIn = Images.readImage(parent.io.inputFile);
+            BufferedImage imageOut = transform(imageIn);
+
+            Images.writeImage(imageOut, parent.io.outputFile, parent.io);
+            System.out.println("Image successfully blurred (sigma " + sigma + ").");
+            return 0;
+
+        } catch (Exception e) {
+            System.err.println("[blur] " + e.getMessage());
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package ch.heigvd.commands;
+
+import ch.heigvd.util.Images;
+
+import java.io.File;
+
+/**
+ * Marks a subcommand whose peak heap can be estimated from the image headers, before anything is decoded,
+ * so that it runs under the global memory budget (see {@link ch.heigvd.util.MemoryBudget}).
+ */
+public interface Budgeted {
+
+    /** Bytes per decoded pixel (packed ARGB, the widest layout the commands work on). */
+    long ARGB = 4;
+
+    /** Approximate peak heap of this invocation, in bytes: input, output and intermediate buffers. */
+    long memoryEstimate();
+
+    /** Switches to a lower-memory mode (subsampled decode, streaming...) if there is one; true if it did. */
+    default boolean reduceMemory() {
+        return false;
+    }
+
+    static long pixels(File input) {
+        return Images.probe(input).pixels();
+    }
+}
@@ -0,0 +1,13 @@
+package ch.heigvd.commands;
+
+/**
+ * Marks a subcommand whose only effect is writing {@code -o} from its inputs and options,
+ * so that its result can be served from the result cache (see {@link ch.heigvd.util.ResultCache}).
+ */
+public interface Cacheable {
+
+    /** False when this particular invocation has other effects (extra files, ...) and must always run. */
+    default boolean cacheable() {
+        return true;
+    }
+}
@@ -0,0 +1,165 @@
+package ch.heigvd.commands;
+
+import ch.heigvd.ImageToolBox;
+import ch.heigvd.util.Images;
+import ch.heigvd.util.PixelPool;
+import ch.heigvd.util.PointOps;
+import picocli.CommandLine;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+@CommandLine.Command(
+        name = "color",
+        description = "Color adjustments (channel swap, saturation, sepia, levels, gamma, curve, posterize, threshold), applied in one pass."
+)
+public class ColorAdjust implements Callable<Integer>, Cacheable, Budgeted, Framed {
+
+    @CommandLine.Option(
+            names = {"--swap"},
+            description = "Reorder the color channels, e.g. bgr (swap red and blue)."
+    )
+    public String swap;
+
+    @CommandLine.Option(
+            names = {"--saturation"},
+            description = "Saturation factor (0 = gray, 1 = unchanged, 1.5 = more vivid).",
+            defaultValue = "1.0"
+    )
+    public double saturation;
+
+    @CommandLine.Option(
+            names = {"--sepia"},
+            description = "Sepia tone."
+    )
+    public boolean sepia;
+
+    @CommandLine.Option(
+            names = {"--levels"},
+            description = "Input range stretched to the output range: lo,hi or lo,hi,outLo,outHi (0-255)."
+    )
+    public String levels;
+
+    @CommandLine.Option(
+            names = {"--gamma"},
+            description = "Gamma correction (> 1 brightens the mid-tones).",
+            defaultValue = "1.0"
+    )
+    public double gamma;
+
+    @CommandLine.Option(
+            names = {"--curve"},
+            description = "Tone curve through in:out points, e.g. 0:0,64:40,192:220,255:255."
+    )
+    public String curve;
+
+    @CommandLine.Option(
+            names = {"--posterize"},
+            description = "Number of levels kept per channel (2-256)."
+    )
+    public int posterize;
+
+    @CommandLine.Option(
+            names = {"--threshold"},
+            description = "Black and white: channels below this value become 0, the others 255.",
+            defaultValue = "-1"
+    )
+    public int threshold;
+
+    @CommandLine.ParentCommand
+    protected ImageToolBox parent;
+
+    /** Decoded input + output buffer. */
+    @Override
+    public long memoryEstimate() {
+        return 2 * ARGB * Budgeted.pixels(parent.io.inputFile);
+    }
+
+    @Override
+    public Integer call() {
+        try {
+            List<String> applied = new ArrayList<>();
+            BufferedImage imageOut = adjust(Images.readImage(parent.io.inputFile), applied);
+
+            Images.writeImage(imageOut, parent.io.outputFile, parent.io);
+            PixelPool.release(imageOut);
+            System.out.println("Colors successfully adjusted (" + (applied.isEmpty() ? "no change" : String.join(", ", applied)) + ").");
+            return 0;
+
+        } catch (Exception e) {
+            System.err.println("[color] " + e.getMessage());
+            return 1;
+        }
+    }
+
+    @Override
+    public BufferedImage transform(BufferedImage imageIn) {
+        return adjust(imageIn, new ArrayList<>());
+    }
+
+    @Override
+    public boolean pointwise() {
+        return true;
+    }
+
+    // Une matrice et une table pour toutes les options ; applied reçoit leur description
+    private BufferedImage adjust(BufferedImage imageIn, List<String> applied) {
+        // --- Mélange des canaux (une seule matrice) ---
+        PointOps.ColorMatrix matrix = PointOps.ColorMatrix.identity();
+        if (swap != null) {
+            matrix = matrix.then(PointOps.ColorMatrix.swap(swap));
+            applied.add("swap " + swap);
+        }
+        if (saturation != 1.0) {
+            matrix = matrix.then(PointOps.ColorMatrix.saturation(saturation));
+            applied.add("saturation " + saturation);
+        }
+        if (sepia) {
+            matrix = matrix.then(PointOps.ColorMatrix.sepia());
+            applied.add("sepia");
+        }
+
+        // --- Tables par canal (une seule table) ---
+        PointOps.Lut lut = PointOps.Lut.identity();
+        if (levels != null) {
+            lut = lut.then(parseLevels(levels));
+            applied.add("levels " + levels);
+        }
+        if (gamma != 1.0) {
+            lut = lut.then(PointOps.Lut.gamma(gamma));
+            applied.add("gamma " + gamma);
+        }
+        if (curve != null) {
+            lut = lut.then(PointOps.Lut.curve(curve));
+            applied.add("curve");
+        }
+        if (posterize != 0) {
+            lut = lut.then(PointOps.Lut.posterize(posterize));
+            applied.add("posterize " + posterize);
+        }
+        if (threshold >= 0) {
+            lut = lut.then(PointOps.Lut.threshold(threshold));
+            applied.add("threshold " + threshold);
+        }
+
+        return PointOps.apply(imageIn, matrix, lut);
+    }
+
+    private static PointOps.Lut parseLevels(String spec) {
+        String[] p = spec.split(",");
+        try {
+            if (p.length == 2) {
+                return PointOps.Lut.levels(Integer.parseInt(p[0].trim()), Integer.parseInt(p[1].trim()), 0, 255);
+            }
+            if (p.length == 4) {
+                return PointOps.Lut.levels(Integer.parseInt(p[0].trim()), Integer.parseInt(p[1].trim()),
+                        Integer.parseInt(p[2].trim()), Integer.parseInt(p[3].trim()));
+            }
+        } catch (NumberFormatException e) {
+            // message ci-dessous
+        }
+        throw new IllegalArgumentException("Invalid --levels: '" + spec + "'. Use lo,hi or lo,hi,outLo,outHi.");
+    }
+}
@@ -0,0 +1,179 @@
+package ch.heigvd.commands;
+
+import ch.heigvd.ImageToolBox;
+import ch.heigvd.util.Images;
+import picocli.CommandLine;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.Callable;
+
+@CommandLine.Command(
+        name = "crop",
+        description = "Crop a region (pixel box, percentages or size + gravity). Only the region is decoded."
+)
+public class Crop implements Callable<Integer>, Cacheable, Budgeted, Framed {
+
+    @CommandLine.Option(
+            names = {"--box"},
+            description = "Region as X,Y,W,H; each value in pixels or in percent of the image (e.g. 10%%,10%%,50%%,50%%)."
+    )
+    public String box;
+
+    @CommandLine.Option(
+            names = {"--size"},
+            description = "Region size as WxH, in pixels or percent (e.g. 1000x1000 or 50%%x50%%), placed with --gravity."
+    )
+    public String size;
+
+    @CommandLine.Option(
+            names = {"--gravity"},
+            description = "Where --size is taken: center, north, south, east, west, northwest, northeast, southwest or southeast.",
+            defaultValue = "center"
+    )
+    public String gravity;
+
+    @CommandLine.ParentCommand
+    protected ImageToolBox parent;
+
+    /** Only the region is decoded. */
+    @Override
+    public long memoryEstimate() {
+        Images.ImageInfo info = Images.probe(parent.io.inputFile);
+        if ((box == null) == (size == null)) {
+            return ARGB * info.pixels(); // options invalides : la commande le signalera
+        }
+        Rectangle r = (box != null)
+                ? box(box, info.width(), info.height())
+                : gravity(size, gravity, info.width(), info.height());
+        return ARGB * r.width * r.height;
+    }
+
+    /** Frames are already decoded: the region is a view on them. */
+    @Override
+    public BufferedImage transform(BufferedImage frame) {
+        if ((box == null) == (size == null)) {
+            throw new IllegalArgumentException("Give either --box or --size.");
+        }
+        Rectangle r = (box != null)
+                ? box(box, frame.getWidth(), frame.getHeight())
+                : gravity(size, gravity, frame.getWidth(), frame.getHeight());
+        return frame.getSubimage(r.x, r.y, r.width, r.height);
+    }
+
+    @Override
+    public Integer call() {
+        try {
+            if ((box == null) == (size == null)) {
+                throw new IllegalArgumentException("Give either --box or --size.");
+            }
+
+            // En-tête seulement : la région est calculée avant tout décodage
+            Images.ImageInfo info = Images.probe(parent.io.inputFile);
+            Rectangle r = (box != null)
+                    ? box(box, info.width(), info.height())
+                    : gravity(size, gravity, info.width(), info.height());
+
+            // Le lecteur ne décode que la région (setSourceRegion) ; la vue getSubimage ne sert que si
+            // un décodeur rend malgré tout l'image entière
+            BufferedImage img = Images.readImage(parent.io.inputFile, r, 0, 0);
+            if (img.getWidth() != r.width || img.getHeight() != r.height) {
+                img = img.getSubimage(r.x, r.y, r.width, r.height);
+            }
+
+            Images.writeImage(img, parent.io.outputFile, parent.io);
+            System.out.println("Image successfully cropped to " + r.width + "x" + r.height + " at " + r.x + "," + r.y + ".");
+            return 0;
+
+        } catch (Exception e) {
+            System.err.println("[crop] " + e.getMessage());
+            return 1;
+        }
+    }
+
+    static Rectangle box(String spec, int w, int h) {
+        String[] p = spec.split(",");
+        if (p.length != 4) {
+            throw new IllegalArgumentException("Invalid --box: '" + spec + "'. Use X,Y,W,H.");
+        }
+        int x = value(p[0], w, spec);
+        int y = value(p[1], h, spec);
+        int bw = value(p[2], w, spec);
+        int bh = value(p[3], h, spec);
+        return clip(new Rectangle(x, y, bw, bh), w, h, spec);
+    }
+
+    static Rectangle gravity(String spec, String gravity, int w, int h) {
+        int sep = spec.toLowerCase().indexOf('x');
+        if (sep < 0) {
+            throw new IllegalArgumentException("Invalid --size: '" + spec + "'. Use WxH.");
+        }
+        int bw = Math.min(w, value(spec.substring(0, sep), w, spec));
+        int bh = Math.min(h, value(spec.substring(sep + 1), h, spec));
+
+        String g = (gravity == null) ? "center" : gravity.trim().toLowerCase();
+        int x = (w - bw) / 2;
+        int y = (h - bh) / 2;
+        switch (g) {
+            case "center":
+                break;
+            case "north":
+                y = 0;
+                break;
+            case "south":
+                y = h - bh;
+                break;
+            case "west":
+                x = 0;
+                break;
+            case "east":
+                x = w - bw;
+                break;
+            case "northwest":
+                x = 0;
+                y = 0;
+                break;
+            case "northeast":
+                x = w - bw;
+                y = 0;
+                break;
+            case "southwest":
+                x = 0;
+                y = h - bh;
+                break;
+            case "southeast":
+                x = w - bw;
+                y = h - bh;
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid --gravity: '" + gravity
+                        + "'. Use center|north|south|east|west|northwest|northeast|southwest|southeast.");
+        }
+        return clip(new Rectangle(x, y, bw, bh), w, h, spec);
+    }
+
+    // "120" -> 120 pixels, "25%" -> 25 % de la dimension de référence
+    private static int value(String s, int reference, String spec) {
+        String v = s.trim();
+        try {
+            if (v.endsWith("%")) {
+                double pct = Double.parseDouble(v.substring(0, v.length() - 1).trim());
+                return (int) Math.round(reference * pct / 100.0);
+            }
+            return Integer.parseInt(v);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value '" + s + "' in '" + spec + "'.");
+        }
+    }
+
+    private static Rectangle clip(Rectangle r, int w, int h, String spec) {
+        if (r.width <= 0 || r.height <= 0) {
+            throw new IllegalArgumentException("Empty region: '" + spec + "'.");
+        }
+        Rectangle c = r.intersection(new Rectangle(0, 0, w, h));
+        if (c.isEmpty()) {
+            throw new IllegalArgumentException("Region '" + spec + "' is outside the image (" + w + "x" + h + ").");
+        }
+        return c;
+    }
+}
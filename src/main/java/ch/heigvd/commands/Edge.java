@@ -0,0 +1,80 @@
+package ch.heigvd.commands;
+
+import ch.heigvd.ImageToolBox;
+import ch.heigvd.util.Convolution;
+import ch.heigvd.util.Images;
+import picocli.CommandLine;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.Callable;
+
+@CommandLine.Command(
+        name = "edge",
+        description = "Detect edges: gradient magnitude of the luminance, as a grayscale image."
+)
+public class Edge implements Callable<Integer>, Cacheable, Budgeted, Framed {
+
+    @CommandLine.Option(
+            names = {"--operator"},
+            description = "Gradient operator: sobel or scharr (more rotation-invariant).",
+            defaultValue = "sobel"
+    )
+    public String operator;
+
+    @CommandLine.Option(
+            names = {"--gain"},
+            description = "Multiplier applied to the normalized magnitude (raise it for faint edges).",
+            defaultValue = "1.0"
+    )
+    public double gain;
+
+    @CommandLine.Option(
+            names = {"--border"},
+            description = "How pixels outside the image are taken: clamp (repeat the edge) or reflect (mirror).",
+            defaultValue = "clamp"
+    )
+    public String border;
+
+    @CommandLine.ParentCommand
+    protected ImageToolBox parent;
+
+    /** Decoded input + luminance plane + output. */
+    @Override
+    public long memoryEstimate() {
+        return 3 * ARGB * Budgeted.pixels(parent.io.inputFile);
+    }
+
+    @Override
+    public BufferedImage transform(BufferedImage imageIn) {
+        Convolution.Border b = Convolution.Border.parse(border);
+        return Convolution.edges(imageIn, scharr(), gain, b);
+    }
+
+    private boolean scharr() {
+        switch (operator == null ? "sobel" : operator.trim().toLowerCase()) {
+            case "sobel":
+                return false;
+            case "scharr":
+                return true;
+            default:
+                throw new IllegalArgumentException("Invalid --operator: '" + operator + "'. Use sobel|scharr.");
+        }
+    }
+
+    @Override
+    public Integer call() {
+        try {
+            boolean scharr = scharr();
+            BufferedImage imageIn = Images.readImage(parent.io.inputFile);
+            BufferedImage imageOut = transform(imageIn);
+
+            Images.writeImage(imageOut, parent.io.outputFile, parent.io);
+            System.out.println("Edges successfully detected (" + (scharr ? "scharr" : "sobel") + ").");
+            return 0;
+
+        } catch (Exception e) {
+            System.err.println("[edge] " + e.getMessage());
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package ch.heigvd.commands;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Marks a subcommand that turns one image into one image, so that it also runs frame by frame on animated GIFs
+ * and multi-page TIFFs (see {@link ch.heigvd.util.Frames}).
+ */
+public interface Framed {
+
+    /**
+     * The command applied to a single frame. Called from several threads at once; the result may come from
+     * {@link ch.heigvd.util.PixelPool} and is given back once written.
+     */
+    BufferedImage transform(BufferedImage frame);
+
+    /**
+     * True when every output pixel only depends on the same input pixel (color changes): GIF frames are then
+     * transformed as stored, sub-rectangles and disposal included, instead of being composed first.
+     */
+    default boolean pointwise() {
+        return false;
+    }
+
+    /** False when this invocation cannot run frame by frame (several outputs...). */
+    default boolean framed() {
+        return true;
+    }
+}
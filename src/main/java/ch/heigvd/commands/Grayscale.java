@@ -2,11 +2,11 @@ package ch.heigvd.commands;
 
 import ch.heigvd.ImageToolBox;
 import ch.heigvd.util.Images;
+import ch.heigvd.util.PixelPool;
+import ch.heigvd.util.PointOps;
 import picocli.CommandLine;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.Raster;
-import java.awt.image.WritableRaster;
 import java.util.concurrent.Callable;
 
 @CommandLine.Command(
@@ -14,50 +14,47 @@ import java.util.concurrent.Callable;
         description = "Convert an image to grayscale."
 )
 
-public class Grayscale implements Callable<Integer> {
+public class Grayscale implements Callable<Integer>, Cacheable, Budgeted, Framed {
+
+    @CommandLine.Option(
+            names = {"--weights"},
+            description = "Luma weights: bt601 (0.299, 0.587, 0.114) or bt709 (0.2126, 0.7152, 0.0722).",
+            defaultValue = "bt601"
+    )
+    public String weights;
 
     @CommandLine.ParentCommand
     protected ImageToolBox parent;
 
+    /** Decoded input + output buffer. */
     @Override
-    public Integer call(){
-        try{
-            Images.io = parent.io;
-
-            // Read the input image
-            BufferedImage imageIn = Images.readImage();
-            int width = imageIn.getWidth();
-            int height = imageIn.getHeight();
-
-            // Create the output image
-            BufferedImage imageOut = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-
-            // Allows access to the pixel in the image
-            // Proposed by ChatGPT, written by RDL
-            Raster rasterIn = imageIn.getRaster();
-            WritableRaster rasterOut = imageOut.getRaster();
-
-            int[] pin  = new int[3]; // R-G-B
-            int[] pout = new int[3];
+    public long memoryEstimate() {
+        return 2 * ARGB * Budgeted.pixels(parent.io.inputFile);
+    }
 
-            for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
+    /** Conversion to grayscale: gray = wr * r + wg * g + wb * b on the three channels (alpha kept). */
+    @Override
+    public BufferedImage transform(BufferedImage imageIn) {
+        PointOps.ColorMatrix gray = PointOps.ColorMatrix.grayscale(PointOps.ColorMatrix.lumaWeights(weights));
+        return PointOps.apply(imageIn, gray, null);
+    }
 
-                    rasterIn.getPixel(x, y, pin); // Get the pixel in position (x, y)
-                    int r = pin[0], g = pin[1], b = pin[2];
+    @Override
+    public boolean pointwise() {
+        return true;
+    }
 
-                    // Conversion to grayscale
-                    int gray = (int) Math.round(0.299 * r + 0.587 * g + 0.114 * b); // The most common formula
-                    if (gray < 0) gray = 0;
-                    else if (gray > 255) gray = 255;
+    @Override
+    public Integer call(){
+        try{
+            // Read the input image
+            BufferedImage imageIn = Images.readImage(parent.io.inputFile);
 
-                    pout[0] = pout[1] = pout[2] = gray;
-                    rasterOut.setPixel(x, y, pout);
-                }
-            }
+            BufferedImage imageOut = transform(imageIn);
 
             // Write the output image
-            Images.writeImage(imageOut);
+            Images.writeImage(imageOut, parent.io.outputFile, parent.io);
+            PixelPool.release(imageOut);
             System.out.println("Image successfully converted to grayscale.");
             return 0;
 
@@ -2,11 +2,11 @@ package ch.heigvd.commands;
 
 import ch.heigvd.ImageToolBox;
 import ch.heigvd.util.Images;
+import ch.heigvd.util.PixelPool;
+import ch.heigvd.util.PointOps;
 import picocli.CommandLine;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.Raster;
-import java.awt.image.WritableRaster;
 import java.util.concurrent.Callable;
 
 @CommandLine.Command(
@@ -14,47 +14,39 @@ import java.util.concurrent.Callable;
         description = "Invert the color in the image."
 )
 
-public class Invert implements Callable<Integer> {
+public class Invert implements Callable<Integer>, Cacheable, Budgeted, Framed {
 
     @CommandLine.ParentCommand
     protected ImageToolBox parent;
 
+    /** Decoded input + output buffer. */
     @Override
-    public Integer call() {
-        try {
-
-            Images.io = parent.io;
-
-            // Read the input image
-            BufferedImage imageIn = Images.readImage();
-            int width = imageIn.getWidth();
-            int height = imageIn.getHeight();
-
-            // Create the output image
-            BufferedImage imageOut = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-
-            // Allows access to the pixel in the image
-            // Proposed by ChatGPT, written by AZL
-            Raster rasterIn = imageIn.getRaster();
-            WritableRaster rasterOut = imageOut.getRaster();
+    public long memoryEstimate() {
+        return 2 * ARGB * Budgeted.pixels(parent.io.inputFile);
+    }
 
-            int[] pixel = new int[3]; // R-G-B
+    /** Invert the colors: 255 - v on R, G and B (alpha kept). */
+    @Override
+    public BufferedImage transform(BufferedImage imageIn) {
+        return PointOps.apply(imageIn, null, PointOps.Lut.invert());
+    }
 
-            for(int y = 0; y < height; y++){
-                for(int x = 0; x < width; x++){
-                    rasterIn.getPixel(x, y, pixel);
+    @Override
+    public boolean pointwise() {
+        return true;
+    }
 
-                    // Invert the colors
-                    pixel[0] = 255 - pixel[0];
-                    pixel[1] = 255 - pixel[1];
-                    pixel[2] = 255 - pixel[2];
+    @Override
+    public Integer call() {
+        try {
+            // Read the input image
+            BufferedImage imageIn = Images.readImage(parent.io.inputFile);
 
-                    rasterOut.setPixel(x, y, pixel);
-                }
-            }
+            BufferedImage imageOut = transform(imageIn);
 
             // Write the output image
-            Images.writeImage(imageOut);
+            Images.writeImage(imageOut, parent.io.outputFile, parent.io);
+            PixelPool.release(imageOut);
             System.out.println("Colors successfully inverted.");
             return 0;
 
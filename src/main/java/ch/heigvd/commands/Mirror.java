@@ -2,18 +2,18 @@ package ch.heigvd.commands;
 
 import ch.heigvd.ImageToolBox;
 import ch.heigvd.util.Images;
+import ch.heigvd.util.PixelPool;
+import ch.heigvd.util.Pixels;
 import picocli.CommandLine;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.Raster;
-import java.awt.image.WritableRaster;
 import java.util.concurrent.Callable;
 
 @CommandLine.Command(
         name = "mirror",
         description = "Apply a mirror effect to the image (horizontal and/or vertical)."
 )
-public class Mirror implements Callable<Integer> {
+public class Mirror implements Callable<Integer>, Cacheable, Budgeted, Framed {
 
     @CommandLine.Option(
             names = {"-h", "--horizontal"},
@@ -30,41 +30,29 @@ public class Mirror implements Callable<Integer> {
     @CommandLine.ParentCommand
     protected ImageToolBox parent;
 
+    /** Decoded input + output buffer. */
     @Override
-    public Integer call() {
-        try {
-            Images.io = parent.io;
-
-            BufferedImage imageIn = Images.readImage();
-            int w = imageIn.getWidth();
-            int h = imageIn.getHeight();
-
-            Raster rin = imageIn.getRaster();
-            BufferedImage imageOut = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-            WritableRaster rout = imageOut.getRaster();
-
-            int[] pixel = new int[3]; // RGB
-
-            // Si aucun des deux n’est spécifié, on fait un miroir horizontal par défaut
-            if (!horizontal && !vertical) {
-                horizontal = true;
-            }
-
-            for (int y = 0; y < h; y++) {
-                for (int x = 0; x < w; x++) {
-                    rin.getPixel(x, y, pixel);
+    public long memoryEstimate() {
+        return 2 * ARGB * Budgeted.pixels(parent.io.inputFile);
+    }
 
-                    int targetX = horizontal ? (w - 1 - x) : x;
-                    int targetY = vertical ? (h - 1 - y) : y;
+    @Override
+    public BufferedImage transform(BufferedImage imageIn) {
+        // Si aucun des deux n’est spécifié, on fait un miroir horizontal par défaut
+        return Pixels.mirror(imageIn, horizontal || !vertical, vertical);
+    }
 
-                    rout.setPixel(targetX, targetY, pixel);
-                }
-            }
+    @Override
+    public Integer call() {
+        try {
+            BufferedImage imageIn = Images.readImage(parent.io.inputFile);
+            BufferedImage imageOut = transform(imageIn);
 
-            Images.writeImage(imageOut);
+            Images.writeImage(imageOut, parent.io.outputFile, parent.io);
+            PixelPool.release(imageOut);
 
             String orientation = (horizontal && vertical) ? "both axes" :
-                    horizontal ? "horizontally" :
+                    !vertical ? "horizontally" :
                             "vertically";
             System.out.println("Image successfully mirrored " + orientation + ".");
 
@@ -0,0 +1,95 @@
+package ch.heigvd.commands;
+
+import ch.heigvd.ImageToolBox;
+import ch.heigvd.util.Images;
+import ch.heigvd.util.TilePyramid;
+import picocli.CommandLine;
+
+import java.util.concurrent.Callable;
+
+@CommandLine.Command(
+        name = "pyramid",
+        description = "Deep-zoom tile pyramid (DZI or XYZ) for very large images, built by streaming strips of the input."
+)
+public class Pyramid implements Callable<Integer>, Budgeted {
+
+    @CommandLine.Option(
+            names = {"--layout"},
+            description = "dzi (-o is the .dzi descriptor, tiles in <name>_files/) or xyz (-o is a directory, tiles in z/x/y.<ext>).",
+            defaultValue = "dzi"
+    )
+    public String layout;
+
+    @CommandLine.Option(
+            names = {"--tile-size"},
+            description = "Tile edge in pixels, without the overlap.",
+            defaultValue = "256"
+    )
+    public int tileSize;
+
+    @CommandLine.Option(
+            names = {"--overlap"},
+            description = "Pixels repeated on each side of a tile (shared with the neighbours).",
+            defaultValue = "0"
+    )
+    public int overlap;
+
+    @CommandLine.Option(
+            names = {"--format"},
+            description = "Tile format: jpg (transparency flattened on white) or png.",
+            defaultValue = "jpg"
+    )
+    public String format;
+
+    @CommandLine.Option(
+            names = {"--strip-mb"},
+            description = "Memory for one decoded strip of the input, in MB (taller strips decode PNG/JPEG faster).",
+            defaultValue = "64"
+    )
+    public int stripMb;
+
+    @CommandLine.ParentCommand
+    protected ImageToolBox parent;
+
+    /**
+     * Streaming: one decoded strip and its row copy, the row rings of the levels (about twice the base ring),
+     * and the tiles queued in the writer pool. Does not grow with the image height.
+     */
+    @Override
+    public long memoryEstimate() {
+        int w = Images.probe(parent.io.inputFile).width();
+        long strip = Math.max((long) stripMb * 1024 * 1024, ARGB * w * tileSize);
+        long rings = 2 * ARGB * w * (tileSize + 2L * overlap + 1);
+        long side = tileSize + 2L * overlap;
+        long tiles = 3L * Runtime.getRuntime().availableProcessors() * ARGB * side * side;
+        return 2 * strip + rings + tiles;
+    }
+
+    @Override
+    public Integer call() {
+        try {
+            String f = format.trim().toLowerCase();
+            if (!f.equals("jpg") && !f.equals("jpeg") && !f.equals("png")) {
+                throw new IllegalArgumentException("Invalid --format: '" + format + "'. Use jpg|png.");
+            }
+            if (Images.isStdio(parent.io.outputFile)) {
+                throw new IllegalArgumentException("A pyramid is a directory of tiles: -o cannot be standard output.");
+            }
+            if (stripMb < 1) {
+                throw new IllegalArgumentException("--strip-mb must be at least 1.");
+            }
+
+            TilePyramid pyramid = new TilePyramid(TilePyramid.Layout.parse(layout), tileSize, overlap, f,
+                    (int) Math.min(Integer.MAX_VALUE, stripMb * 1024L * 1024L));
+            TilePyramid.Result r = pyramid.build(parent.io.inputFile, parent.io.outputFile);
+
+            System.out.println("Pyramid successfully written: " + r.width() + "x" + r.height() + ", "
+                    + r.levels() + " levels, " + r.tiles() + " tiles -> " + parent.io.outputFile.getPath());
+            return 0;
+
+        } catch (Exception e) {
+            System.err.println("[pyramid] " + e.getMessage());
+            return 1;
+        }
+    }
+}
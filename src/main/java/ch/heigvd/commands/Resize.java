@@ -0,0 +1,299 @@
+package ch.heigvd.commands;
+
+import ch.heigvd.ImageToolBox;
+import ch.heigvd.util.Images;
+import ch.heigvd.util.Resampler;
+import picocli.CommandLine;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+@CommandLine.Command(
+        name = "resize",
+        description = "Resize an image (exact size, fit, fill or max edge), optionally to several sizes from one decode."
+)
+public class Resize implements Callable<Integer>, Cacheable, Budgeted, Framed {
+
+    @CommandLine.Option(
+            names = {"-W", "--width"},
+            description = "Target width in pixels (0 = derived from the height in fit mode)."
+    )
+    public int width;
+
+    @CommandLine.Option(
+            names = {"-H", "--height"},
+            description = "Target height in pixels (0 = derived from the width in fit mode)."
+    )
+    public int height;
+
+    @CommandLine.Option(
+            names = {"--mode"},
+            description = "exact (stretch to WxH), fit (inside WxH, keeps the ratio), fill (covers WxH, center-cropped) or max-edge (longest edge = --max-edge, never upscales).",
+            defaultValue = "fit"
+    )
+    public String mode;
+
+    @CommandLine.Option(
+            names = {"--max-edge"},
+            description = "Longest edge in pixels (for --mode max-edge)."
+    )
+    public int maxEdge;
+
+    @CommandLine.Option(
+            names = {"--filter"},
+            description = "Resampling filter: box (area average), bilinear, bicubic or lanczos3.",
+            defaultValue = "lanczos3"
+    )
+    public String filter;
+
+    @CommandLine.Option(
+            names = {"--fast"},
+            description = "For large reductions: decode subsampled and halve with 2x2 averages before filtering (slightly softer, much faster)."
+    )
+    public boolean fast;
+
+    @CommandLine.Option(
+            names = {"--sizes"},
+            split = ",",
+            description = "Several outputs from one decode, e.g. 1024,512,128x128. Written next to -o as <name>-<W>x<H>.<ext>. "
+                    + "A single number is the longest edge in max-edge mode, a square box otherwise."
+    )
+    public List<String> sizes = new ArrayList<>();
+
+    @CommandLine.ParentCommand
+    protected ImageToolBox parent;
+
+    /** Several --sizes write several files: not served from the result cache. */
+    @Override
+    public boolean cacheable() {
+        return sizes.isEmpty();
+    }
+
+    /** Source region to resample (crop for fill mode) and output size. */
+    record Plan(int cropX, int cropY, int cropW, int cropH, int outW, int outH) {
+        boolean cropped(int srcW, int srcH) {
+            return cropW != srcW || cropH != srcH;
+        }
+    }
+
+    // Taille demandée : largeur/hauteur (0 = libre), ou arête maximale en mode max-edge
+    record Request(int w, int h) {}
+
+    /** Several --sizes write several files: not run frame by frame. */
+    @Override
+    public boolean framed() {
+        return sizes.isEmpty();
+    }
+
+    @Override
+    public BufferedImage transform(BufferedImage frame) {
+        Resampler.Filter f = Resampler.Filter.parse(filter);
+        String m = (mode == null) ? "fit" : mode.trim().toLowerCase();
+        Plan p = plan(frame.getWidth(), frame.getHeight(), m, requests(m).get(0));
+        return apply(frame, p, f);
+    }
+
+    @Override
+    public Integer call() {
+        try {
+            Resampler.Filter f = Resampler.Filter.parse(filter);
+            String m = (mode == null) ? "fit" : mode.trim().toLowerCase();
+
+            if (!sizes.isEmpty() && Images.isStdio(parent.io.outputFile)) {
+                throw new IllegalArgumentException("--sizes writes several files: -o cannot be standard output.");
+            }
+
+            List<Request> requests = requests(m);
+
+            // --- Décodage unique (sous-échantillonné avec --fast) ---
+            File input = parent.io.inputFile;
+            BufferedImage src;
+            if (fast) {
+                Images.ImageInfo info = Images.probe(input);
+                int step = fastStep(info, m, requests);
+                src = Images.readImage(input, null, info.width() / step, info.height() / step);
+            } else {
+                src = Images.readImage(input);
+            }
+
+            List<Plan> plans = new ArrayList<>();
+            for (Request r : requests) {
+                plans.add(plan(src.getWidth(), src.getHeight(), m, r));
+            }
+
+            if (sizes.isEmpty()) {
+                Plan p = plans.get(0);
+                BufferedImage out = apply(src, p, f);
+                Images.writeImage(out, parent.io.outputFile, parent.io);
+                System.out.println("Image successfully resized to " + p.outW() + "x" + p.outH()
+                        + " (" + f.name().toLowerCase() + ").");
+                return 0;
+            }
+
+            // --- Plusieurs tailles : de la plus grande à la plus petite, chacune partant du plus petit
+            //     résultat déjà calculé qui fait encore au moins 2x la cible (sinon de l'original) ---
+            List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < plans.size(); i++) order.add(i);
+            order.sort(Comparator.comparingLong((Integer i) -> (long) plans.get(i).outW() * plans.get(i).outH()).reversed());
+
+            List<BufferedImage> done = new ArrayList<>();
+            for (int i : order) {
+                Plan p = plans.get(i);
+                BufferedImage base = src;
+                Plan from = p;
+                if (!p.cropped(src.getWidth(), src.getHeight())) {
+                    for (BufferedImage d : done) {
+                        if (d.getWidth() >= 2 * p.outW() && d.getHeight() >= 2 * p.outH()
+                                && d.getWidth() < base.getWidth()) {
+                            base = d;
+                        }
+                    }
+                    from = new Plan(0, 0, base.getWidth(), base.getHeight(), p.outW(), p.outH());
+                }
+                BufferedImage out = apply(base, from, f);
+                if (!p.cropped(src.getWidth(), src.getHeight())) {
+                    done.add(out);
+                }
+
+                File file = sizedOutput(parent.io.outputFile, p.outW(), p.outH());
+                Images.writeImage(out, file, parent.io);
+                System.out.println("Wrote " + file.getPath() + " (" + p.outW() + "x" + p.outH() + ")");
+            }
+            System.out.println("Image successfully resized to " + plans.size() + " sizes (" + f.name().toLowerCase() + ").");
+            return 0;
+
+        } catch (Exception e) {
+            System.err.println("[resize] " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Decoded input (subsampled with --fast) + ARGB copy, plus for each size its horizontal pass and its output.
+     */
+    @Override
+    public long memoryEstimate() {
+        String m = (mode == null) ? "fit" : mode.trim().toLowerCase();
+        Images.ImageInfo info = Images.probe(parent.io.inputFile);
+        List<Request> requests = requests(m);
+        int step = fast ? fastStep(info, m, requests) : 1;
+        int w = info.width() / step;
+        int h = info.height() / step;
+        long bytes = 2 * ARGB * w * h;
+        for (Request r : requests) {
+            Plan p = plan(w, h, m, r);
+            bytes += ARGB * p.outW() * ((long) p.cropH() + p.outH());
+        }
+        return bytes;
+    }
+
+    /** Large reductions can be decoded subsampled: same as --fast. */
+    @Override
+    public boolean reduceMemory() {
+        if (fast) return false;
+        fast = true;
+        return true;
+    }
+
+    private List<Request> requests(String m) {
+        List<Request> requests = new ArrayList<>();
+        if (sizes.isEmpty()) {
+            requests.add(m.equals("max-edge") ? new Request(maxEdge, maxEdge) : new Request(width, height));
+        } else {
+            for (String s : sizes) {
+                requests.add(parseSize(s));
+            }
+        }
+        return requests;
+    }
+
+    private static int fastStep(Images.ImageInfo info, String m, List<Request> requests) {
+        int step = Integer.MAX_VALUE;
+        for (Request r : requests) {
+            Plan p = plan(info.width(), info.height(), m, r);
+            // Le sous-échantillonnage du décodeur ne filtre pas : on garde 2x la cible
+            step = Math.min(step, Images.subsampling(p.cropW(), p.cropH(), 2 * p.outW(), 2 * p.outH()));
+        }
+        return step;
+    }
+
+    private BufferedImage apply(BufferedImage src, Plan p, Resampler.Filter f) {
+        BufferedImage region = p.cropped(src.getWidth(), src.getHeight())
+                ? src.getSubimage(p.cropX(), p.cropY(), p.cropW(), p.cropH())
+                : src;
+        return Resampler.resize(region, p.outW(), p.outH(), f, fast);
+    }
+
+    private Request parseSize(String spec) {
+        String s = spec.trim().toLowerCase();
+        try {
+            int x = s.indexOf('x');
+            if (x < 0) {
+                int n = Integer.parseInt(s);
+                return new Request(n, n);
+            }
+            return new Request(Integer.parseInt(s.substring(0, x)), Integer.parseInt(s.substring(x + 1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid size in --sizes: '" + spec + "'. Use N or WxH.");
+        }
+    }
+
+    static Plan plan(int srcW, int srcH, String mode, Request r) {
+        switch (mode) {
+            case "exact": {
+                requirePositive(r.w(), r.h(), "exact");
+                return new Plan(0, 0, srcW, srcH, r.w(), r.h());
+            }
+            case "fit": {
+                if (r.w() <= 0 && r.h() <= 0) {
+                    throw new IllegalArgumentException("Mode fit needs --width and/or --height.");
+                }
+                double sx = (r.w() > 0) ? (double) r.w() / srcW : Double.MAX_VALUE;
+                double sy = (r.h() > 0) ? (double) r.h() / srcH : Double.MAX_VALUE;
+                double s = Math.min(sx, sy);
+                return new Plan(0, 0, srcW, srcH, scaled(srcW, s), scaled(srcH, s));
+            }
+            case "fill": {
+                requirePositive(r.w(), r.h(), "fill");
+                double s = Math.max((double) r.w() / srcW, (double) r.h() / srcH);
+                // On ne rééchantillonne que la partie gardée (centrée)
+                int cw = Math.min(srcW, Math.max(1, (int) Math.round(r.w() / s)));
+                int ch = Math.min(srcH, Math.max(1, (int) Math.round(r.h() / s)));
+                return new Plan((srcW - cw) / 2, (srcH - ch) / 2, cw, ch, r.w(), r.h());
+            }
+            case "max-edge": {
+                int edge = Math.max(r.w(), r.h());
+                if (edge <= 0) {
+                    throw new IllegalArgumentException("Mode max-edge needs --max-edge (or sizes).");
+                }
+                double s = Math.min(1.0, (double) edge / Math.max(srcW, srcH));
+                return new Plan(0, 0, srcW, srcH, scaled(srcW, s), scaled(srcH, s));
+            }
+            default:
+                throw new IllegalArgumentException("Invalid --mode: '" + mode + "'. Use exact|fit|fill|max-edge.");
+        }
+    }
+
+    private static int scaled(int size, double s) {
+        return Math.max(1, (int) Math.round(size * s));
+    }
+
+    private static void requirePositive(int w, int h, String mode) {
+        if (w <= 0 || h <= 0) {
+            throw new IllegalArgumentException("Mode " + mode + " needs both --width and --height (or WxH sizes).");
+        }
+    }
+
+    // photo.png + 320x200 -> photo-320x200.png
+    private static File sizedOutput(File output, int w, int h) {
+        String name = output.getName();
+        int dot = name.lastIndexOf('.');
+        String base = (dot > 0) ? name.substring(0, dot) : name;
+        String ext = (dot > 0) ? name.substring(dot) : "";
+        return new File(output.getAbsoluteFile().getParentFile(), base + "-" + w + "x" + h + ext);
+    }
+}
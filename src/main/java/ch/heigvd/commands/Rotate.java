@@ -1,95 +1,90 @@
 package ch.heigvd.commands;
 
 import ch.heigvd.ImageToolBox;
+import ch.heigvd.util.Colors;
 import ch.heigvd.util.Images;
+import ch.heigvd.util.Pixels;
+import ch.heigvd.util.Rotation;
 import picocli.CommandLine;
 
+import java.awt.Color;
 import java.awt.image.BufferedImage;
-import java.awt.image.Raster;
-import java.awt.image.WritableRaster;
 import java.util.concurrent.Callable;
 
 @CommandLine.Command(
         name = "rotate",
-        description = "Rotate an image by 90, 180, or 270 degrees."
+        description = "Rotate an image clockwise by any angle (multiples of 90 degrees are lossless)."
 )
 
-public class Rotate implements Callable<Integer> {
+public class Rotate implements Callable<Integer>, Cacheable, Budgeted, Framed {
 
     @CommandLine.Option(
             names = {"-a", "--angle"},
-            description = "Rotation angle (valid: 90, 180, 270).",
+            description = "Rotation angle in degrees, clockwise (e.g. 90, 180, 270, -1.5 to deskew a scan).",
             defaultValue = "90"
     )
 
-    public int angle;
+    public double angle;
+
+    @CommandLine.Option(
+            names = {"--interpolation"},
+            description = "Resampling for angles that are not multiples of 90: nearest, bilinear or bicubic.",
+            defaultValue = "bilinear"
+    )
+    public String interpolation;
+
+    @CommandLine.Option(
+            names = {"--canvas"},
+            description = "For angles that are not multiples of 90: expand (output holds the whole rotated image) or crop (same size as the input).",
+            defaultValue = "expand"
+    )
+    public String canvas;
+
+    @CommandLine.Option(
+            names = {"--background"},
+            description = "Color of the uncovered corners: white, black, transparent or hex (#RRGGBB/#AARRGGBB). Transparent needs an output format with alpha (png).",
+            defaultValue = "white"
+    )
+    public String backgroundSpec;
 
     @CommandLine.ParentCommand
     protected ImageToolBox parent;
 
+    /** Decoded input + output; arbitrary angles add an ARGB copy and may grow the canvas. */
+    @Override
+    public long memoryEstimate() {
+        Images.ImageInfo info = Images.probe(parent.io.inputFile);
+        long n = info.pixels();
+        double normalized = ((angle % 360) + 360) % 360;
+        if (normalized % 90 == 0) {
+            return 2 * ARGB * n;
+        }
+        if ("crop".equalsIgnoreCase(canvas == null ? "" : canvas.trim())) {
+            return 3 * ARGB * n;
+        }
+        double rad = Math.toRadians(normalized);
+        double c = Math.abs(Math.cos(rad));
+        double s = Math.abs(Math.sin(rad));
+        double outPixels = (info.width() * c + info.height() * s) * (info.width() * s + info.height() * c);
+        return 2 * ARGB * n + (long) (ARGB * outPixels);
+    }
+
     public Integer call(){
         try {
-            Images.io = parent.io;
-
             // Read the input image
-            BufferedImage imageIn = Images.readImage();
-            int w = imageIn.getWidth();
-            int h = imageIn.getHeight();
-
-            // Proposed by ChatGPT, written by RDL & AZL
-            Raster rin = imageIn.getRaster();
-
-            if (angle != 90 && angle != 180 && angle != 270) {
-                throw new IllegalArgumentException("Angle invalide: " + angle + " (valeurs valides: 90, 180, 270)");
-            }
-
-            BufferedImage imageOut;
-            WritableRaster rout;
-            int[] pixel = new int[3]; // R-G-B
-
-            switch (angle) {
-                case 90: // (x,y) --> (h-1-y, x)
-                    imageOut = new BufferedImage(h, w, BufferedImage.TYPE_INT_RGB);
-                    rout = imageOut.getRaster();
-                    for (int y = 0; y < h; y++) {
-                        for (int x = 0; x < w; x++) {
-                            rin.getPixel(x, y, pixel);
-                            rout.setPixel(h - 1 - y, x, pixel);
-                        }
-                    }
-                    break;
-
-                case 180: // (x,y) --> (w-1-x, h-1-y)
-                    imageOut = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-                    rout = imageOut.getRaster();
-                    for (int y = 0; y < h; y++) {
-                        for (int x = 0; x < w; x++) {
-                            rin.getPixel(x, y, pixel);
-                            rout.setPixel(w - 1 - x, h - 1 - y, pixel);
-                        }
-                    }
-                    break;
-
-                case 270: // (x,y) --> (y, w-1-x)
-                    imageOut = new BufferedImage(h, w, BufferedImage.TYPE_INT_RGB);
-                    rout = imageOut.getRaster();
-                    for (int y = 0; y < h; y++) {
-                        for (int x = 0; x < w; x++) {
-                            rin.getPixel(x, y, pixel);
-                            rout.setPixel(y, w - 1 - x, pixel);
-                        }
-                    }
-                    break;
-
-                default:
-                    // Should never happen
-                    imageOut = imageIn;
-                    angle = 0;
-            }
+            BufferedImage imageIn = Images.readImage(parent.io.inputFile);
+            BufferedImage imageOut = transform(imageIn);
 
             // Write the output image
-            Images.writeImage(imageOut);
-            System.out.println("Image successfully rotated by " + angle + " degrees.");
+            Images.writeImage(imageOut, parent.io.outputFile, parent.io);
+            double normalized = ((angle % 360) + 360) % 360;
+            if (normalized % 90 == 0) {
+                System.out.println("Image successfully rotated by " + (int) normalized + " degrees.");
+            } else {
+                String shown = (angle == Math.rint(angle)) ? String.valueOf((long) angle) : String.valueOf(angle);
+                System.out.println("Image successfully rotated by " + shown + " degrees ("
+                        + Rotation.Interpolation.parse(interpolation).name().toLowerCase() + ", " + imageOut.getWidth() + "x" + imageOut.getHeight() + ").");
+            }
             return 0;
 
         } catch (Exception e) {
@@ -97,4 +92,58 @@ public class Rotate implements Callable<Integer> {
             return 1;
         }
     }
+
+    @Override
+    public BufferedImage transform(BufferedImage imageIn) {
+        // Angle ramené dans [0, 360)
+        double normalized = ((angle % 360) + 360) % 360;
+        if (normalized % 90 != 0) {
+            return rotateArbitrary(imageIn, normalized);
+        }
+        int angle = (int) normalized;
+
+        // Proposed by ChatGPT, written by RDL & AZL
+        // Copie exacte des pixels ARGB empaquetés : l'alpha est conservé comme pour mirror
+        BufferedImage imageOut;
+
+        switch (angle) {
+            case 90: // (x,y) --> (h-1-y, x)
+                imageOut = Pixels.rotateQuarter(imageIn, true);
+                break;
+
+            case 180: // (x,y) --> (w-1-x, h-1-y)
+                imageOut = Pixels.mirror(imageIn, true, true);
+                break;
+
+            case 270: // (x,y) --> (y, w-1-x)
+                imageOut = Pixels.rotateQuarter(imageIn, false);
+                break;
+
+            default:
+                // 0 degré : inchangé
+                imageOut = imageIn;
+        }
+        return imageOut;
+    }
+
+    // Angle quelconque : moteur interpolé de Rotation (les multiples de 90 restent sur le chemin exact ci-dessus)
+    private BufferedImage rotateArbitrary(BufferedImage imageIn, double normalized) {
+        Rotation.Interpolation interp = Rotation.Interpolation.parse(interpolation);
+        boolean expand;
+        switch (canvas == null ? "expand" : canvas.trim().toLowerCase()) {
+            case "expand":
+                expand = true;
+                break;
+            case "crop":
+                expand = false;
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid --canvas: '" + canvas + "'. Use expand|crop.");
+        }
+        Color bg = Colors.parse(backgroundSpec, Color.WHITE);
+        if (bg == null) {
+            bg = new Color(0, 0, 0, 0);
+        }
+        return Rotation.rotate(imageIn, normalized, interp, expand, bg.getRGB());
+    }
 }
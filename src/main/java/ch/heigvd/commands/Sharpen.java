@@ -0,0 +1,78 @@
+package ch.heigvd.commands;
+
+import ch.heigvd.ImageToolBox;
+import ch.heigvd.util.Convolution;
+import ch.heigvd.util.Images;
+import picocli.CommandLine;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.Callable;
+
+@CommandLine.Command(
+        name = "sharpen",
+        description = "Sharpen an image with an unsharp mask."
+)
+public class Sharpen implements Callable<Integer>, Cacheable, Budgeted, Framed {
+
+    @CommandLine.Option(
+            names = {"-s", "--sigma"},
+            description = "Standard deviation of the blur used as mask, in pixels.",
+            defaultValue = "1.0"
+    )
+    public double sigma;
+
+    @CommandLine.Option(
+            names = {"--amount"},
+            description = "Strength: how much of the difference with the blurred image is added back (1.0 = 100%%).",
+            defaultValue = "1.0"
+    )
+    public double amount;
+
+    @CommandLine.Option(
+            names = {"--threshold"},
+            description = "Minimum difference (0-255) to sharpen; higher values leave flat areas and noise untouched.",
+            defaultValue = "0"
+    )
+    public int threshold;
+
+    @CommandLine.Option(
+            names = {"--border"},
+            description = "How pixels outside the image are taken: clamp (repeat the edge) or reflect (mirror).",
+            defaultValue = "clamp"
+    )
+    public String border;
+
+    @CommandLine.ParentCommand
+    protected ImageToolBox parent;
+
+    /** Decoded input + ARGB copy + blur intermediate + blurred copy + output. */
+    @Override
+    public long memoryEstimate() {
+        return 5 * ARGB * Budgeted.pixels(parent.io.inputFile);
+    }
+
+    @Override
+    public BufferedImage transform(BufferedImage imageIn) {
+        if (sigma < 0) {
+            throw new IllegalArgumentException("Invalid --sigma: " + sigma + " (expected >= 0).");
+        }
+        Convolution.Border b = Convolution.Border.parse(border);
+        return Convolution.unsharp(imageIn, sigma, amount, threshold, b);
+    }
+
+    @Override
+    public Integer call() {
+        try {
+            BufferedImage imageIn = Images.readImage(parent.io.inputFile);
+            BufferedImage imageOut = transform(imageIn);
+
+            Images.writeImage(imageOut, parent.io.outputFile, parent.io);
+            System.out.println("Image successfully sharpened (sigma " + sigma + ", amount " + amount + ").");
+            return 0;
+
+        } catch (Exception e) {
+            System.err.println("[sharpen] " + e.getMessage());
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package ch.heigvd.commands;
+
+import ch.heigvd.ImageToolBox;
+import ch.heigvd.util.Histogram;
+import ch.heigvd.util.Images;
+import picocli.CommandLine;
+
+import java.awt.image.BufferedImage;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+@CommandLine.Command(
+        name = "stats",
+        description = "Compute per-channel histograms, min/max/mean/stddev and the transparent fraction, written as JSON to the output file."
+)
+public class Stats implements Callable<Integer>, Cacheable, Budgeted {
+
+    @CommandLine.Option(
+            names = {"--no-histograms"},
+            description = "Only write the summary values, not the 256-bin histograms."
+    )
+    public boolean noHistograms;
+
+    @CommandLine.ParentCommand
+    protected ImageToolBox parent;
+
+    /** Decoded input only: the histograms are read row by row. */
+    @Override
+    public long memoryEstimate() {
+        return ARGB * Budgeted.pixels(parent.io.inputFile);
+    }
+
+    @Override
+    public Integer call() {
+        try {
+            BufferedImage imageIn = Images.readImage(parent.io.inputFile);
+            Histogram hist = Histogram.of(imageIn);
+
+            Images.writeBytes(hist.toJson(!noHistograms).getBytes(StandardCharsets.UTF_8), parent.io.outputFile);
+            System.out.println(String.format(Locale.ROOT,
+                    "Statistics written (%dx%d, mean R/G/B %.1f/%.1f/%.1f, %.1f%% transparent).",
+                    imageIn.getWidth(), imageIn.getHeight(),
+                    hist.mean(Histogram.RED), hist.mean(Histogram.GREEN), hist.mean(Histogram.BLUE),
+                    100 * hist.transparentFraction()));
+            return 0;
+
+        } catch (Exception e) {
+            System.err.println("[stats] " + e.getMessage());
+            return 1;
+        }
+    }
+}
@@ -1,7 +1,16 @@
 package ch.heigvd.commands;
 
+import ch.heigvd.IOOptions;
 import ch.heigvd.ImageToolBox;
+import ch.heigvd.util.Colors;
 import ch.heigvd.util.Images;
+import ch.heigvd.util.Metrics;
+import ch.heigvd.util.Parallel;
+import ch.heigvd.util.PdfImages;
+import ch.heigvd.util.PixelPool;
+import ch.heigvd.util.Pixels;
+import ch.heigvd.util.Resampler;
+import ch.heigvd.util.Trim;
 import picocli.CommandLine;
 
 import java.awt.Color;
@@ -11,12 +20,22 @@ import java.awt.RenderingHints;
 import java.awt.Shape;
 import java.awt.geom.Ellipse2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
 
 import javax.imageio.ImageIO;
 
@@ -26,13 +45,12 @@ import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
-import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
 
 @CommandLine.Command(
         name = "tileA4",
         description = "Tile logos across an A4 page for printing. Supports multiple logos and optional mirroring/background handling."
 )
-public class TileA4 implements Callable<Integer> {
+public class TileA4 implements Callable<Integer>, Cacheable, Budgeted {
 
     // ---- Paramètres généraux ----
 
@@ -133,8 +151,37 @@ public class TileA4 implements Callable<Integer> {
     )
     public long randomSeed = 0L;
 
+    // ---- Options PDF ----
+
+    @CommandLine.Option(
+            names = {"--pdf-image-encoding"},
+            description = "How the page image is encoded in the PDF: lossless, jpeg, indexed (flat-color logos, <= 256 colors) or parallel-flate (lossless, multi-core).",
+            defaultValue = "lossless"
+    )
+    public String pdfImageEncoding = "lossless";
+
+    @CommandLine.Option(
+            names = {"--jpeg-quality"},
+            description = "JPEG quality between 0.0 and 1.0 (for --pdf-image-encoding=jpeg).",
+            defaultValue = "0.9"
+    )
+    public float jpegQuality = 0.9f;
+
     // ---- Options de forme / source ----
 
+    @CommandLine.Option(
+            names = {"--trim"},
+            description = "Trim transparent (or uniform background colored) borders of each source before anything else."
+    )
+    public boolean trim;
+
+    @CommandLine.Option(
+            names = {"--trim-tolerance"},
+            description = "For --trim: max alpha (sources with transparency) or per-channel distance to the corner color (opaque sources) treated as background.",
+            defaultValue = "8"
+    )
+    public int trimTolerance = 8;
+
     /**
      * Optional: extract only a circular region from the source image before tiling.
      * Format: "cx,cy,r" where each value is either an integer in pixels (e.g. 512)
@@ -169,6 +216,27 @@ public class TileA4 implements Callable<Integer> {
     )
     public boolean mirrorVertical;
 
+    // ---- Aperçu rapide ----
+
+    @CommandLine.Option(
+            names = {"--preview"},
+            description = "Only compute the grid and write a low-resolution PNG thumbnail next to the output (<output>.preview.png)."
+    )
+    public boolean preview;
+
+    @CommandLine.Option(
+            names = {"--preview-dpi"},
+            description = "Resolution of the preview thumbnail.",
+            defaultValue = "50"
+    )
+    public int previewDpi = 50;
+
+    @CommandLine.Option(
+            names = {"--progressive"},
+            description = "Write the preview thumbnail first, then refine to the full --dpi output (rendered in the background from the same layout)."
+    )
+    public boolean progressive;
+
     // ---- Multi-inputs : un logo par ligne ----
 
     @CommandLine.Option(
@@ -181,63 +249,25 @@ public class TileA4 implements Callable<Integer> {
     @CommandLine.ParentCommand
     protected ImageToolBox parent;
 
-    // A4 in mm
-    private static final double A4_W_MM = 210.0;
-    private static final double A4_H_MM = 297.0;
+    // ---- Hooks pour un appel "in-process" (GUI) : pas des options CLI ----
 
-    // ---- Utils conversions ----
-
-    private static int mmToPx(double mm, int dpi) {
-        return (int) Math.round(mm / 25.4 * dpi);
+    /** Progress callback: stage name ("decode", "prepare", "render", "encode"), units done, total units. */
+    @FunctionalInterface
+    public interface ProgressListener {
+        void onProgress(String stage, int done, int total);
     }
 
-    private static int cmToPx(double cm, int dpi) {
-        return mmToPx(cm * 10.0, dpi);
-    }
+    /** Optional progress callback, called from the worker thread. */
+    public ProgressListener progress;
 
-    /**
-     * Parse a simple color spec.
-     * Supported values:
-     *  - "white", "black"
-     *  - "transparent"
-     *  - Hex: #RRGGBB or #AARRGGBB (leading # optional)
-     */
-    private static Color parseColorSpec(String spec, Color fallback) {
-        if (spec == null) return fallback;
-        String s = spec.trim();
-        if (s.isEmpty()) return fallback;
-
-        String sl = s.toLowerCase();
-        switch (sl) {
-            case "white":
-                return Color.WHITE;
-            case "black":
-                return Color.BLACK;
-            case "transparent":
-                return new Color(0, 0, 0, 0);
-            case "none":
-                return null;
-            default:
-                break;
-        }
+    /** Optional cooperative cancellation flag, polled between sources and between tiles. */
+    public BooleanSupplier cancelled;
 
-        // Hex forms
-        if (sl.startsWith("#")) sl = sl.substring(1);
-        if (sl.matches("[0-9a-f]{6}")) {
-            int rgb = Integer.parseInt(sl, 16);
-            return new Color((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF, 0xFF);
-        }
-        if (sl.matches("[0-9a-f]{8}")) {
-            int argb = (int) Long.parseLong(sl, 16);
-            int a = (argb >> 24) & 0xFF;
-            int r = (argb >> 16) & 0xFF;
-            int g = (argb >> 8) & 0xFF;
-            int b = argb & 0xFF;
-            return new Color(r, g, b, a);
-        }
+    /** Where status messages go (System.out for the CLI). */
+    public PrintStream out = System.out;
 
-        throw new IllegalArgumentException("Invalid color spec: '" + spec + "'. Use white|black|transparent|none|#RRGGBB|#AARRGGBB.");
-    }
+    /** Memoized stages to reuse between runs (the GUI keeps one per session); a fresh one is used when null. */
+    public TilePipeline pipeline;
 
     /**
      * Flatten (composite) an image onto a solid background.
@@ -249,8 +279,7 @@ public class TileA4 implements Callable<Integer> {
         int h = src.getHeight();
 
         boolean bgHasAlpha = bg.getAlpha() < 255;
-        int type = bgHasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
-        BufferedImage out = new BufferedImage(w, h, type);
+        BufferedImage out = PixelPool.image(w, h, bgHasAlpha);
         Graphics2D g = out.createGraphics();
         try {
             g.setComposite(AlphaComposite.Src);
@@ -273,52 +302,56 @@ public class TileA4 implements Callable<Integer> {
         if (iterations <= 0) return src;
         int w = src.getWidth();
         int h = src.getHeight();
-        BufferedImage cur = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g0 = cur.createGraphics();
-        try {
-            g0.setComposite(AlphaComposite.Src);
-            g0.drawImage(src, 0, 0, null);
-        } finally {
-            g0.dispose();
+
+        // Deux tampons du pool en alternance (ping-pong) au lieu d'une image neuve par itération
+        int[] cur = PixelPool.acquireInts(w * h);
+        int[] nxt = PixelPool.acquireInts(w * h);
+        Pixels.RowReader rr = new Pixels.RowReader(src);
+        for (int y = 0; y < h; y++) {
+            System.arraycopy(rr.row(y), rr.offset(y), cur, y * w, w);
         }
 
         for (int it = 0; it < iterations; it++) {
-            BufferedImage nxt = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-            for (int y = 0; y < h; y++) {
-                for (int x = 0; x < w; x++) {
-                    int argb = cur.getRGB(x, y);
-                    int a = (argb >>> 24) & 0xFF;
-                    if (a != 0) {
-                        nxt.setRGB(x, y, argb);
-                        continue;
-                    }
+            final int[] in = cur;
+            final int[] out = nxt;
+            Parallel.forBands(h, 16, (y0, y1) -> {
+                for (int y = y0; y < y1; y++) {
+                    for (int x = 0; x < w; x++) {
+                        int argb = in[y * w + x];
+                        int a = (argb >>> 24) & 0xFF;
+                        if (a != 0) {
+                            out[y * w + x] = argb;
+                            continue;
+                        }
 
-                    int best = argb;
-                    int bestA = 0;
-                    for (int dy = -1; dy <= 1; dy++) {
-                        int yy = y + dy;
-                        if (yy < 0 || yy >= h) continue;
-                        for (int dx = -1; dx <= 1; dx++) {
-                            int xx = x + dx;
-                            if (xx < 0 || xx >= w) continue;
-                            if (dx == 0 && dy == 0) continue;
-                            int n = cur.getRGB(xx, yy);
-                            int na = (n >>> 24) & 0xFF;
-                            if (na > bestA) {
-                                bestA = na;
-                                best = n;
+                        int best = argb;
+                        int bestA = 0;
+                        for (int dy = -1; dy <= 1; dy++) {
+                            int yy = y + dy;
+                            if (yy < 0 || yy >= h) continue;
+                            for (int dx = -1; dx <= 1; dx++) {
+                                int xx = x + dx;
+                                if (xx < 0 || xx >= w) continue;
+                                if (dx == 0 && dy == 0) continue;
+                                int n = in[yy * w + xx];
+                                int na = (n >>> 24) & 0xFF;
+                                if (na > bestA) {
+                                    bestA = na;
+                                    best = n;
+                                }
                             }
                         }
-                    }
 
-                    // Keep alpha=0 but borrow RGB from the most opaque neighbor
-                    int rgb = best & 0x00FFFFFF;
-                    nxt.setRGB(x, y, rgb); // alpha = 0
+                        // Keep alpha=0 but borrow RGB from the most opaque neighbor
+                        out[y * w + x] = best & 0x00FFFFFF; // alpha = 0
+                    }
                 }
-            }
-            cur = nxt;
+            });
+            cur = out;
+            nxt = in;
         }
-        return cur;
+        PixelPool.release(nxt);
+        return Pixels.wrap(cur, w, h, true);
     }
 
     private static int parseComponent(String token, int minDim) {
@@ -356,18 +389,23 @@ public class TileA4 implements Callable<Integer> {
         int h = src.getHeight();
 
         boolean hasAlpha = src.getColorModel() != null && src.getColorModel().hasAlpha();
-        BufferedImage out = new BufferedImage(w, h, hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        BufferedImage out = PixelPool.image(w, h, hasAlpha);
+        int[] dst = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
 
+        Pixels.RowReader rr = new Pixels.RowReader(src);
+        float[] hsb = new float[3];
         for (int y = 0; y < h; y++) {
+            int[] row = rr.row(y);
+            int off = rr.offset(y);
             for (int x = 0; x < w; x++) {
-                int rgb = src.getRGB(x, y);
+                int rgb = row[off + x];
 
                 int a = (rgb >>> 24) & 0xFF;
                 int r = (rgb >> 16) & 0xFF;
                 int g = (rgb >> 8) & 0xFF;
                 int b = (rgb) & 0xFF;
 
-                float[] hsb = Color.RGBtoHSB(r, g, b, null);
+                Color.RGBtoHSB(r, g, b, hsb);
 
                 // Si la couleur est vraiment très pastel (faible saturation), on booste un peu plus.
                 double factor = saturationFac;
@@ -378,7 +416,7 @@ public class TileA4 implements Callable<Integer> {
                 hsb[1] = (float) Math.min(1.0, hsb[1] * factor);
 
                 int newRgb = Color.HSBtoRGB(hsb[0], hsb[1], hsb[2]) & 0x00FFFFFF;
-                out.setRGB(x, y, (a << 24) | newRgb);
+                dst[y * w + x] = (a << 24) | newRgb;
             }
         }
 
@@ -389,32 +427,35 @@ public class TileA4 implements Callable<Integer> {
         if (!horizontal && !vertical) {
             return src;
         }
+        // Garde la transparence (PNG) ; copie dans un tampon du pool
+        return Pixels.mirror(src, horizontal, vertical);
+    }
 
-        int w = src.getWidth();
-        int h = src.getHeight();
-
-        // On conserve le type d'image d'origine (pour garder la transparence si c'est du PNG)
-        // Si le type est inconnu (0), on utilise ARGB par sécurité
-        int type = (src.getType() == 0) ? BufferedImage.TYPE_INT_ARGB : src.getType();
-
-        BufferedImage out = new BufferedImage(w, h, type);
+    // Marge de sécurité sur l'empreinte : la réduction finale à la taille exacte se fait sur le tampon (stamp).
+    static final double FOOTPRINT_OVERSAMPLE = 1.25;
 
-        for (int y = 0; y < h; y++) {
-            for (int x = 0; x < w; x++) {
-                // getRGB récupère la couleur complète (y compris transparence) en un seul nombre
-                int rgb = src.getRGB(x, y);
-
-                int targetX = horizontal ? (w - 1 - x) : x;
-                int targetY = vertical   ? (h - 1 - y) : y;
+    /** Pixel size a source needs before the per-pixel stages: its drawn size on the page plus a safety margin. */
+    static int[] sourceFootprint(int srcW, int srcH, TileLayout layout, double renderScale) {
+        int[] draw = layout.drawSize(srcW, srcH);
+        double f = renderScale * FOOTPRINT_OVERSAMPLE;
+        return new int[]{(int) Math.ceil(draw[0] * f), (int) Math.ceil(draw[1] * f)};
+    }
 
-                out.setRGB(targetX, targetY, rgb);
+    // Préparation d'une source : rognage + crop + (réduction) + miroir + fond + boost couleurs
+    BufferedImage prepareSource(BufferedImage src0, TileLayout layout, double renderScale) {
+        // Rognage du padding : vue getSubimage (sans copie), les % de --src-circle portent sur le contenu
+        if (trim) {
+            BufferedImage trimmed = Trim.trim(src0, Math.max(0, trimTolerance));
+            if (trimmed != src0) {
+                long before = (long) src0.getWidth() * src0.getHeight();
+                long after = (long) trimmed.getWidth() * trimmed.getHeight();
+                out.printf("Trim: %dx%d -> %dx%d (%d%% of the pixels removed)%n",
+                        src0.getWidth(), src0.getHeight(), trimmed.getWidth(), trimmed.getHeight(),
+                        Math.round(100.0 * (before - after) / before));
+                src0 = trimmed;
             }
         }
-        return out;
-    }
 
-    // Préparation d'une source : crop + miroir + boost couleurs
-    private BufferedImage prepareSource(BufferedImage src0) {
         BufferedImage src = src0;
 
         if (srcCircleSpec != null && !srcCircleSpec.isBlank()) {
@@ -429,238 +470,348 @@ public class TileA4 implements Callable<Integer> {
             src = cropCircleToSquare(src0, cx, cy, r);
         }
 
-        src = mirrorImage(src, mirrorHorizontal, mirrorVertical);
+        // On réduit la source à son empreinte sur la page AVANT le travail pixel par pixel (miroir, fond, boost) :
+        // un logo 6000x6000 pour une tuile de 3.2 cm à 300 dpi n'a besoin que d'environ 378x378 pixels.
+        int[] footprint = sourceFootprint(src.getWidth(), src.getHeight(), layout, renderScale);
+        src = Resampler.progressiveDownscale(src, footprint[0], footprint[1]);
+
+        // Les étapes suivantes copient dans des tampons du pool : chaque intermédiaire y retourne dès qu'il est remplacé
+        BufferedImage next = mirrorImage(src, mirrorHorizontal, mirrorVertical);
+        boolean pooled = next != src;
+        src = next;
 
         // Optionnel : flatten sur un fond (ex: blanc) AVANT scaling (idéal pour impression/transfert et pour éviter les halos).
         // Si "none" -> on garde l'alpha.
-        Color logoBg = parseColorSpec(logoBackgroundSpec, null);
+        Color logoBg = Colors.parse(logoBackgroundSpec, null);
         if (logoBg != null) {
-            src = flattenOnBackground(src, logoBg);
+            next = flattenOnBackground(src, logoBg);
         } else if (alphaBleed) {
             // Optionnel : "alpha bleed" pour réduire les franges lors du redimensionnement tout en gardant l'alpha.
-            src = alphaBleed(src, Math.max(0, alphaBleedIters));
+            next = alphaBleed(src, Math.max(0, alphaBleedIters));
         }
+        pooled = advance(src, next, pooled);
+        src = next;
 
         // Nouveau : boost de couleurs si demandé
         if (boostColors > 1.0) {
-            src = boostColors(src, boostColors);
+            next = boostColors(src, boostColors);
+            advance(src, next, pooled);
+            src = next;
         }
 
         return src;
     }
 
+    // Rend l'intermédiaire remplacé au pool s'il en venait ; true si le résultat vient du pool
+    private static boolean advance(BufferedImage prev, BufferedImage next, boolean prevPooled) {
+        if (next == prev) return prevPooled;
+        if (prevPooled) PixelPool.release(prev);
+        return true;
+    }
 
-    // Écriture PDF A4 natif à partir de l'image de page
-    private void writePdfA4(BufferedImage pageImage, File outputFile) throws Exception {
-        try (PDDocument doc = new PDDocument()) {
-            PDPage pdfPage = new PDPage(PDRectangle.A4);
-            doc.addPage(pdfPage);
+    void checkCancelled() {
+        if ((cancelled != null && cancelled.getAsBoolean()) || Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Generation cancelled.");
+        }
+    }
 
-            PDImageXObject pdImage = LosslessFactory.createFromImage(doc, pageImage);
+    void report(String stage, int done, int total) {
+        if (progress != null) progress.onProgress(stage, done, total);
+    }
 
-            try (PDPageContentStream cs = new PDPageContentStream(doc, pdfPage)) {
-                float pageW = pdfPage.getMediaBox().getWidth();
-                float pageH = pdfPage.getMediaBox().getHeight();
+    // ---- API "bibliothèque" (utilisée par la commande et réutilisable hors CLI) ----
 
-                float imgW = pdImage.getWidth();
-                float imgH = pdImage.getHeight();
+    boolean isRect() {
+        return shape != null && shape.equalsIgnoreCase("rect");
+    }
 
-                float scale = Math.min(pageW / imgW, pageH / imgH);
-                float drawW = imgW * scale;
-                float drawH = imgH * scale;
+    /** Grid geometry for the current options, computed analytically at {@code --dpi}. */
+    public TileLayout layout() {
+        return isRect()
+                ? TileLayout.compute(true, rectWidthCm, rectHeightCm, gapMm, marginMm, dpi)
+                : TileLayout.compute(false, diameterCm, diameterCm, gapMm, marginMm, dpi);
+    }
 
-                float x = (pageW - drawW) / 2f;
-                float y = (pageH - drawH) / 2f;
+    /** The logos given by --inputs, or the main -i input. */
+    public List<File> sourceFiles(IOOptions io) {
+        if (!inputFiles.isEmpty()) {
+            return inputFiles;
+        }
+        if (io == null || io.inputFile == null) {
+            throw new IllegalStateException("No input images provided (check -i/--input or --inputs).");
+        }
+        return List.of(io.inputFile);
+    }
 
-                cs.drawImage(pdImage, x, y, drawW, drawH);
-            }
+    /**
+     * Draws the tiles on an A4 page.
+     *
+     * @param sources     prepared sources (or stamps already scaled to the drawn size)
+     * @param renderScale 1.0 for the full-resolution page, &lt; 1.0 for a thumbnail of the same layout
+     */
+    public BufferedImage renderPage(List<BufferedImage> sources, TileLayout layout, double renderScale) {
+        int nbLogos = sources.size();
+        if (nbLogos == 0) {
+            throw new IllegalStateException("No input images provided.");
+        }
 
-            doc.save(outputFile);
+        int pageW = layout.pageW();
+        int pageH = layout.pageH();
+        int outW = (renderScale == 1.0) ? pageW : Math.max(1, (int) Math.round(pageW * renderScale));
+        int outH = (renderScale == 1.0) ? pageH : Math.max(1, (int) Math.round(pageH * renderScale));
+
+        Color pageBg = Colors.parse(pageBackgroundSpec, Color.WHITE);
+        if (pageBg == null) {
+            // Treat "none" as fully transparent (even if we don't advertise it)
+            pageBg = new Color(0, 0, 0, 0);
         }
-    }
+        boolean pageHasAlpha = pageBg.getAlpha() < 255;
+        int pageType = pageHasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
 
-    @Override
-    public Integer call() {
+        BufferedImage page = new BufferedImage(outW, outH, pageType);
+        Graphics2D g = page.createGraphics();
         try {
-            Images.io = parent.io;
+            // Fill background (including alpha correctly)
+            g.setComposite(AlphaComposite.Src);
+            g.setColor(pageBg);
+            g.fillRect(0, 0, outW, outH);
+            g.setComposite(AlphaComposite.SrcOver);
 
-            // --- 1) Charger les sources ---
-            List<BufferedImage> sources = new ArrayList<>();
+            // Paramètres de qualité
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
 
-            if (!inputFiles.isEmpty()) {
-                for (File f : inputFiles) {
-                    BufferedImage img = ImageIO.read(f);
-                    if (img == null) {
-                        throw new IllegalStateException("Cannot read image: " + f);
-                    }
-                    sources.add(prepareSource(img));
-                }
-            } else {
-                BufferedImage src0 = Images.readImage();
-                if (src0 == null) {
-                    throw new IllegalStateException("Input image is null (check -i/--input or --inputs).");
-                }
-                sources.add(prepareSource(src0));
+            // Aperçu : même géométrie, dessinée à travers une transformation
+            if (renderScale != 1.0) {
+                g.scale((double) outW / pageW, (double) outH / pageH);
             }
 
-            if (sources.isEmpty()) {
-                throw new IllegalStateException("No input images provided.");
-            }
+            boolean rect = layout.rect();
+            int tileW = layout.tileW();
+            int tileH = layout.tileH();
+            int cols = layout.cols();
+            int rows = layout.rows();
+
+            Shape oldClip = g.getClip();
+
+            String cycle = (cycleMode == null) ? "row" : cycleMode.trim().toLowerCase();
+            Random rnd = cycle.equals("random") ? new Random(randomSeed) : null;
+
+            int total = layout.tiles();
+            for (int row = 0; row < rows; row++) {
+                for (int col = 0; col < cols; col++) {
+                    checkCancelled();
+                    report("render", row * cols + col, total);
+
+                    int srcIndex;
+                    switch (cycle) {
+                        case "row":
+                            srcIndex = row % nbLogos;
+                            break;
+                        case "tile":
+                            srcIndex = (row * cols + col) % nbLogos;
+                            break;
+                        case "random":
+                            srcIndex = rnd.nextInt(nbLogos);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Invalid --cycle-mode: '" + cycleMode + "'. Use row|tile|random.");
+                    }
+                    BufferedImage src = sources.get(srcIndex);
 
-            // CHANGEMENT 1 : On supprime le bloc "if (sources.size() > 7)..."
-            // On garde juste la taille pour le modulo plus tard
-            int nbLogos = sources.size();
+                    int x = layout.tileX(col);
+                    int y = layout.tileY(row);
 
-            // --- 2) Créer la page A4 en pixels ---
-            int pageW = mmToPx(A4_W_MM, dpi);
-            int pageH = mmToPx(A4_H_MM, dpi);
+                    if (rect) {
+                        g.setClip(x, y, tileW, tileH);
+                    } else {
+                        if (!noMask) {
+                            Shape circle = new Ellipse2D.Double(x, y, tileW, tileH);
+                            g.setClip(circle);
+                        } else {
+                            g.setClip(x, y, tileW, tileH);
+                        }
+                    }
 
-            Color pageBg = parseColorSpec(pageBackgroundSpec, Color.WHITE);
-            if (pageBg == null) {
-                // Treat "none" as fully transparent (even if we don't advertise it)
-                pageBg = new Color(0, 0, 0, 0);
-            }
-            boolean pageHasAlpha = pageBg.getAlpha() < 255;
-            int pageType = pageHasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
-
-            BufferedImage page = new BufferedImage(pageW, pageH, pageType);
-            Graphics2D g = page.createGraphics();
-            try {
-                // Fill background (including alpha correctly)
-                g.setComposite(AlphaComposite.Src);
-                g.setColor(pageBg);
-                g.fillRect(0, 0, pageW, pageH);
-                g.setComposite(AlphaComposite.SrcOver);
-
-                // Paramètres de qualité
-                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-
-                int marginPx = mmToPx(marginMm, dpi);
-                int gapPx = mmToPx(gapMm, dpi);
-
-                boolean rect = shape != null && shape.equalsIgnoreCase("rect");
-
-                int tileW;
-                int tileH;
-
-                if (rect) {
-                    tileW = cmToPx(rectWidthCm, dpi);
-                    tileH = cmToPx(rectHeightCm, dpi);
-                } else {
-                    tileW = tileH = cmToPx(diameterCm, dpi);
-                }
+                    int[] draw = layout.drawSize(src.getWidth(), src.getHeight());
+                    int drawW = draw[0];
+                    int drawH = draw[1];
 
-                int usableW = pageW - 2 * marginPx;
-                int usableH = pageH - 2 * marginPx;
+                    int dx = x + (tileW - drawW) / 2;
+                    int dy = y + (tileH - drawH) / 2;
 
-                int stepX = tileW + gapPx;
-                int stepY = tileH + gapPx;
+                    g.drawImage(src, dx, dy, drawW, drawH, null);
+                    g.setClip(oldClip);
+                }
+            }
 
-                int cols = Math.max(1, (usableW + gapPx) / stepX);
+            report("render", total, total);
 
-                // CHANGEMENT 2 : On calcule le max de lignes qui rentrent physiquement
-                int maxRowsThatFit = Math.max(1, (usableH + gapPx) / stepY);
+            // (Le code pour les repères de coupe reste identique ici)
+            g.setColor(new Color(0, 0, 0, 40));
+        } finally {
+            g.dispose();
+        }
+        return page;
+    }
 
-                // CHANGEMENT 3 : Le nombre de lignes à dessiner est le max possible,
-                // on ne se limite plus à "nbLogos".
-                int rows = maxRowsThatFit;
+    // Écriture PDF A4 natif à partir de l'image de page
+    byte[] encodePdfA4(BufferedImage pageImage) throws Exception {
+        PdfImages.Encoding encoding = PdfImages.Encoding.parse(pdfImageEncoding);
+        if (jpegQuality < 0f || jpegQuality > 1f) {
+            throw new IllegalArgumentException("Invalid --jpeg-quality: " + jpegQuality + " (expected 0.0 - 1.0).");
+        }
 
-                if (cols <= 0 || rows <= 0) {
-                    throw new IllegalStateException("Nothing fits on the page. Reduce logo size or margins/gaps.");
-                }
+        long t = Metrics.start();
+        try (PDDocument doc = new PDDocument()) {
+            PDPage pdfPage = new PDPage(PDRectangle.A4);
+            doc.addPage(pdfPage);
 
-                int totalW = cols * tileW + (cols - 1) * gapPx;
-                int totalH = rows * tileH + (rows - 1) * gapPx;
-
-                int startX = marginPx + (usableW - totalW) / 2;
-                int startY = marginPx + (usableH - totalH) / 2;
-
-                Shape oldClip = g.getClip();
-
-                // --- 3) Dessin ---
-                String cycle = (cycleMode == null) ? "row" : cycleMode.trim().toLowerCase();
-                Random rnd = cycle.equals("random") ? new Random(randomSeed) : null;
-
-                for (int row = 0; row < rows; row++) {
-                    for (int col = 0; col < cols; col++) {
-                        int srcIndex;
-                        switch (cycle) {
-                            case "row":
-                                srcIndex = row % nbLogos;
-                                break;
-                            case "tile":
-                                srcIndex = (row * cols + col) % nbLogos;
-                                break;
-                            case "random":
-                                srcIndex = rnd.nextInt(nbLogos);
-                                break;
-                            default:
-                                throw new IllegalArgumentException("Invalid --cycle-mode: '" + cycleMode + "'. Use row|tile|random.");
-                        }
-                        BufferedImage src = sources.get(srcIndex);
+            PdfImages.Encoded encoded = PdfImages.encode(doc, pageImage, encoding, jpegQuality);
+            PDImageXObject pdImage = encoded.image();
 
-                        int x = startX + col * (tileW + gapPx);
-                        int y = startY + row * (tileH + gapPx);
+            try (PDPageContentStream cs = new PDPageContentStream(doc, pdfPage)) {
+                float pageW = pdfPage.getMediaBox().getWidth();
+                float pageH = pdfPage.getMediaBox().getHeight();
 
-                        if (rect) {
-                            g.setClip(x, y, tileW, tileH);
-                        } else {
-                            if (!noMask) {
-                                Shape circle = new Ellipse2D.Double(x, y, tileW, tileH);
-                                g.setClip(circle);
-                            } else {
-                                g.setClip(x, y, tileW, tileH);
-                            }
-                        }
+                float imgW = pdImage.getWidth();
+                float imgH = pdImage.getHeight();
 
-                        double scale;
-                        if (rect) {
-                            scale = Math.min(
-                                    (double) tileW / src.getWidth(),
-                                    (double) tileH / src.getHeight()
-                            );
-                        } else {
-                            scale = (double) tileW / Math.min(src.getWidth(), src.getHeight());
-                        }
+                float scale = Math.min(pageW / imgW, pageH / imgH);
+                float drawW = imgW * scale;
+                float drawH = imgH * scale;
 
-                        int drawW = (int) Math.round(src.getWidth() * scale);
-                        int drawH = (int) Math.round(src.getHeight() * scale);
+                float x = (pageW - drawW) / 2f;
+                float y = (pageH - drawH) / 2f;
 
-                        int dx = x + (tileW - drawW) / 2;
-                        int dy = y + (tileH - drawH) / 2;
+                cs.drawImage(pdImage, x, y, drawW, drawH);
+            }
 
-                        g.drawImage(src, dx, dy, drawW, drawH, null);
-                        g.setClip(oldClip);
-                    }
-                }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            doc.save(bytes);
+            Metrics.stop(Metrics.Stage.PDF, t);
 
-                // (Le code pour les repères de coupe reste identique ici)
-                g.setColor(new Color(0, 0, 0, 40));
-                int markerLen = mmToPx(1, dpi);
-                // ... (reste du code de dessin des lignes inchangé)
+            if (encoded.encoding() != encoding) {
+                out.printf("More than 256 colors, '%s' fell back to '%s'.%n", encoding.label(), encoded.encoding().label());
+            }
+            out.printf("PDF image encoding: %s in %d ms, image stream %d bytes, PDF file %d bytes%n",
+                    encoded.encoding().label(), encoded.millis(), encoded.encodedBytes(), bytes.size());
+            return bytes.toByteArray();
+        }
+    }
 
-                System.out.printf("Grid: %d cols x %d rows = %d tiles (cycling through %d source logos)%n",
-                        cols, rows, cols * rows, nbLogos);
-            } finally {
-                g.dispose();
+    private static File previewFile(File output) {
+        String name = output.getName();
+        int dot = name.lastIndexOf('.');
+        String base = (dot > 0) ? name.substring(0, dot) : name;
+        return new File(output.getAbsoluteFile().getParentFile(), base + ".preview.png");
+    }
+
+    /**
+     * Runs the whole generation with typed options (no command line parsing), e.g. from the GUI.
+     * Throws {@link CancellationException} when {@link #cancelled} becomes true or the thread is interrupted.
+     */
+    public void run(IOOptions io) throws Exception {
+        TilePipeline p = (pipeline != null) ? pipeline : new TilePipeline();
+        ExecutorService background = null;
+        try {
+            File output = io.outputFile;
+            if (output == null) {
+                throw new IllegalArgumentException("Output file is null.");
+            }
+            List<File> inputs = sourceFiles(io);
+
+            // --- 1) Géométrie (analytique, instantanée) ---
+            TileLayout layout = p.layout(this);
+            out.printf("Grid: %d cols x %d rows = %d tiles (cycling through %d source logos)%n",
+                    layout.cols(), layout.rows(), layout.tiles(), inputs.size());
+
+            // --- 2) Aperçu + rendu final (éventuellement en arrière-plan), mêmes étages mémoïsés ---
+            Future<TilePipeline.Encoded> full = null;
+            if (progressive) {
+                background = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "TileA4-Refine");
+                    t.setDaemon(true);
+                    return t;
+                });
+                full = background.submit(() -> p.encode(this, inputs, io));
             }
 
-            // --- 4) Sortie ---
-            File output = parent.io.outputFile;
-            String outName = output.getName().toLowerCase();
+            if (preview || progressive) {
+                long t0 = System.nanoTime();
+                double thumbScale = Math.min(1.0, (double) previewDpi / layout.dpi());
+                BufferedImage thumb = p.render(this, inputs, thumbScale);
+                File thumbFile = previewFile(output);
+                ImageIO.write(thumb, "png", thumbFile);
+                out.printf("Preview %dx%d written to %s in %d ms%n",
+                        thumb.getWidth(), thumb.getHeight(), thumbFile.getPath(), (System.nanoTime() - t0) / 1_000_000L);
+                if (!progressive) {
+                    out.println("Stage cache (hits/misses): " + p.statsLine());
+                    return;
+                }
+            }
 
-            if (outName.endsWith(".pdf")) {
-                writePdfA4(page, output);
-                System.out.println("A4 PDF generated. Print at 100% scale.");
+            TilePipeline.Encoded encoded;
+            if (full != null) {
+                try {
+                    encoded = full.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception cause) throw cause;
+                    throw e;
+                }
             } else {
-                Images.writeImage(page);
-                System.out.println("Image generated. Print at 100% scale.");
+                encoded = p.encode(this, inputs, io);
             }
 
+            // --- 3) Sortie ---
+            checkCancelled();
+            Images.writeBytes(encoded.bytes(), output);
+            out.println(("pdf".equals(encoded.kind()) ? "A4 PDF generated." : "Image generated.") + " Print at 100% scale.");
+            out.println("Stage cache (hits/misses): " + p.statsLine());
+        } finally {
+            if (background != null) background.shutdownNow();
+        }
+    }
+
+    /** The preview modes also write {@code <output>.preview.png}: not served from the result cache. */
+    @Override
+    public boolean cacheable() {
+        return !preview && !progressive;
+    }
+
+    /**
+     * Page raster + its encoding copy; per distinct source, the decoded image (subsampled like the pipeline does)
+     * and a few copies at its footprint (downscale, mirror, flatten or bleed, boost, stamp).
+     */
+    @Override
+    public long memoryEstimate() {
+        TileLayout l = layout();
+        long bytes = 2 * ARGB * l.pageW() * l.pageH();
+        boolean cropped = trim || (srcCircleSpec != null && !srcCircleSpec.isBlank());
+        for (File f : new LinkedHashSet<>(sourceFiles(parent.io))) {
+            Images.ImageInfo info = Images.probe(f);
+            int[] fp = sourceFootprint(info.width(), info.height(), l, 1.0);
+            int s = cropped ? 1 : Images.subsampling(info.width(), info.height(),
+                    fp[0] * TilePipeline.DECODE_HEADROOM, fp[1] * TilePipeline.DECODE_HEADROOM);
+            bytes += ARGB * (info.width() / s) * (info.height() / s);
+            bytes += 5 * ARGB * fp[0] * fp[1];
+        }
+        return bytes;
+    }
+
+    @Override
+    public Integer call() {
+        try {
+            if (Images.isStdio(parent.io.outputFile)) {
+                out = System.err;
+            }
+            run(parent.io);
             return 0;
 
+        } catch (CancellationException e) {
+            System.err.println("[tileA4] " + e.getMessage());
+            return 1;
         } catch (Exception e) {
             System.err.println("[tileA4] " + e.getMessage());
             e.printStackTrace();
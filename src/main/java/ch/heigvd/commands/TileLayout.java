@@ -0,0 +1,102 @@
+package ch.heigvd.commands;
+
+/**
+ * Geometry of a tiled A4 page, in pixels at {@code dpi}.
+ * Computed analytically (nothing is drawn), so it is cheap enough to be recomputed on every parameter change,
+ * and the same instance can then be used for the preview and for the final render.
+ */
+public record TileLayout(
+        int dpi,
+        int pageW, int pageH,
+        boolean rect,
+        int tileW, int tileH,
+        int gapPx, int marginPx,
+        int cols, int rows,
+        int startX, int startY
+) {
+
+    // A4 in mm
+    public static final double A4_W_MM = 210.0;
+    public static final double A4_H_MM = 297.0;
+
+    public static int mmToPx(double mm, int dpi) {
+        return (int) Math.round(mm / 25.4 * dpi);
+    }
+
+    public static int cmToPx(double cm, int dpi) {
+        return mmToPx(cm * 10.0, dpi);
+    }
+
+    /**
+     * @param rect     true for rectangular tiles, false for circles
+     * @param tileWcm  tile width (the diameter for circles)
+     * @param tileHcm  tile height (ignored for circles)
+     */
+    public static TileLayout compute(boolean rect, double tileWcm, double tileHcm, double gapMm, double marginMm, int dpi) {
+        if (dpi <= 0) {
+            throw new IllegalArgumentException("Invalid --dpi: " + dpi);
+        }
+        int pageW = mmToPx(A4_W_MM, dpi);
+        int pageH = mmToPx(A4_H_MM, dpi);
+
+        int marginPx = mmToPx(marginMm, dpi);
+        int gapPx = mmToPx(gapMm, dpi);
+
+        int tileW;
+        int tileH;
+        if (rect) {
+            tileW = cmToPx(tileWcm, dpi);
+            tileH = cmToPx(tileHcm, dpi);
+        } else {
+            tileW = tileH = cmToPx(tileWcm, dpi);
+        }
+        if (tileW <= 0 || tileH <= 0) {
+            throw new IllegalArgumentException("Logo size is too small for " + dpi + " dpi.");
+        }
+
+        int usableW = pageW - 2 * marginPx;
+        int usableH = pageH - 2 * marginPx;
+
+        int stepX = tileW + gapPx;
+        int stepY = tileH + gapPx;
+
+        int cols = Math.max(1, (usableW + gapPx) / stepX);
+        // On remplit la page : autant de lignes qu'il en rentre physiquement
+        int rows = Math.max(1, (usableH + gapPx) / stepY);
+
+        if (cols <= 0 || rows <= 0) {
+            throw new IllegalStateException("Nothing fits on the page. Reduce logo size or margins/gaps.");
+        }
+
+        int totalW = cols * tileW + (cols - 1) * gapPx;
+        int totalH = rows * tileH + (rows - 1) * gapPx;
+
+        int startX = marginPx + (usableW - totalW) / 2;
+        int startY = marginPx + (usableH - totalH) / 2;
+
+        return new TileLayout(dpi, pageW, pageH, rect, tileW, tileH, gapPx, marginPx, cols, rows, startX, startY);
+    }
+
+    public int tiles() {
+        return cols * rows;
+    }
+
+    public int tileX(int col) {
+        return startX + col * (tileW + gapPx);
+    }
+
+    public int tileY(int row) {
+        return startY + row * (tileH + gapPx);
+    }
+
+    /** Pixel size of the drawn logo for a source of the given size (cover for circles, fit for rectangles). */
+    public int[] drawSize(int srcW, int srcH) {
+        double scale;
+        if (rect) {
+            scale = Math.min((double) tileW / srcW, (double) tileH / srcH);
+        } else {
+            scale = (double) tileW / Math.min(srcW, srcH);
+        }
+        return new int[]{(int) Math.round(srcW * scale), (int) Math.round(srcH * scale)};
+    }
+}
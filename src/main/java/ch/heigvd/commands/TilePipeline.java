@@ -0,0 +1,425 @@
+package ch.heigvd.commands;
+
+import ch.heigvd.IOOptions;
+import ch.heigvd.util.Images;
+import ch.heigvd.util.Resampler;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * The tileA4 flow as explicit stages, each memoized on the parameters it depends on:
+ * <pre>
+ *   probe -> decode -> prepare -> stamp -> raster -> encode
+ *                          layout --^
+ * </pre>
+ * <ul>
+ *   <li>probe: file (path, size, mtime) -&gt; header only</li>
+ *   <li>decode: file + decode subsampling (from the probed size and the tile footprint)</li>
+ *   <li>prepare: decoded source + trim/crop/mirror/background/bleed/boost options + tile footprint</li>
+ *   <li>stamp: prepared source scaled once to the drawn size of a tile</li>
+ *   <li>layout: shape, tile size, gap, margin, dpi</li>
+ *   <li>raster: layout + stamps + cycling/mask/page background</li>
+ *   <li>encode: raster + output format/PDF encoding options</li>
+ * </ul>
+ * Changing only {@code --gap-mm} therefore re-runs layout, raster and encode, but not decode/prepare/stamp.
+ * A pipeline instance is meant to live as long as the session (the GUI keeps one); the CLI uses a fresh one per run.
+ * Stages are thread-safe; concurrent requests for the same key share one computation.
+ * With several inputs, sources are decoded and prepared concurrently (see {@link #preload}).
+ */
+public final class TilePipeline {
+
+    /** Hit/miss counters of one stage. */
+    public record StageStats(String stage, long hits, long misses) {
+        @Override
+        public String toString() {
+            return stage + " " + hits + "/" + misses;
+        }
+    }
+
+    /** Encoded output (PDF or image file content). */
+    public record Encoded(byte[] bytes, String kind) {}
+
+    // ---- Clés des étages ----
+
+    record FileKey(String path, long length, long lastModified) {
+        static FileKey of(File f) {
+            // Entrée standard : lue une seule fois par commande, "-" suffit comme clé
+            if (Images.isStdio(f)) return new FileKey(Images.STDIO, 0, 0);
+            return new FileKey(f.getAbsolutePath(), f.length(), f.lastModified());
+        }
+    }
+
+    // subsampling : facteur entier appliqué au décodage (1 = pleine résolution)
+    record DecodeKey(FileKey file, int subsampling) {}
+
+    record PrepareKey(DecodeKey source, boolean trim, int trimTolerance, String srcCircle, boolean mirrorH, boolean mirrorV,
+                      String logoBackground, boolean alphaBleed, int alphaBleedIters, double boost,
+                      // La source est réduite à son empreinte sur la page avant préparation
+                      Footprint footprint) {}
+
+    record Footprint(boolean rect, int tileW, int tileH, double renderScale) {}
+
+    record StampKey(PrepareKey prepared, int width, int height) {}
+
+    record LayoutKey(boolean rect, double tileWcm, double tileHcm, double gapMm, double marginMm, int dpi) {}
+
+    record RasterKey(TileLayout layout, List<StampKey> stamps, String cycleMode, long seed, boolean noMask,
+                     String pageBackground, double renderScale) {}
+
+    record EncodeKey(RasterKey raster, String kind, String pdfEncoding, float jpegQuality, String palette) {}
+
+    // ---- Étages ----
+
+    /** Decoded sources are kept at least this many times larger than their footprint. */
+    static final int DECODE_HEADROOM = 2;
+
+    /**
+     * Heap kept by the decode stage. With --trim or --src-circle sources are decoded at full resolution, and the GUI
+     * keeps its pipeline for the whole session: the count limit alone would let 32 large logos pile up.
+     */
+    static final long DECODE_MAX_BYTES = Math.max(64L << 20, Runtime.getRuntime().maxMemory() / 4);
+
+    // Assez grand pour une planche de 20-30 logos différents (sinon les clés de rendu se recalculent en boucle).
+    private final Stage<FileKey, Images.ImageInfo> probe = new Stage<>("probe", 64);
+    private final Stage<DecodeKey, BufferedImage> decode = new Stage<>("decode", 32, DECODE_MAX_BYTES, TilePipeline::bytes);
+    private final Stage<PrepareKey, BufferedImage> prepare = new Stage<>("prepare", 64);
+    private final Stage<StampKey, BufferedImage> stamp = new Stage<>("stamp", 64);
+    private final Stage<LayoutKey, TileLayout> layout = new Stage<>("layout", 8);
+    private final Stage<RasterKey, BufferedImage> raster = new Stage<>("raster", 2);
+    private final Stage<EncodeKey, Encoded> encode = new Stage<>("encode", 2);
+
+    public List<StageStats> stats() {
+        List<StageStats> all = new ArrayList<>();
+        for (Stage<?, ?> s : List.of(probe, decode, prepare, stamp, layout, raster, encode)) {
+            all.add(s.stats());
+        }
+        return all;
+    }
+
+    /** One line summary, e.g. "decode 6/1, prepare 6/1, ...". */
+    public String statsLine() {
+        StringBuilder sb = new StringBuilder();
+        for (StageStats s : stats()) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    // ---- Calls ----
+
+    public TileLayout layout(TileA4 job) throws Exception {
+        boolean rect = job.isRect();
+        LayoutKey key = rect
+                ? new LayoutKey(true, job.rectWidthCm, job.rectHeightCm, job.gapMm, job.marginMm, job.dpi)
+                : new LayoutKey(false, job.diameterCm, job.diameterCm, job.gapMm, job.marginMm, job.dpi);
+        return layout.get(key, () -> TileLayout.compute(key.rect(), key.tileWcm(), key.tileHcm(), key.gapMm(), key.marginMm(), key.dpi()));
+    }
+
+    /**
+     * Renders the page (decode → prepare → stamp → raster).
+     *
+     * @param renderScale 1.0 for the full --dpi page, &lt; 1.0 for a thumbnail of the same layout
+     */
+    public BufferedImage render(TileA4 job, List<File> inputs, double renderScale) throws Exception {
+        preload(job, inputs, layout(job), renderScale);
+        RasterKey key = rasterKey(job, inputs, renderScale);
+        return raster.get(key, () -> {
+            List<BufferedImage> stamps = new ArrayList<>(key.stamps().size());
+            for (StampKey sk : key.stamps()) {
+                stamps.add(stampFor(job, sk, key.layout(), renderScale));
+            }
+            return job.renderPage(stamps, key.layout(), renderScale);
+        });
+    }
+
+    /**
+     * Full --dpi page encoded for {@code io.outputFile} (PDF if it ends with .pdf, otherwise an image format), with
+     * the --format/--colors of {@code io}.
+     */
+    public Encoded encode(TileA4 job, List<File> inputs, IOOptions io) throws Exception {
+        String kind = Images.outputFormat(io.outputFile, io);
+        String palette = (io.colors > 0) ? io.colors + "/" + io.dither : null;
+        if (palette != null && "pdf".equals(kind)) {
+            throw new IllegalArgumentException("--colors needs a png or gif output (got pdf).");
+        }
+        preload(job, inputs, layout(job), 1.0);
+        RasterKey rk = rasterKey(job, inputs, 1.0);
+        EncodeKey key = new EncodeKey(rk, kind, "pdf".equals(kind) ? job.pdfImageEncoding : null, job.jpegQuality, palette);
+        job.checkCancelled();
+        return encode.get(key, () -> {
+            BufferedImage page = render(job, inputs, 1.0);
+            job.report("encode", 0, 1);
+            byte[] bytes = "pdf".equals(kind) ? job.encodePdfA4(page) : Images.encode(page, kind, io);
+            job.report("encode", 1, 1);
+            return new Encoded(bytes, kind);
+        });
+    }
+
+    // ---- Internes ----
+
+    // Préparation (CPU) : pool borné partagé, un thread par cœur.
+    private static final ExecutorService PREPARE_POOL = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private final AtomicInteger n = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "TileA4-Prepare-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /**
+     * Decodes (virtual threads, I/O bound) and prepares (bounded CPU pool) all sources concurrently, filling the
+     * decode/prepare stages before the rest of the pipeline walks them in input order.
+     * Duplicate files share one computation through the stage memo. If several files fail, the first one in
+     * input order is reported.
+     */
+    private void preload(TileA4 job, List<File> inputs, TileLayout l, double renderScale) throws Exception {
+        if (inputs.size() < 2) return;
+
+        List<CompletableFuture<BufferedImage>> pending = new ArrayList<>(inputs.size());
+        try (ExecutorService io = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (File f : inputs) {
+                PrepareKey pk = prepareKey(job, f, l, renderScale);
+                pending.add(CompletableFuture
+                        .supplyAsync(() -> unchecked(() -> decoded(job, pk.source())), io)
+                        .thenApplyAsync(img -> unchecked(() -> prepared(job, pk, l, renderScale)), PREPARE_POOL));
+            }
+
+            for (int i = 0; i < pending.size(); i++) {
+                try {
+                    pending.get(i).join();
+                } catch (CompletionException e) {
+                    pending.forEach(p -> p.cancel(false));
+                    Throwable cause = (e.getCause() instanceof CompletionException ce && ce.getCause() != null) ? ce.getCause() : e.getCause();
+                    if (cause instanceof CancellationException ce) throw ce;
+                    throw new IllegalStateException("Cannot load input #" + (i + 1) + " (" + inputs.get(i).getName() + "): "
+                            + (cause != null ? cause.getMessage() : "unknown error"), cause);
+                }
+            }
+        }
+    }
+
+    private static <T> T unchecked(Callable<T> c) {
+        try {
+            return c.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private RasterKey rasterKey(TileA4 job, List<File> inputs, double renderScale) throws Exception {
+        TileLayout l = layout(job);
+        List<StampKey> stamps = new ArrayList<>(inputs.size());
+        for (File f : inputs) {
+            stamps.add(stampKey(job, f, l, renderScale));
+        }
+        String cycle = (job.cycleMode == null) ? "row" : job.cycleMode.trim().toLowerCase();
+        long seed = "random".equals(cycle) ? job.randomSeed : 0L;
+        return new RasterKey(l, stamps, cycle, seed, job.noMask, job.pageBackgroundSpec, renderScale);
+    }
+
+    private PrepareKey prepareKey(TileA4 job, File f, TileLayout l, double renderScale) throws Exception {
+        Footprint fp = new Footprint(l.rect(), l.tileW(), l.tileH(), renderScale);
+        return new PrepareKey(decodeKey(job, f, l, renderScale), job.trim, job.trimTolerance, job.srcCircleSpec, job.mirrorHorizontal, job.mirrorVertical,
+                job.logoBackgroundSpec, job.alphaBleed, job.alphaBleedIters, job.boostColors, fp);
+    }
+
+    // La taille du tampon dépend des dimensions de la source préparée : on la prépare (mémoïsé) pour la connaître.
+    private StampKey stampKey(TileA4 job, File f, TileLayout l, double renderScale) throws Exception {
+        PrepareKey pk = prepareKey(job, f, l, renderScale);
+        BufferedImage prepared = prepared(job, pk, l, renderScale);
+        int[] draw = l.drawSize(prepared.getWidth(), prepared.getHeight());
+        int w = Math.max(1, (int) Math.ceil(draw[0] * renderScale));
+        int h = Math.max(1, (int) Math.ceil(draw[1] * renderScale));
+        return new StampKey(pk, w, h);
+    }
+
+    private BufferedImage stampFor(TileA4 job, StampKey key, TileLayout l, double renderScale) throws Exception {
+        return stamp.get(key, () -> {
+            BufferedImage prepared = prepared(job, key.prepared(), l, renderScale);
+            // Réduction de qualité une seule fois par logo (au lieu d'un drawImage mis à l'échelle par tuile).
+            // Les agrandissements restent faits au dessin (bicubique).
+            return Resampler.progressiveDownscale(prepared, key.width(), key.height());
+        });
+    }
+
+    private BufferedImage prepared(TileA4 job, PrepareKey key, TileLayout l, double renderScale) throws Exception {
+        job.checkCancelled();
+        return prepare.get(key, () -> {
+            BufferedImage src = decoded(job, key.source());
+            return job.prepareSource(src, l, renderScale);
+        });
+    }
+
+    /**
+     * Sources are decoded subsampled when their footprint on the page is much smaller than the file (thumbnails,
+     * small tiles). Not with --trim or --src-circle: the part that ends up drawn is not known before decoding.
+     */
+    private DecodeKey decodeKey(TileA4 job, File f, TileLayout l, double renderScale) throws Exception {
+        FileKey fk = FileKey.of(f);
+        boolean cropped = job.trim || (job.srcCircleSpec != null && !job.srcCircleSpec.isBlank());
+        if (cropped) {
+            return new DecodeKey(fk, 1);
+        }
+        Images.ImageInfo info = probe.get(fk, () -> Images.probe(f));
+        int[] footprint = TileA4.sourceFootprint(info.width(), info.height(), l, renderScale);
+        // Le sous-échantillonnage du décodeur ne filtre pas : on garde 2x l'empreinte pour que
+        // prepare (réduction progressive filtrée) élimine l'aliasing.
+        return new DecodeKey(fk, Images.subsampling(info.width(), info.height(),
+                footprint[0] * DECODE_HEADROOM, footprint[1] * DECODE_HEADROOM));
+    }
+
+    private BufferedImage decoded(TileA4 job, DecodeKey key) throws Exception {
+        job.checkCancelled();
+        return decode.get(key, () -> {
+            File f = new File(key.file().path());
+            if (key.subsampling() <= 1) {
+                return Images.readImage(f);
+            }
+            Images.ImageInfo info = probe.get(key.file(), () -> Images.probe(f));
+            int s = key.subsampling();
+            return Images.readImage(f, null, info.width() / s, info.height() / s);
+        });
+    }
+
+    private static long bytes(BufferedImage img) {
+        DataBuffer db = img.getRaster().getDataBuffer();
+        return (long) db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+    }
+
+    /**
+     * Memoized stage: small LRU of in-flight or finished computations, optionally also bounded by the total weight
+     * (bytes) of its finished values.
+     */
+    static final class Stage<K, V> {
+        private final String name;
+        private final int capacity;
+        private final long maxWeight;
+        private final ToLongFunction<V> weigher;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final LinkedHashMap<K, FutureTask<V>> memo;
+        // Poids des valeurs terminées (les calculs en cours ne sont pas encore pesés)
+        private final Map<K, Long> weights = new HashMap<>();
+        private long weight;
+
+        Stage(String name, int capacity) {
+            this(name, capacity, Long.MAX_VALUE, null);
+        }
+
+        Stage(String name, int capacity, long maxWeight, ToLongFunction<V> weigher) {
+            this.name = name;
+            this.capacity = capacity;
+            this.maxWeight = maxWeight;
+            this.weigher = weigher;
+            this.memo = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, FutureTask<V>> eldest) {
+                    if (size() <= Stage.this.capacity) return false;
+                    forget(eldest.getKey());
+                    return true;
+                }
+            };
+        }
+
+        /** Records the weight of a value just computed and evicts the least recently used values beyond the limit. */
+        private synchronized void weigh(K key, FutureTask<V> task, V value) {
+            if (weigher == null || memo.get(key) != task) return;
+            long w = weigher.applyAsLong(value);
+            weights.put(key, w);
+            weight += w;
+            Iterator<Map.Entry<K, FutureTask<V>>> it = memo.entrySet().iterator();
+            while (weight > maxWeight && it.hasNext()) {
+                Map.Entry<K, FutureTask<V>> e = it.next();
+                if (e.getKey().equals(key)) continue;
+                Long ew = weights.remove(e.getKey());
+                if (ew != null) {
+                    weight -= ew;
+                    it.remove();
+                }
+            }
+        }
+
+        private void forget(K key) {
+            Long w = weights.remove(key);
+            if (w != null) weight -= w;
+        }
+
+        /**
+         * The value for {@code key}, computed by {@code compute} unless another caller already computes it.
+         * A shared computation can end cancelled by the job that started it (GUI job superseded by a new one):
+         * the other callers then compute it again for themselves instead of inheriting that cancellation.
+         */
+        V get(K key, Callable<V> compute) throws Exception {
+            while (true) {
+                FutureTask<V> task;
+                boolean owner = false;
+                synchronized (this) {
+                    task = memo.get(key);
+                    if (task == null) {
+                        task = new FutureTask<>(compute);
+                        memo.put(key, task);
+                        owner = true;
+                    }
+                }
+
+                if (owner) {
+                    misses.incrementAndGet();
+                    task.run();
+                } else {
+                    hits.incrementAndGet();
+                }
+
+                try {
+                    V value = task.get();
+                    if (owner) {
+                        weigh(key, task, value);
+                    }
+                    return value;
+                } catch (ExecutionException e) {
+                    // Pas de mise en cache des échecs (ni des annulations)
+                    synchronized (this) {
+                        if (memo.remove(key, task)) {
+                            forget(key);
+                        }
+                    }
+                    if (!owner && e.getCause() instanceof CancellationException) {
+                        continue; // annulé par le job d'un autre : on recalcule pour nous
+                    }
+                    if (e.getCause() instanceof Exception cause) throw cause;
+                    throw e;
+                }
+            }
+        }
+
+        StageStats stats() {
+            return new StageStats(name, hits.get(), misses.get());
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package ch.heigvd.commands;
+
+import ch.heigvd.ImageToolBox;
+import ch.heigvd.util.Metrics;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@CommandLine.Command(
+        name = "watch",
+        description = "Hot folder: run a command on every file dropped into a directory, then move the file to a "
+                + "done or failed directory. Runs until stopped (Ctrl+C), in one JVM for all the files."
+)
+public class Watch implements Callable<Integer> {
+
+    @CommandLine.Option(
+            names = {"--dir"},
+            required = true,
+            description = "Directory to watch (files directly inside it; hidden files and sub-directories are ignored)."
+    )
+    public Path dir;
+
+    @CommandLine.Option(
+            names = {"--out-dir"},
+            required = true,
+            description = "Directory of the outputs, named after their input (extension from --format, else the input's)."
+    )
+    public Path outDir;
+
+    @CommandLine.Option(
+            names = {"--done-dir"},
+            description = "Where processed inputs are moved (default: <dir>/done)."
+    )
+    public Path doneDir;
+
+    @CommandLine.Option(
+            names = {"--failed-dir"},
+            description = "Where inputs whose command failed are moved (default: <dir>/failed)."
+    )
+    public Path failedDir;
+
+    @CommandLine.Option(
+            names = {"--workers"},
+            description = "Files processed at once (default: number of cores)."
+    )
+    public Integer workers;
+
+    @CommandLine.Option(
+            names = {"--queue-size"},
+            description = "Settled files waiting for a worker; beyond that, new files stay in the folder until there is room.",
+            defaultValue = "16"
+    )
+    public int queueSize;
+
+    @CommandLine.Option(
+            names = {"--settle-ms"},
+            description = "A file is taken once its size and date have not changed for this long (still being copied otherwise).",
+            defaultValue = "1000"
+    )
+    public long settleMs;
+
+    @CommandLine.Option(
+            names = {"--report-seconds"},
+            description = "Interval between two activity reports (files done, queue depth, latency); 0 to disable.",
+            defaultValue = "60"
+    )
+    public int reportSeconds;
+
+    @CommandLine.Option(
+            names = {"--idle-exit"},
+            description = "Stop after this many seconds without any file (0: never).",
+            defaultValue = "0"
+    )
+    public int idleExit;
+
+    @CommandLine.Parameters(
+            paramLabel = "COMMAND",
+            arity = "1..*",
+            description = "The command run on each file, with its options (e.g. tileA4 --shape rect ...)."
+    )
+    public List<String> command;
+
+    @CommandLine.ParentCommand
+    protected ImageToolBox parent;
+
+    @CommandLine.Spec
+    CommandLine.Model.CommandSpec spec;
+
+    /** A file seen in the folder: its last size/date and when they last changed. */
+    private static final class Seen {
+        final long firstSeen = System.nanoTime();
+        long size = -1;
+        long modified = -1;
+        long stableSince;
+    }
+
+    private final AtomicInteger ok = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger jobs = new AtomicInteger();
+    // Latences (fichier vu -> sortie écrite) depuis le dernier rapport, en ms
+    private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public Integer call() {
+        int n = (workers != null) ? workers : Runtime.getRuntime().availableProcessors();
+        Path done = (doneDir != null) ? doneDir : dir.resolve("done");
+        Path fail = (failedDir != null) ? failedDir : dir.resolve("failed");
+        ExecutorService pool = null;
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            if (n < 1 || queueSize < 0 || settleMs < 0) {
+                throw new IllegalArgumentException("--workers must be at least 1, --queue-size and --settle-ms at least 0.");
+            }
+            if (!Files.isDirectory(dir)) {
+                throw new IllegalArgumentException("Not a directory: " + dir);
+            }
+            Files.createDirectories(outDir);
+            Files.createDirectories(done);
+            Files.createDirectories(fail);
+            List<String> globals = Batch.globalOptions(spec);
+            String ext = (parent.io.format != null) ? parent.io.format.trim().toLowerCase() : null;
+
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            // Contre-pression : un fichier n'est pris que si un worker ou une place dans la file est libre ;
+            // sinon il reste dans le dossier, où il ne coûte rien
+            Semaphore slots = new Semaphore(n + queueSize);
+            ExecutorService workerPool = Executors.newFixedThreadPool(n, r -> {
+                Thread t = new Thread(r, "Watch-Worker");
+                t.setDaemon(true);
+                return t;
+            });
+            pool = workerPool;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                // Ctrl+C : les fichiers en cours sont terminés, les autres restent dans le dossier
+                workerPool.shutdown();
+                try {
+                    workerPool.awaitTermination(60, TimeUnit.SECONDS);
+                    Metrics.export();
+                } catch (InterruptedException ignored) {
+                    // arrêt de la JVM
+                } catch (IOException e) {
+                    System.err.println("[metrics] " + e.getMessage());
+                }
+            }));
+
+            Map<Path, Seen> pending = new LinkedHashMap<>();
+            Set<Path> taken = Collections.synchronizedSet(new HashSet<>());
+            scan(pending);
+            System.out.println("Watching " + dir + " (" + n + " workers, queue " + queueSize + "): " + String.join(" ", command));
+
+            long tick = Math.max(50, Math.min(settleMs / 2, 500));
+            long lastReport = System.nanoTime();
+            long lastActivity = System.nanoTime();
+            while (true) {
+                WatchKey key = watcher.poll(tick, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    // Une rafale d'événements sur un même fichier (copie par morceaux) ne fait qu'une entrée
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            scan(pending);
+                        } else if (event.context() instanceof Path name && candidate(name)) {
+                            pending.computeIfAbsent(dir.resolve(name), p -> new Seen());
+                        }
+                    }
+                    if (!key.reset()) {
+                        throw new IOException("Watched directory is no longer accessible: " + dir);
+                    }
+                }
+
+                long now = System.nanoTime();
+                for (Iterator<Map.Entry<Path, Seen>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<Path, Seen> e = it.next();
+                    Path file = e.getKey();
+                    if (taken.contains(file)) continue;
+                    if (!settled(file, e.getValue(), now)) {
+                        if (!Files.isRegularFile(file)) it.remove(); // supprimé ou déplacé entre-temps
+                        continue;
+                    }
+                    if (!slots.tryAcquire()) break; // file pleine : on réessaiera au prochain tour
+                    it.remove();
+                    taken.add(file);
+                    long seen = e.getValue().firstSeen;
+                    workerPool.execute(() -> {
+                        running.incrementAndGet();
+                        try {
+                            process(globals, file, ext, seen, done, fail);
+                        } finally {
+                            running.decrementAndGet();
+                            taken.remove(file);
+                            slots.release();
+                        }
+                    });
+                    lastActivity = now;
+                }
+
+                int busy = n + queueSize - slots.availablePermits();
+                if (busy > 0 || !pending.isEmpty()) {
+                    lastActivity = now;
+                }
+                if (reportSeconds > 0 && now - lastReport >= TimeUnit.SECONDS.toNanos(reportSeconds)) {
+                    report(pending.size(), busy - running.get());
+                    lastReport = now;
+                }
+                if (idleExit > 0 && now - lastActivity >= TimeUnit.SECONDS.toNanos(idleExit)) {
+                    report(0, 0);
+                    break;
+                }
+            }
+            return 0;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        } catch (ClosedWatchServiceException e) {
+            return 0;
+        } catch (Exception e) {
+            System.err.println("[watch] " + e.getMessage());
+            return 1;
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /** Runs the command on one file, writes its output atomically and moves the input to done or failed. */
+    private void process(List<String> globals, Path file, String ext, long seen, Path done, Path fail) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String stem = (dot > 0) ? name.substring(0, dot) : name;
+        String suffix = (ext != null) ? ext : (dot > 0 ? name.substring(dot + 1) : "png");
+        Path output = outDir.resolve(stem + "." + suffix);
+        Path tmp = outDir.resolve("." + stem + "." + jobs.incrementAndGet() + ".tmp." + suffix);
+
+        List<String> args = new ArrayList<>(globals);
+        args.addAll(List.of("-i", file.toString(), "-o", tmp.toString()));
+        args.addAll(command);
+        int code;
+        try {
+            code = ImageToolBox.run(args.toArray(new String[0]));
+        } catch (RuntimeException e) {
+            System.err.println("[watch] " + name + ": " + e.getMessage());
+            code = 1;
+        }
+        try {
+            if (code == 0 && Files.exists(tmp)) {
+                Files.move(tmp, output, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                moveAside(file, done);
+                ok.incrementAndGet();
+                latencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - seen));
+            } else {
+                Files.deleteIfExists(tmp);
+                moveAside(file, fail);
+                failed.incrementAndGet();
+                System.err.println("[watch] Failed: " + name + " (exit code " + code + "), moved to " + fail);
+            }
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            System.err.println("[watch] " + name + ": " + e.getMessage());
+        }
+    }
+
+    /** True once the file kept the same size and date for --settle-ms (the copy into the folder is over). */
+    private boolean settled(Path file, Seen s, long now) {
+        BasicFileAttributes a;
+        try {
+            a = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return false;
+        }
+        if (!a.isRegularFile()) {
+            return false;
+        }
+        long modified = a.lastModifiedTime().toMillis();
+        if (a.size() != s.size || modified != s.modified) {
+            s.size = a.size();
+            s.modified = modified;
+            s.stableSince = now;
+            return false;
+        }
+        return now - s.stableSince >= TimeUnit.MILLISECONDS.toNanos(settleMs);
+    }
+
+    /** Files already in the folder at startup, or possibly missed (event overflow). */
+    private void scan(Map<Path, Seen> pending) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                if (candidate(f.getFileName()) && Files.isRegularFile(f)) {
+                    pending.computeIfAbsent(f, p -> new Seen());
+                }
+            }
+        }
+    }
+
+    // Fichiers cachés et temporaires (.part, ~) : souvent des copies en cours renommées à la fin
+    private static boolean candidate(Path name) {
+        String s = name.toString();
+        return !s.startsWith(".") && !s.endsWith("~") && !s.endsWith(".part") && !s.endsWith(".tmp");
+    }
+
+    /** Moves {@code file} into {@code target}, without overwriting an earlier file of the same name. */
+    private static void moveAside(Path file, Path target) throws IOException {
+        Path dest = target.resolve(file.getFileName());
+        if (Files.exists(dest)) {
+            dest = target.resolve(System.currentTimeMillis() + "-" + file.getFileName());
+        }
+        Files.move(file, dest, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void report(int waiting, int queued) {
+        List<Long> l;
+        synchronized (latencies) {
+            l = new ArrayList<>(latencies);
+            latencies.clear();
+        }
+        String latency = "";
+        if (!l.isEmpty()) {
+            Collections.sort(l);
+            latency = String.format(Locale.ROOT, ", latency p50 %d ms / p95 %d ms / max %d ms",
+                    l.get(l.size() / 2), l.get(Math.min(l.size() - 1, (int) (l.size() * 0.95))), l.get(l.size() - 1));
+        }
+        System.out.println("[watch] " + ok.get() + " done, " + failed.get() + " failed; " + running.get() + " running, "
+                + Math.max(0, queued) + " queued, " + waiting + " waiting in folder" + latency + ".");
+        try {
+            Metrics.export();
+        } catch (IOException e) {
+            System.err.println("[metrics] " + e.getMessage());
+        }
+    }
+}
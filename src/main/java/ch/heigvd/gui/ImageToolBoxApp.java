@@ -1,26 +1,40 @@
 package ch.heigvd.gui;
 
-import ch.heigvd.ImageToolBox;
+import ch.heigvd.IOOptions;
+import ch.heigvd.commands.TileA4;
+import ch.heigvd.commands.TileLayout;
+import ch.heigvd.commands.TilePipeline;
+import javafx.animation.PauseTransition;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.concurrent.Task;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
+import javafx.beans.value.ObservableValue;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
 import javafx.scene.input.Clipboard;
 import javafx.scene.input.ClipboardContent;
 import javafx.scene.layout.*;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
-import picocli.CommandLine;
+import javafx.util.Duration;
 
-import java.awt.Desktop;
+import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * GUI "user friendly" pour générer des pages A4 de logos (PDF) sans ligne de commande.
@@ -39,7 +53,41 @@ public final class ImageToolBoxApp extends Application {
     private TextArea logs = new TextArea();
     private Button btnGenerate = new Button("Générer");
     private Button btnOpen = new Button("Ouvrir le PDF");
+    private Button btnCancel = new Button("Annuler");
     private ProgressIndicator spinner = new ProgressIndicator();
+    private Label status = new Label();
+
+    // Un seul pool partagé et borné pour toutes les tâches de fond (génération, ouverture du PDF).
+    private final ThreadPoolExecutor executor = newExecutor();
+
+    // Génération en cours : un nouveau clic sur "Générer" l'annule et la remplace.
+    private Task<Void> currentJob;
+    private final AtomicInteger jobCounter = new AtomicInteger();
+
+    // Étages mémoïsés partagés par l'aperçu et la génération (logo décodé, préparé, mis à l'échelle...).
+    private final TilePipeline pipeline = new TilePipeline();
+
+    // Aperçu live : rendu à la résolution de la vue, en arrière-plan.
+    private static final double PREVIEW_WIDTH = 360;
+    private final ImageView previewView = new ImageView();
+    private final Label previewInfo = new Label();
+    private final PauseTransition previewDebounce = new PauseTransition(Duration.millis(120));
+    private final AtomicInteger previewGeneration = new AtomicInteger();
+    private Runnable previewRequest = () -> {};
+
+    private static ThreadPoolExecutor newExecutor() {
+        AtomicInteger n = new AtomicInteger();
+        ThreadPoolExecutor ex = new ThreadPoolExecutor(
+                2, 2, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(8),
+                r -> {
+                    Thread t = new Thread(r, "ImageToolBoxGUI-Worker-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        ex.allowCoreThreadTimeOut(true);
+        return ex;
+    }
 
     // Helpers
     private static Spinner<Double> dblSpinner(double min, double max, double initial, double step) {
@@ -90,6 +138,7 @@ public final class ImageToolBoxApp extends Application {
                 inputPath.setText(f.getAbsolutePath());
                 suggestOutputIfEmpty();
                 validateForm();
+                previewDebounce.playFromStart();
             }
         });
 
@@ -166,6 +215,40 @@ public final class ImageToolBoxApp extends Application {
             validateForm();
         });
 
+        // --- Aperçu live (debounce : on attend une courte pause dans les modifications)
+        previewRequest = () -> schedulePreview(newJob(
+                shape.getValue(),
+                rectWcm.getValue(),
+                rectHcm.getValue(),
+                gapMm.getValue(),
+                marginMm.getValue(),
+                dpi.getValue(),
+                mirrorH.isSelected(),
+                mirrorV.isSelected(),
+                boostColors.isSelected() ? boostFactor.getValue() : null,
+                logoBgMode.getValue(),
+                logoBgHex.getText().trim(),
+                pageBgMode.getValue(),
+                pageBgHex.getText().trim()
+        ));
+        previewDebounce.setOnFinished(e -> previewRequest.run());
+
+        List<ObservableValue<?>> previewInputs = List.of(
+                shape.valueProperty(), rectWcm.valueProperty(), rectHcm.valueProperty(),
+                gapMm.valueProperty(), marginMm.valueProperty(), dpi.valueProperty(),
+                mirrorH.selectedProperty(), mirrorV.selectedProperty(),
+                boostColors.selectedProperty(), boostFactor.valueProperty(),
+                logoBgMode.valueProperty(), logoBgHex.textProperty(),
+                pageBgMode.valueProperty(), pageBgHex.textProperty()
+        );
+        for (ObservableValue<?> v : previewInputs) {
+            v.addListener((obs, o, n) -> previewDebounce.playFromStart());
+        }
+
+        previewView.setFitWidth(PREVIEW_WIDTH);
+        previewView.setPreserveRatio(true);
+        previewView.setSmooth(true);
+
         // --- Logs
         logs.setEditable(false);
         logs.setWrapText(true);
@@ -222,9 +305,12 @@ public final class ImageToolBoxApp extends Application {
                     showWarning("Impossible d'ouvrir le fichier: " +
                             (openTask.getException() != null ? openTask.getException().getMessage() : "inconnu"))));
 
-            Thread t = new Thread(openTask, "OpenPdf-Task");
-            t.setDaemon(true);
-            t.start();
+            executor.execute(openTask);
+        });
+
+        btnCancel.setDisable(true);
+        btnCancel.setOnAction(e -> {
+            if (currentJob != null) currentJob.cancel();
         });
 
         Button btnCopyCmd = new Button("Copier la commande");
@@ -301,19 +387,26 @@ public final class ImageToolBoxApp extends Application {
                 presetMeringue
         );
 
-        HBox actions = new HBox(10, btnGenerate, spinner, btnOpen, btnCopyCmd);
+        HBox actions = new HBox(10, btnGenerate, btnCancel, spinner, status, btnOpen, btnCopyCmd);
         actions.setAlignment(Pos.CENTER_LEFT);
 
         Label hint = new Label("Astuce: à l'impression, choisir “Taille réelle / 100%” (pas “Adapter à la page”).");
 
-        VBox root = new VBox(12, left, actions, hint, new Label("Logs:"), logs);
+        VBox previewBox = new VBox(8, new Label("Aperçu:"), previewView, previewInfo);
+        previewBox.setMinWidth(PREVIEW_WIDTH);
+
+        HBox top = new HBox(16, left, previewBox);
+
+        VBox root = new VBox(12, top, actions, hint, new Label("Logs:"), logs);
         root.setPadding(new Insets(14));
 
-        Scene scene = new Scene(root, 860, 620);
+        Scene scene = new Scene(root, 1240, 760);
         stage.setScene(scene);
 
         // Permet de fermer proprement même si une tâche tourne.
         stage.setOnCloseRequest(ev -> {
+            if (currentJob != null) currentJob.cancel();
+            executor.shutdownNow();
             javafx.application.Platform.exit();
             System.exit(0);
         });
@@ -378,54 +471,206 @@ public final class ImageToolBoxApp extends Application {
             Files.createDirectories(outputFile.toPath().toAbsolutePath().getParent());
         } catch (Exception ignored) {}
 
-        btnGenerate.setDisable(true);
+        // Un clic pendant une génération remplace la génération en cours (pas de deuxième rendu complet en file).
+        // Une génération encore en file est annulée aussi, et retirée de la file (purge) pour ne pas la remplir.
+        if (currentJob != null && !currentJob.isDone()) {
+            currentJob.cancel();
+            executor.purge();
+        }
+
+        TileA4 job = newJob(
+                shape, rectWcm, rectHcm, gapMm, marginMm, dpi,
+                mirrorH, mirrorV, boostFactorOrNull,
+                logoBgMode, logoBgHex, pageBgMode, pageBgHex
+        );
+
+        IOOptions io = new IOOptions();
+        io.inputFile = inputFile;
+        io.outputFile = outputFile;
+
+        int jobId = jobCounter.incrementAndGet();
         btnOpen.setDisable(true);
+        btnCancel.setDisable(false);
         spinner.setVisible(true);
         logs.setText("");
 
-        Task<RunResult> task = new Task<>() {
-            @Override protected RunResult call() throws Exception {
-                String[] args = buildArgs(
-                        inputFile, outputFile,
-                        shape, rectWcm, rectHcm, gapMm, marginMm, dpi,
-                        mirrorH, mirrorV, boostFactorOrNull,
-                        logoBgMode, logoBgHex, pageBgMode, pageBgHex
-                );
+        Task<Void> task = new Task<>() {
+            @Override protected Void call() throws Exception {
+                job.out = logStream(jobId);
+                job.pipeline = pipeline;
+                job.cancelled = this::isCancelled;
+                job.progress = (stage, done, total) -> {
+                    updateMessage(stageLabel(stage) + " " + done + "/" + total);
+                    updateProgress(done, total);
+                };
+                job.run(io);
+                return null;
+            }
+        };
 
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                PrintWriter pw = new PrintWriter(new OutputStreamWriter(baos, StandardCharsets.UTF_8), true);
+        spinner.progressProperty().bind(task.progressProperty());
+        status.textProperty().bind(task.messageProperty());
 
-                CommandLine cmd = new CommandLine(new ImageToolBox());
-                cmd.setOut(pw);
-                cmd.setErr(pw);
+        task.setOnSucceeded(e -> {
+            finishJob(task);
+            logs.appendText("\nRappel: imprimer à 100% (sans “fit to page”).\n");
+            btnOpen.setDisable(outputFile == null || !outputFile.exists());
+        });
+
+        task.setOnCancelled(e -> {
+            if (finishJob(task)) logs.appendText("\nGénération annulée.\n");
+        });
 
-                int exit = cmd.execute(args);
-                pw.flush();
+        task.setOnFailed(e -> {
+            Throwable ex = task.getException();
+            if (finishJob(task)) logs.appendText("\nErreur:\n" + (ex != null ? ex.toString() : "inconnue") + "\n");
+        });
 
-                return new RunResult(exit, baos.toString(StandardCharsets.UTF_8));
+        currentJob = task;
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            // File pleine (aperçus en attente) : l'UI ne doit pas rester en "génération en cours"
+            finishJob(task);
+            logs.appendText("\nTrop de tâches en attente, réessaie dans un instant.\n");
+        }
+    }
+
+    /** Options tileA4 typées à partir du formulaire (mêmes valeurs que la commande copiée). */
+    private static TileA4 newJob(
+            String shape,
+            double rectWcm,
+            double rectHcm,
+            double gapMm,
+            double marginMm,
+            int dpi,
+            boolean mirrorH,
+            boolean mirrorV,
+            Double boostFactorOrNull,
+            BgMode logoBgMode, String logoBgHex,
+            BgMode pageBgMode, String pageBgHex
+    ) {
+        TileA4 job = new TileA4();
+        job.shape = shape;
+        if ("rect".equalsIgnoreCase(shape)) {
+            job.rectWidthCm = rectWcm;
+            job.rectHeightCm = rectHcm;
+        }
+        job.gapMm = gapMm;
+        job.marginMm = marginMm;
+        job.dpi = dpi;
+        job.mirrorHorizontal = mirrorH;
+        job.mirrorVertical = mirrorV;
+        if (boostFactorOrNull != null) job.boostColors = boostFactorOrNull;
+        String logoBg = bgArg(logoBgMode, logoBgHex, "white");
+        if (logoBg != null) job.logoBackgroundSpec = logoBg;
+        String pageBg = bgArg(pageBgMode, pageBgHex, "white");
+        if (pageBg != null) job.pageBackgroundSpec = pageBg;
+        return job;
+    }
+
+    /**
+     * Lance le rendu de l'aperçu en arrière-plan. Chaque demande invalide les précédentes :
+     * un rendu dépassé s'arrête dès que possible et son résultat est ignoré.
+     */
+    private void schedulePreview(TileA4 job) {
+        File input = inputFile;
+        if (input == null || !input.exists()) return;
+
+        int gen = previewGeneration.incrementAndGet();
+        int thumbDpi = (int) Math.ceil(PREVIEW_WIDTH * 25.4 / TileLayout.A4_W_MM);
+        job.cancelled = () -> previewGeneration.get() != gen;
+        job.out = new PrintStream(OutputStream.nullOutputStream());
+
+        Task<PreviewResult> task = new Task<>() {
+            @Override protected PreviewResult call() throws Exception {
+                if (previewGeneration.get() != gen) return null;
+                long t0 = System.nanoTime();
+                TileLayout layout = pipeline.layout(job);
+                double scale = Math.min(1.0, (double) thumbDpi / layout.dpi());
+                BufferedImage page = pipeline.render(job, List.of(input), scale);
+                return new PreviewResult(page, layout, (System.nanoTime() - t0) / 1_000_000L);
             }
         };
 
         task.setOnSucceeded(e -> {
-            RunResult rr = task.getValue();
-            logs.setText(rr.output
-                    + "\n\nExit code: " + rr.exitCode
-                    + "\nRappel: imprimer à 100% (sans “fit to page”).\n");
-            spinner.setVisible(false);
-            btnGenerate.setDisable(false);
-            btnOpen.setDisable(rr.exitCode != 0 || outputFile == null || !outputFile.exists());
+            PreviewResult res = task.getValue();
+            if (res == null || previewGeneration.get() != gen) return; // résultat périmé
+            previewView.setImage(toFxImage(res.image()));
+            TileLayout l = res.layout();
+            previewInfo.setText(String.format("%d colonnes × %d lignes = %d logos  (%d ms)%ncache (hits/misses): %s",
+                    l.cols(), l.rows(), l.tiles(), res.millis(), pipeline.statsLine()));
         });
 
         task.setOnFailed(e -> {
             Throwable ex = task.getException();
-            logs.setText("Erreur:\n" + (ex != null ? ex.toString() : "inconnue"));
-            spinner.setVisible(false);
-            btnGenerate.setDisable(false);
+            if (ex instanceof CancellationException || previewGeneration.get() != gen) return;
+            previewInfo.setText("Aperçu impossible: " + (ex != null ? ex.getMessage() : "inconnu"));
         });
 
-        Thread t = new Thread(task, "ImageToolBoxGUI-Task");
-        t.setDaemon(true);
-        t.start();
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ignored) {
+            // file pleine : une demande plus récente suivra
+        }
+    }
+
+    private record PreviewResult(BufferedImage image, TileLayout layout, long millis) {}
+
+    private static WritableImage toFxImage(BufferedImage img) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        int[] argb = img.getRGB(0, 0, w, h, null, 0, w);
+        WritableImage out = new WritableImage(w, h);
+        out.getPixelWriter().setPixels(0, 0, w, h, PixelFormat.getIntArgbInstance(), argb, 0, w);
+        return out;
+    }
+
+    /** Remet l'UI au repos si {@code task} est toujours la génération courante ; false si elle a été remplacée. */
+    private boolean finishJob(Task<Void> task) {
+        if (task != currentJob) return false;
+        spinner.progressProperty().unbind();
+        status.textProperty().unbind();
+        spinner.setVisible(false);
+        status.setText("");
+        btnCancel.setDisable(true);
+        currentJob = null;
+        return true;
+    }
+
+    private static String stageLabel(String stage) {
+        return switch (stage) {
+            case "decode" -> "Lecture";
+            case "prepare" -> "Préparation";
+            case "render" -> "Dessin";
+            case "encode" -> "Encodage";
+            default -> stage;
+        };
+    }
+
+    /** PrintStream qui envoie chaque ligne dans la zone de logs, tant que la génération {@code jobId} est la courante. */
+    private PrintStream logStream(int jobId) {
+        OutputStream sink = new OutputStream() {
+            private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+            @Override public synchronized void write(int b) {
+                if (b == '\n') flushLine();
+                else line.write(b);
+            }
+
+            @Override public synchronized void flush() {
+                if (line.size() > 0) flushLine();
+            }
+
+            private void flushLine() {
+                String text = line.toString(StandardCharsets.UTF_8) + "\n";
+                line.reset();
+                Platform.runLater(() -> {
+                    if (jobCounter.get() == jobId) logs.appendText(text);
+                });
+            }
+        };
+        return new PrintStream(sink, true, StandardCharsets.UTF_8);
     }
 
     private static String normalizeHex(String s) {
@@ -523,6 +768,4 @@ public final class ImageToolBoxApp extends Application {
         }
         return sb.toString().trim();
     }
-
-    private record RunResult(int exitCode, String output) {}
 }
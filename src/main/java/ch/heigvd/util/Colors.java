@@ -0,0 +1,56 @@
+package ch.heigvd.util;
+
+import java.awt.Color;
+
+/**
+ * Color options shared by the commands (--page-background, --logo-background, --background...).
+ */
+public final class Colors {
+
+    private Colors() {}
+
+    /**
+     * Parse a simple color spec.
+     * Supported values:
+     *  - "white", "black"
+     *  - "transparent"
+     *  - "none" (returns null)
+     *  - Hex: #RRGGBB or #AARRGGBB (leading # optional)
+     */
+    public static Color parse(String spec, Color fallback) {
+        if (spec == null) return fallback;
+        String s = spec.trim();
+        if (s.isEmpty()) return fallback;
+
+        String sl = s.toLowerCase();
+        switch (sl) {
+            case "white":
+                return Color.WHITE;
+            case "black":
+                return Color.BLACK;
+            case "transparent":
+                return new Color(0, 0, 0, 0);
+            case "none":
+                return null;
+            default:
+                break;
+        }
+
+        // Hex forms
+        if (sl.startsWith("#")) sl = sl.substring(1);
+        if (sl.matches("[0-9a-f]{6}")) {
+            int rgb = Integer.parseInt(sl, 16);
+            return new Color((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF, 0xFF);
+        }
+        if (sl.matches("[0-9a-f]{8}")) {
+            int argb = (int) Long.parseLong(sl, 16);
+            int a = (argb >> 24) & 0xFF;
+            int r = (argb >> 16) & 0xFF;
+            int g = (argb >> 8) & 0xFF;
+            int b = argb & 0xFF;
+            return new Color(r, g, b, a);
+        }
+
+        throw new IllegalArgumentException("Invalid color spec: '" + spec + "'. Use white|black|transparent|none|#RRGGBB|#AARRGGBB.");
+    }
+}
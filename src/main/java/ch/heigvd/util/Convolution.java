@@ -0,0 +1,434 @@
+package ch.heigvd.util;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Separable convolution on packed ARGB arrays: Gaussian kernels, running-sum box blurs and 3x3 gradients.
+ *
+ * Borders are handled once per row/column through an index map of the padded line (source index of each padded
+ * position), so the inner loops never test coordinates. Box blurs keep a running sum: adding the pixel that
+ * enters the window and removing the one that leaves costs the same for any radius, and three successive boxes
+ * approximate a Gaussian closely. Horizontal passes split rows in parallel bands, vertical passes split columns,
+ * and both read memory row by row.
+ */
+public final class Convolution {
+
+    private Convolution() {}
+
+    public enum Border {
+        CLAMP, REFLECT;
+
+        public static Border parse(String spec) {
+            String s = (spec == null) ? "clamp" : spec.trim().toLowerCase();
+            switch (s) {
+                case "clamp":
+                    return CLAMP;
+                case "reflect":
+                    return REFLECT;
+                default:
+                    throw new IllegalArgumentException("Invalid --border: '" + spec + "'. Use clamp|reflect.");
+            }
+        }
+
+        /** Source index for padded position {@code i} (from -r to n + r - 1). */
+        int map(int i, int n) {
+            if (this == CLAMP) {
+                return i < 0 ? 0 : (i >= n ? n - 1 : i);
+            }
+            // Miroir avec répétition du bord : -1 -> 0, -2 -> 1, n -> n - 1 ; périodique pour r > n
+            int period = 2 * n;
+            int m = ((i % period) + period) % period;
+            return m < n ? m : period - 1 - m;
+        }
+    }
+
+    public enum Method {
+        AUTO, GAUSSIAN, BOX3, BOX;
+
+        public static Method parse(String spec) {
+            String s = (spec == null) ? "auto" : spec.trim().toLowerCase();
+            switch (s) {
+                case "auto":
+                    return AUTO;
+                case "gaussian":
+                    return GAUSSIAN;
+                case "box3":
+                    return BOX3;
+                case "box":
+                    return BOX;
+                default:
+                    throw new IllegalArgumentException("Invalid --method: '" + spec + "'. Use auto|gaussian|box3|box.");
+            }
+        }
+    }
+
+    // Au-delà de ce sigma, AUTO passe du noyau gaussien (coût en O(sigma)) aux 3 boîtes (coût constant)
+    private static final double GAUSSIAN_MAX_SIGMA = 3.0;
+
+    private static final int W_BITS = 14;
+    private static final int W_ROUND = 1 << (W_BITS - 1);
+
+    // ---- Opérations sur images ----
+
+    /**
+     * Blurs {@code src}. {@code boxRadius} is only used by {@link Method#BOX}; when &lt;= 0 it is derived from sigma
+     * (a box of radius r has a standard deviation of about r / sqrt(3)).
+     */
+    public static BufferedImage blur(BufferedImage src, double sigma, Method method, int boxRadius, Border border) {
+        int w = src.getWidth();
+        int h = src.getHeight();
+        boolean alpha = src.getColorModel().hasAlpha();
+        int[] px = Pixels.toArgb(src);
+        if (alpha) Pixels.premultiply(px);
+
+        int[] out = blur(px, w, h, sigma, method, boxRadius, border);
+
+        if (alpha) Pixels.unpremultiply(out);
+        return Pixels.wrap(out, w, h, alpha);
+    }
+
+    /** Same as {@link #blur(BufferedImage, double, Method, int, Border)} on a packed (premultiplied) array. */
+    public static int[] blur(int[] px, int w, int h, double sigma, Method method, int boxRadius, Border border) {
+        if (method == Method.AUTO) {
+            method = (sigma <= GAUSSIAN_MAX_SIGMA) ? Method.GAUSSIAN : Method.BOX3;
+        }
+        switch (method) {
+            case GAUSSIAN:
+                return gaussian(px, w, h, sigma, border);
+            case BOX3:
+                return box(px, w, h, boxRadiiForGaussian(sigma, 3), border);
+            case BOX: {
+                int r = (boxRadius > 0) ? boxRadius : (int) Math.max(1, Math.round(sigma * Math.sqrt(3)));
+                return box(px, w, h, new int[]{r}, border);
+            }
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Unsharp mask: {@code src + amount * (src - blur(src))} per channel, where the difference is at least
+     * {@code threshold} (0-255; avoids sharpening noise in flat areas).
+     */
+    public static BufferedImage unsharp(BufferedImage src, double sigma, double amount, int threshold, Border border) {
+        int w = src.getWidth();
+        int h = src.getHeight();
+        boolean alpha = src.getColorModel().hasAlpha();
+        int[] px = Pixels.toArgb(src);
+        if (alpha) Pixels.premultiply(px);
+
+        int[] blurred = blur(px, w, h, sigma, Method.AUTO, 0, border);
+        int amountQ = (int) Math.round(amount * 256);
+        Parallel.forBands(h, 16, (y0, y1) -> {
+            for (int i = y0 * w, end = y1 * w; i < end; i++) {
+                int s = px[i];
+                int b = blurred[i];
+                int a = s >>> 24;
+                int res = a << 24;
+                for (int shift = 16; shift >= 0; shift -= 8) {
+                    int sc = (s >> shift) & 0xFF;
+                    int d = sc - ((b >> shift) & 0xFF);
+                    if (d >= threshold || -d >= threshold) {
+                        sc += (d * amountQ + 128) >> 8;
+                    }
+                    // Prémultiplié : la couleur ne dépasse pas l'alpha
+                    res |= (sc < 0 ? 0 : (sc > a ? a : sc)) << shift;
+                }
+                blurred[i] = res;
+            }
+        });
+
+        if (alpha) Pixels.unpremultiply(blurred);
+        return Pixels.wrap(blurred, w, h, alpha);
+    }
+
+    /**
+     * Gradient magnitude of the luminance (Sobel or Scharr), as a gray image.
+     * The magnitude is divided by the operator's maximum gain (4 for Sobel, 16 for Scharr) then multiplied by {@code gain}.
+     */
+    public static BufferedImage edges(BufferedImage src, boolean scharr, double gain, Border border) {
+        int w = src.getWidth();
+        int h = src.getHeight();
+
+        // Luminance (BT.601) avec une marge d'un pixel : l'intérieur se lit sans test de bord
+        int pw = w + 2;
+        int[] luma = new int[pw * (h + 2)];
+        int[] colMap = indexMap(w, 1, border);
+        int[] rowMap = indexMap(h, 1, border);
+        Parallel.forBands(h, 16, (y0, y1) -> {
+            Pixels.RowReader rr = new Pixels.RowReader(src);
+            int[] line = new int[w];
+            for (int y = y0; y < y1; y++) {
+                int[] row = rr.row(y);
+                int off = rr.offset(y);
+                for (int x = 0; x < w; x++) {
+                    int p = row[off + x];
+                    line[x] = (299 * ((p >> 16) & 0xFF) + 587 * ((p >> 8) & 0xFF) + 114 * (p & 0xFF) + 500) / 1000;
+                }
+                int o = (y + 1) * pw;
+                for (int i = 0; i < pw; i++) {
+                    luma[o + i] = line[colMap[i]];
+                }
+            }
+        });
+        // Lignes de marge haut/bas
+        System.arraycopy(luma, (rowMap[0] + 1) * pw, luma, 0, pw);
+        System.arraycopy(luma, (rowMap[h + 1] + 1) * pw, luma, (h + 1) * pw, pw);
+
+        int side = scharr ? 3 : 1;
+        int mid = scharr ? 10 : 2;
+        double norm = gain / (scharr ? 16.0 : 4.0);
+        int[] out = new int[w * h];
+        Parallel.forBands(h, 16, (y0, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                int up = y * pw;
+                int c = up + pw;
+                int dn = c + pw;
+                int o = y * w;
+                for (int x = 0; x < w; x++) {
+                    // Gx = lissage vertical [s m s] x dérivée horizontale [-1 0 1], Gy symétrique
+                    int gx = side * (luma[up + x + 2] - luma[up + x]) + mid * (luma[c + x + 2] - luma[c + x])
+                            + side * (luma[dn + x + 2] - luma[dn + x]);
+                    int gy = side * (luma[dn + x] - luma[up + x]) + mid * (luma[dn + x + 1] - luma[up + x + 1])
+                            + side * (luma[dn + x + 2] - luma[up + x + 2]);
+                    int v = (int) Math.round(Math.sqrt((double) gx * gx + (double) gy * gy) * norm);
+                    v = v > 255 ? 255 : v;
+                    out[o + x] = 0xFF000000 | (v << 16) | (v << 8) | v;
+                }
+            }
+        });
+        return Pixels.wrap(out, w, h, false);
+    }
+
+    // ---- Noyau gaussien séparable ----
+
+    /** Separable Gaussian blur, kernel radius ceil(3 sigma). */
+    public static int[] gaussian(int[] px, int w, int h, double sigma, Border border) {
+        if (sigma <= 0) {
+            return px.clone();
+        }
+        int r = (int) Math.ceil(3 * sigma);
+        int[] k = new int[2 * r + 1];
+        double[] g = new double[2 * r + 1];
+        double sum = 0;
+        for (int i = -r; i <= r; i++) {
+            g[i + r] = Math.exp(-(i * i) / (2 * sigma * sigma));
+            sum += g[i + r];
+        }
+        int total = 0;
+        for (int i = 0; i < k.length; i++) {
+            k[i] = (int) Math.round(g[i] / sum * (1 << W_BITS));
+            total += k[i];
+        }
+        k[r] += (1 << W_BITS) - total;
+
+        return kernelVertical(kernelHorizontal(px, w, h, k, border), w, h, k, border);
+    }
+
+    private static int[] kernelHorizontal(int[] in, int w, int h, int[] k, Border border) {
+        int r = k.length / 2;
+        int[] map = indexMap(w, r, border);
+        int[] out = new int[w * h];
+        Parallel.forBands(h, 16, (y0, y1) -> {
+            int[] buf = new int[w + 2 * r];
+            for (int y = y0; y < y1; y++) {
+                int row = y * w;
+                for (int i = 0; i < buf.length; i++) {
+                    buf[i] = in[row + map[i]];
+                }
+                for (int x = 0; x < w; x++) {
+                    int a = W_ROUND, rr = W_ROUND, g = W_ROUND, b = W_ROUND;
+                    for (int j = 0; j < k.length; j++) {
+                        int p = buf[x + j];
+                        int kj = k[j];
+                        a += (p >>> 24) * kj;
+                        rr += ((p >> 16) & 0xFF) * kj;
+                        g += ((p >> 8) & 0xFF) * kj;
+                        b += (p & 0xFF) * kj;
+                    }
+                    out[row + x] = packWeighted(a, rr, g, b);
+                }
+            }
+        });
+        return out;
+    }
+
+    private static int[] kernelVertical(int[] in, int w, int h, int[] k, Border border) {
+        int r = k.length / 2;
+        int[] map = indexMap(h, r, border);
+        int[] out = new int[w * h];
+        Parallel.forBands(h, 8, (y0, y1) -> {
+            int[] acc = new int[w * 4];
+            for (int y = y0; y < y1; y++) {
+                Arrays.fill(acc, W_ROUND);
+                for (int j = 0; j < k.length; j++) {
+                    int row = map[y + j] * w;
+                    int kj = k[j];
+                    for (int x = 0, q = 0; x < w; x++, q += 4) {
+                        int p = in[row + x];
+                        acc[q] += (p >>> 24) * kj;
+                        acc[q + 1] += ((p >> 16) & 0xFF) * kj;
+                        acc[q + 2] += ((p >> 8) & 0xFF) * kj;
+                        acc[q + 3] += (p & 0xFF) * kj;
+                    }
+                }
+                int o = y * w;
+                for (int x = 0, q = 0; x < w; x++, q += 4) {
+                    out[o + x] = packWeighted(acc[q], acc[q + 1], acc[q + 2], acc[q + 3]);
+                }
+            }
+        });
+        return out;
+    }
+
+    private static int packWeighted(int a, int r, int g, int b) {
+        a = clamp(a >> W_BITS, 255);
+        return (a << 24) | (clamp(r >> W_BITS, a) << 16) | (clamp(g >> W_BITS, a) << 8) | clamp(b >> W_BITS, a);
+    }
+
+    private static int clamp(int v, int max) {
+        return v < 0 ? 0 : (v > max ? max : v);
+    }
+
+    // ---- Flou boîte par sommes glissantes ----
+
+    /**
+     * Radii of {@code n} successive boxes whose combination has (about) the standard deviation {@code sigma}
+     * (box sizes chosen as in Kovesi, "Fast almost-Gaussian filtering").
+     */
+    public static int[] boxRadiiForGaussian(double sigma, int n) {
+        double ideal = Math.sqrt(12 * sigma * sigma / n + 1);
+        int wl = (int) Math.floor(ideal);
+        if (wl % 2 == 0) wl--;
+        int wu = wl + 2;
+        double mIdeal = (12 * sigma * sigma - n * wl * wl - 4.0 * n * wl - 3.0 * n) / (-4.0 * wl - 4);
+        long m = Math.round(mIdeal);
+        int[] radii = new int[n];
+        for (int i = 0; i < n; i++) {
+            int size = (i < m) ? wl : wu;
+            radii[i] = Math.max(0, (size - 1) / 2);
+        }
+        return radii;
+    }
+
+    /** Successive box blurs of the given radii (each horizontal then vertical); O(1) per pixel whatever the radius. */
+    public static int[] box(int[] px, int w, int h, int[] radii, Border border) {
+        int[] cur = boxHorizontal(px, w, h, radii, border);
+        for (int r : radii) {
+            if (r > 0) cur = boxVertical(cur, w, h, r, border);
+        }
+        return cur;
+    }
+
+    // Toutes les passes horizontales d'une ligne d'affilée : la ligne reste en cache
+    private static int[] boxHorizontal(int[] in, int w, int h, int[] radii, Border border) {
+        int maxR = 0;
+        for (int r : radii) maxR = Math.max(maxR, r);
+        int[][] maps = new int[radii.length][];
+        for (int i = 0; i < radii.length; i++) {
+            maps[i] = indexMap(w, radii[i], border);
+        }
+        int[] out = new int[w * h];
+        int bufLen = w + 2 * maxR + 1;
+        Parallel.forBands(h, 16, (y0, y1) -> {
+            int[] line = new int[w];
+            int[] buf = new int[bufLen];
+            for (int y = y0; y < y1; y++) {
+                System.arraycopy(in, y * w, line, 0, w);
+                for (int i = 0; i < radii.length; i++) {
+                    int r = radii[i];
+                    if (r <= 0) continue;
+                    int[] map = maps[i];
+                    for (int j = 0; j < w + 2 * r; j++) {
+                        buf[j] = line[map[j]];
+                    }
+                    slide(buf, line, w, r);
+                }
+                System.arraycopy(line, 0, out, y * w, w);
+            }
+        });
+        return out;
+    }
+
+    /** Running-sum box of radius r over {@code buf} (padded by r on both sides), written to {@code dst[0..n)}. */
+    private static void slide(int[] buf, int[] dst, int n, int r) {
+        int size = 2 * r + 1;
+        long mul = (1L << 32) / size;
+        long a = 0, rr = 0, g = 0, b = 0;
+        for (int j = 0; j < size - 1; j++) {
+            int p = buf[j];
+            a += p >>> 24;
+            rr += (p >> 16) & 0xFF;
+            g += (p >> 8) & 0xFF;
+            b += p & 0xFF;
+        }
+        for (int x = 0; x < n; x++) {
+            int in = buf[x + size - 1];
+            a += in >>> 24;
+            rr += (in >> 16) & 0xFF;
+            g += (in >> 8) & 0xFF;
+            b += in & 0xFF;
+
+            dst[x] = packMean(a, rr, g, b, mul);
+
+            int outP = buf[x];
+            a -= outP >>> 24;
+            rr -= (outP >> 16) & 0xFF;
+            g -= (outP >> 8) & 0xFF;
+            b -= outP & 0xFF;
+        }
+    }
+
+    private static int[] boxVertical(int[] in, int w, int h, int r, Border border) {
+        int[] map = indexMap(h, r, border);
+        int size = 2 * r + 1;
+        long mul = (1L << 32) / size;
+        int[] out = new int[w * h];
+        // Par bandes de colonnes : chaque bande glisse sa fenêtre de haut en bas en lisant les lignes dans l'ordre
+        Parallel.forBands(w, 64, (x0, x1) -> {
+            int bw = x1 - x0;
+            long[] sums = new long[bw * 4];
+            for (int j = 0; j < size - 1; j++) {
+                addRow(in, map[j] * w + x0, sums, bw, 1);
+            }
+            for (int y = 0; y < h; y++) {
+                addRow(in, map[y + size - 1] * w + x0, sums, bw, 1);
+                int o = y * w + x0;
+                for (int x = 0, q = 0; x < bw; x++, q += 4) {
+                    out[o + x] = packMean(sums[q], sums[q + 1], sums[q + 2], sums[q + 3], mul);
+                }
+                addRow(in, map[y] * w + x0, sums, bw, -1);
+            }
+        });
+        return out;
+    }
+
+    private static void addRow(int[] in, int from, long[] sums, int n, int sign) {
+        for (int x = 0, q = 0; x < n; x++, q += 4) {
+            int p = in[from + x];
+            sums[q] += sign * (p >>> 24);
+            sums[q + 1] += sign * ((p >> 16) & 0xFF);
+            sums[q + 2] += sign * ((p >> 8) & 0xFF);
+            sums[q + 3] += sign * (p & 0xFF);
+        }
+    }
+
+    // Moyenne = somme * (2^32 / taille) >> 32 : une multiplication au lieu d'une division par pixel
+    private static int packMean(long a, long r, long g, long b, long mul) {
+        int ca = (int) Math.min(255, (a * mul + (1L << 31)) >>> 32);
+        int cr = (int) Math.min(ca, (r * mul + (1L << 31)) >>> 32);
+        int cg = (int) Math.min(ca, (g * mul + (1L << 31)) >>> 32);
+        int cb = (int) Math.min(ca, (b * mul + (1L << 31)) >>> 32);
+        return (ca << 24) | (cr << 16) | (cg << 8) | cb;
+    }
+
+    /** Source index of each position of a line of length n padded by r on both sides. */
+    static int[] indexMap(int n, int r, Border border) {
+        int[] map = new int[n + 2 * r];
+        for (int i = 0; i < map.length; i++) {
+            map[i] = border.map(i - r, n);
+        }
+        return map;
+    }
+}
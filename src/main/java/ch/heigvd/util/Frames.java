@@ -0,0 +1,449 @@
+package ch.heigvd.util;
+
+import ch.heigvd.IOOptions;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.UnaryOperator;
+
+/**
+ * Frame-by-frame processing of animated GIFs and multi-page TIFFs.
+ *
+ * Frames are decoded one at a time ({@code ImageReader.read(i)}), transformed in parallel and written in order, with
+ * at most {@link #window()} frames in flight: memory depends on the window, not on the number of frames. GIF timing
+ * (delays, loop count) is kept. Point operations work on the frames as stored (sub-rectangles, disposal methods);
+ * other operations work on the composed frames, written whole.
+ */
+public final class Frames {
+
+    private Frames() {}
+
+    private static final String GIF_IMAGE = "javax_imageio_gif_image_1.0";
+    private static final String GIF_STREAM = "javax_imageio_gif_stream_1.0";
+
+    /** Frames decoded, transformed or waiting to be written at the same time. */
+    public static int window() {
+        return Math.max(2, Runtime.getRuntime().availableProcessors() + 1);
+    }
+
+    /** True when {@code format} can hold several frames (gif, tiff). */
+    public static boolean sequenceFormat(String format) {
+        return "gif".equals(format) || "tif".equals(format) || "tiff".equals(format);
+    }
+
+    /** Number of frames (pages) of {@code input}; headers only. */
+    public static int count(File input) {
+        ImageInputStream iis = null;
+        try {
+            iis = Images.open(input);
+            ImageReader reader = Images.readerFor(iis, input);
+            try {
+                reader.setInput(iis, false, true);
+                return reader.getNumImages(true);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read image: " + input + " (" + e.getMessage() + ")", e);
+        } finally {
+            Images.close(iis, input);
+        }
+    }
+
+    public record Result(int frames, int width, int height) {}
+
+    /**
+     * Applies {@code transform} to every frame of {@code input} and writes them to {@code output} (gif or tiff).
+     *
+     * @param pointwise true when the transform keeps the geometry and works pixel by pixel
+     * @param io        --format, and --colors/--dither for the GIF palettes
+     */
+    public static Result process(File input, File output, UnaryOperator<BufferedImage> transform, boolean pointwise,
+                                 IOOptions io) {
+        String format = Images.outputFormat(output, io);
+        boolean gifOut = "gif".equals(format);
+        ImageInputStream iis = null;
+        ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            iis = Images.open(input);
+            ImageReader reader = Images.readerFor(iis, input);
+            ImageWriter writer = writerFor(format);
+            try (ImageOutputStream ios = openSequence(output)) {
+                reader.setInput(iis, false, false);
+                writer.setOutput(ios);
+                boolean gifIn = "gif".equalsIgnoreCase(reader.getFormatName());
+                // Sans repères GIF (TIFF en entrée), ou vers un TIFF, les images sont écrites entières
+                boolean raw = pointwise && gifIn && gifOut;
+                Canvas canvas = gifIn && !raw ? new Canvas(reader) : null;
+                int n = reader.getNumImages(true);
+
+                ArrayDeque<Pending> inFlight = new ArrayDeque<>();
+                Sequence seq = new Sequence(writer, reader, gifIn, gifOut, raw, io);
+                for (int i = 0; i < n; i++) {
+                    long t = Metrics.start();
+                    BufferedImage frame = reader.read(i);
+                    Metrics.stop(Metrics.Stage.DECODE, t);
+                    Metrics.decoded((long) frame.getWidth() * frame.getHeight());
+                    IIOMetadata meta = gifIn ? reader.getImageMetadata(i) : null;
+                    BufferedImage in = (canvas != null) ? canvas.compose(frame, meta) : frame;
+                    boolean owned = canvas != null;
+                    inFlight.add(new Pending(workers.submit(() -> timed(transform, in)), in, owned, meta));
+                    if (inFlight.size() >= window()) {
+                        seq.write(inFlight.poll());
+                        if (gifOut) {
+                            // Le GIF ne revient jamais en arrière : ce qui est écrit peut quitter la mémoire
+                            ios.flushBefore(ios.getStreamPosition());
+                        }
+                    }
+                }
+                while (!inFlight.isEmpty()) {
+                    seq.write(inFlight.poll());
+                }
+                Metrics.frames(n);
+                writer.endWriteSequence();
+                ios.flush();
+                return new Result(n, seq.width, seq.height);
+            } finally {
+                reader.dispose();
+                writer.dispose();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to process frames: " + input + " (" + e.getMessage() + ")", e);
+        } finally {
+            workers.shutdownNow();
+            Images.close(iis, input);
+        }
+    }
+
+    /**
+     * A file is written in place; standard output goes through a memory cache, flushed frame by frame for GIF
+     * (a TIFF writer seeks back to link its pages, so a piped TIFF stays in memory until the end).
+     */
+    private static ImageOutputStream openSequence(File output) throws IOException {
+        if (Images.isStdio(output)) {
+            OutputStream os = Images.openOutput(output);
+            return new MemoryCacheImageOutputStream(os) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    os.close();
+                }
+            };
+        }
+        // Comme ImageIO.write : un fichier existant plus long ne doit pas laisser de reste
+        Files.deleteIfExists(output.toPath());
+        return new FileImageOutputStream(output);
+    }
+
+    private static BufferedImage timed(UnaryOperator<BufferedImage> transform, BufferedImage in) {
+        long t = Metrics.start();
+        BufferedImage out = transform.apply(in);
+        Metrics.stop(Metrics.Stage.TRANSFORM, t);
+        return out;
+    }
+
+    private record Pending(Future<BufferedImage> result, BufferedImage in, boolean owned, IIOMetadata meta) {}
+
+    private static ImageWriter writerFor(String format) {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            throw new IllegalArgumentException("No writer for format: " + format);
+        }
+        ImageWriter writer = writers.next();
+        if (!writer.canWriteSequence()) {
+            throw new IllegalArgumentException("Format " + format + " cannot hold several frames.");
+        }
+        return writer;
+    }
+
+    // ---- Écriture dans l'ordre ----
+
+    private static final class Sequence {
+        private final ImageWriter writer;
+        private final ImageReader reader;
+        private final boolean gifIn;
+        private final boolean gifOut;
+        private final boolean raw;
+        private final int paletteSize;
+        private final Quantizer.Dither dither;
+        private boolean started;
+        int width;
+        int height;
+
+        Sequence(ImageWriter writer, ImageReader reader, boolean gifIn, boolean gifOut, boolean raw, IOOptions io) {
+            this.writer = writer;
+            this.reader = reader;
+            this.gifIn = gifIn;
+            this.gifOut = gifOut;
+            this.raw = raw;
+            this.paletteSize = (io != null && io.colors > 0) ? io.colors : 256;
+            this.dither = Quantizer.Dither.parse(io != null ? io.dither : null);
+        }
+
+        void write(Pending p) throws IOException {
+            BufferedImage out;
+            try {
+                out = p.result().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException re) throw re;
+                throw new RuntimeException(cause.getMessage(), cause);
+            }
+            long t = Metrics.start();
+            if (!started) {
+                width = out.getWidth();
+                height = out.getHeight();
+                writer.prepareWriteSequence(gifOut ? streamMetadata() : null);
+                started = true;
+            }
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (gifOut) {
+                BufferedImage indexed = Quantizer.quantize(opaqueOrClear(out), paletteSize, dither);
+                try {
+                    writer.writeToSequence(new IIOImage(indexed, null, gifMetadata(indexed, p.meta(), param)), param);
+                } finally {
+                    PixelPool.release(((DataBufferByte) indexed.getRaster().getDataBuffer()).getData());
+                }
+            } else {
+                writer.writeToSequence(new IIOImage(out, null, null), param);
+            }
+            Metrics.stop(Metrics.Stage.ENCODE, t);
+            // Une vue (getSubimage) partage le tampon de l'image source : rendu une seule fois
+            if (out.getRaster().getDataBuffer() != p.in().getRaster().getDataBuffer()) {
+                PixelPool.release(out);
+            }
+            if (p.owned()) {
+                PixelPool.release(p.in());
+            }
+        }
+
+        // Écran logique : celui de l'original pour les images brutes (sous-rectangles), sinon la taille des images
+        private IIOMetadata streamMetadata() throws IOException {
+            IIOMetadata stream = writer.getDefaultStreamMetadata(null);
+            int w = width;
+            int h = height;
+            if (raw) {
+                Node screen = child(reader.getStreamMetadata().getAsTree(GIF_STREAM), "LogicalScreenDescriptor");
+                if (screen != null) {
+                    w = Integer.parseInt(attr(screen, "logicalScreenWidth", String.valueOf(w)));
+                    h = Integer.parseInt(attr(screen, "logicalScreenHeight", String.valueOf(h)));
+                }
+            }
+            IIOMetadataNode root = new IIOMetadataNode(GIF_STREAM);
+            IIOMetadataNode screen = new IIOMetadataNode("LogicalScreenDescriptor");
+            screen.setAttribute("logicalScreenWidth", String.valueOf(w));
+            screen.setAttribute("logicalScreenHeight", String.valueOf(h));
+            screen.setAttribute("colorResolution", "8");
+            screen.setAttribute("pixelAspectRatio", "0");
+            root.appendChild(screen);
+            stream.mergeTree(GIF_STREAM, root);
+            return stream;
+        }
+
+        private IIOMetadata gifMetadata(BufferedImage indexed, IIOMetadata source, ImageWriteParam param) throws IOException {
+            IIOMetadata meta = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(indexed), param);
+            Node src = (source != null) ? source.getAsTree(GIF_IMAGE) : null;
+            Node srcDescriptor = child(src, "ImageDescriptor");
+            Node srcControl = child(src, "GraphicControlExtension");
+
+            IIOMetadataNode root = new IIOMetadataNode(GIF_IMAGE);
+            IIOMetadataNode descriptor = new IIOMetadataNode("ImageDescriptor");
+            descriptor.setAttribute("imageLeftPosition", raw ? attr(srcDescriptor, "imageLeftPosition", "0") : "0");
+            descriptor.setAttribute("imageTopPosition", raw ? attr(srcDescriptor, "imageTopPosition", "0") : "0");
+            descriptor.setAttribute("imageWidth", String.valueOf(indexed.getWidth()));
+            descriptor.setAttribute("imageHeight", String.valueOf(indexed.getHeight()));
+            descriptor.setAttribute("interlaceFlag", "FALSE");
+            root.appendChild(descriptor);
+
+            int transparent = transparentIndex((IndexColorModel) indexed.getColorModel());
+            IIOMetadataNode control = new IIOMetadataNode("GraphicControlExtension");
+            // Images composées : chacune remplace entièrement la précédente
+            control.setAttribute("disposalMethod", raw ? attr(srcControl, "disposalMethod", "none") : "restoreToBackgroundColor");
+            control.setAttribute("userInputFlag", attr(srcControl, "userInputFlag", "FALSE"));
+            control.setAttribute("transparentColorFlag", transparent >= 0 ? "TRUE" : "FALSE");
+            control.setAttribute("delayTime", attr(srcControl, "delayTime", gifIn ? "0" : "10"));
+            control.setAttribute("transparentColorIndex", String.valueOf(Math.max(0, transparent)));
+            root.appendChild(control);
+
+            // Nombre de boucles (NETSCAPE2.0) et autres extensions d'application
+            Node apps = child(src, "ApplicationExtensions");
+            if (apps != null) {
+                // Copie explicite : cloneNode ne garde pas les attributs des IIOMetadataNode
+                IIOMetadataNode list = new IIOMetadataNode("ApplicationExtensions");
+                for (Node a = apps.getFirstChild(); a != null; a = a.getNextSibling()) {
+                    list.appendChild(application(attr(a, "applicationID", ""), attr(a, "authenticationCode", ""),
+                            (byte[]) ((IIOMetadataNode) a).getUserObject()));
+                }
+                root.appendChild(list);
+            } else if (!gifIn) {
+                // Pages TIFF : animation en boucle infinie
+                IIOMetadataNode list = new IIOMetadataNode("ApplicationExtensions");
+                list.appendChild(application("NETSCAPE", "2.0", new byte[]{1, 0, 0}));
+                root.appendChild(list);
+            }
+            // setFromTree et non mergeTree : la table locale par défaut, décalée d'un indice, est abandonnée et
+            // le writer prend la palette de l'image
+            meta.setFromTree(GIF_IMAGE, root);
+            return meta;
+        }
+    }
+
+    private static IIOMetadataNode application(String id, String code, byte[] data) {
+        IIOMetadataNode node = new IIOMetadataNode("ApplicationExtension");
+        node.setAttribute("applicationID", id);
+        node.setAttribute("authenticationCode", code);
+        node.setUserObject(data);
+        return node;
+    }
+
+    // Le GIF n'a qu'une couleur transparente, tout ou rien : alpha seuillé à 50 %, pixels transparents confondus
+    private static BufferedImage opaqueOrClear(BufferedImage img) {
+        if (!img.getColorModel().hasAlpha()) {
+            return img;
+        }
+        int[] px = Pixels.toArgb(img);
+        for (int i = 0; i < px.length; i++) {
+            px[i] = (px[i] >>> 24) < 128 ? 0 : px[i] | 0xFF000000;
+        }
+        return Pixels.wrap(px, img.getWidth(), img.getHeight(), true);
+    }
+
+    private static int transparentIndex(IndexColorModel cm) {
+        for (int i = 0; i < cm.getMapSize(); i++) {
+            if (cm.getAlpha(i) == 0) return i;
+        }
+        return -1;
+    }
+
+    // ---- Composition des images GIF ----
+
+    /** Logical screen of a GIF, with the disposal methods applied between frames. */
+    private static final class Canvas {
+        private final int width;
+        private final int height;
+        private final int[] screen;
+        private int[] saved;
+        private int prevX, prevY, prevW, prevH;
+        private String prevDisposal = "none";
+
+        Canvas(ImageReader reader) throws IOException {
+            int w = reader.getWidth(0);
+            int h = reader.getHeight(0);
+            IIOMetadata stream = reader.getStreamMetadata();
+            Node screen = (stream != null) ? child(stream.getAsTree(GIF_STREAM), "LogicalScreenDescriptor") : null;
+            if (screen != null) {
+                w = Math.max(w, Integer.parseInt(attr(screen, "logicalScreenWidth", "0")));
+                h = Math.max(h, Integer.parseInt(attr(screen, "logicalScreenHeight", "0")));
+            }
+            this.width = w;
+            this.height = h;
+            this.screen = new int[w * h];
+        }
+
+        /** The frame drawn over the previous ones, as a new pooled ARGB image of the whole screen. */
+        BufferedImage compose(BufferedImage frame, IIOMetadata meta) {
+            // Effacement demandé par l'image précédente
+            if ("restoreToBackgroundColor".equals(prevDisposal)) {
+                fill(prevX, prevY, prevW, prevH);
+            } else if ("restoreToPrevious".equals(prevDisposal) && saved != null) {
+                copyRect(saved, prevW, screen, width, prevX, prevY, prevW, prevH, true);
+            }
+
+            Node root = (meta != null) ? meta.getAsTree(GIF_IMAGE) : null;
+            Node d = child(root, "ImageDescriptor");
+            int x = Integer.parseInt(attr(d, "imageLeftPosition", "0"));
+            int y = Integer.parseInt(attr(d, "imageTopPosition", "0"));
+            int fw = Math.min(frame.getWidth(), width - x);
+            int fh = Math.min(frame.getHeight(), height - y);
+            String disposal = attr(child(root, "GraphicControlExtension"), "disposalMethod", "none");
+
+            if ("restoreToPrevious".equals(disposal)) {
+                saved = new int[Math.max(0, fw) * Math.max(0, fh)];
+                copyRect(screen, width, saved, fw, x, y, fw, fh, false);
+            }
+
+            int[] px = Pixels.toArgb(frame);
+            for (int row = 0; row < fh; row++) {
+                for (int col = 0, s = row * frame.getWidth(), t = (y + row) * width + x; col < fw; col++, s++, t++) {
+                    if ((px[s] >>> 24) != 0) screen[t] = px[s];
+                }
+            }
+            prevX = x;
+            prevY = y;
+            prevW = Math.max(0, fw);
+            prevH = Math.max(0, fh);
+            prevDisposal = disposal;
+
+            BufferedImage copy = PixelPool.image(width, height, true);
+            int[] dst = ((DataBufferInt) copy.getRaster().getDataBuffer()).getData();
+            System.arraycopy(screen, 0, dst, 0, screen.length);
+            return copy;
+        }
+
+        private void fill(int x, int y, int w, int h) {
+            for (int row = 0; row < h; row++) {
+                int o = (y + row) * width + x;
+                Arrays.fill(screen, o, o + w, 0);
+            }
+        }
+
+        // toScreen : de la sauvegarde (stride w) vers l'écran, sinon l'inverse
+        private static void copyRect(int[] from, int fromStride, int[] to, int toStride, int x, int y, int w, int h,
+                                     boolean toScreen) {
+            for (int row = 0; row < h; row++) {
+                if (toScreen) {
+                    System.arraycopy(from, row * fromStride, to, (y + row) * toStride + x, w);
+                } else {
+                    System.arraycopy(from, (y + row) * fromStride + x, to, row * toStride, w);
+                }
+            }
+        }
+    }
+
+    // ---- Métadonnées ----
+
+    private static Node child(Node parent, String name) {
+        if (parent == null) return null;
+        NodeList children = parent.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            if (name.equals(children.item(i).getNodeName())) return children.item(i);
+        }
+        return null;
+    }
+
+    private static String attr(Node node, String name, String fallback) {
+        if (node == null || node.getAttributes() == null) return fallback;
+        Node a = node.getAttributes().getNamedItem(name);
+        return (a != null) ? a.getNodeValue() : fallback;
+    }
+}
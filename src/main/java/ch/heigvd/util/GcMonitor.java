@@ -0,0 +1,28 @@
+package ch.heigvd.util;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Garbage-collection counters of the JVM (all collectors summed), to measure what a job costs the GC.
+ */
+public final class GcMonitor {
+
+    private GcMonitor() {}
+
+    public record Snapshot(long collections, long millis) {
+        public Snapshot since(Snapshot before) {
+            return new Snapshot(collections - before.collections, millis - before.millis);
+        }
+    }
+
+    public static Snapshot snapshot() {
+        long count = 0;
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return new Snapshot(count, time);
+    }
+}
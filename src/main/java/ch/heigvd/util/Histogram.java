@@ -0,0 +1,137 @@
+package ch.heigvd.util;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Per-channel 256-bin histograms of an image (red, green, blue, alpha), computed in one parallel pass.
+ * Each band fills its own {@code int[4][256]} (no shared counters, no contention); the bands are summed at the end.
+ * Every statistic (min, max, mean, standard deviation, percentiles) is then derived from the histograms.
+ */
+public final class Histogram {
+
+    public static final int RED = 0, GREEN = 1, BLUE = 2, ALPHA = 3;
+    private static final String[] NAMES = {"red", "green", "blue", "alpha"};
+
+    private final int width;
+    private final int height;
+    private final long[][] counts; // [canal][valeur]
+
+    private Histogram(int width, int height, long[][] counts) {
+        this.width = width;
+        this.height = height;
+        this.counts = counts;
+    }
+
+    public static Histogram of(BufferedImage img) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        List<int[][]> bands = Parallel.mapBands(h, 32, (y0, y1) -> {
+            int[] r = new int[256], g = new int[256], b = new int[256], a = new int[256];
+            Pixels.RowReader rr = new Pixels.RowReader(img);
+            for (int y = y0; y < y1; y++) {
+                int[] row = rr.row(y);
+                int off = rr.offset(y);
+                for (int x = off, end = off + w; x < end; x++) {
+                    int p = row[x];
+                    a[p >>> 24]++;
+                    r[(p >> 16) & 0xFF]++;
+                    g[(p >> 8) & 0xFF]++;
+                    b[p & 0xFF]++;
+                }
+            }
+            return new int[][]{r, g, b, a};
+        });
+
+        long[][] counts = new long[4][256];
+        for (int[][] band : bands) {
+            for (int c = 0; c < 4; c++) {
+                for (int v = 0; v < 256; v++) {
+                    counts[c][v] += band[c][v];
+                }
+            }
+        }
+        return new Histogram(w, h, counts);
+    }
+
+    public long pixels() {
+        return (long) width * height;
+    }
+
+    public long[] counts(int channel) {
+        return counts[channel];
+    }
+
+    public int min(int channel) {
+        for (int v = 0; v < 256; v++) if (counts[channel][v] > 0) return v;
+        return 0;
+    }
+
+    public int max(int channel) {
+        for (int v = 255; v >= 0; v--) if (counts[channel][v] > 0) return v;
+        return 0;
+    }
+
+    public double mean(int channel) {
+        double sum = 0;
+        for (int v = 0; v < 256; v++) sum += (double) v * counts[channel][v];
+        return pixels() == 0 ? 0 : sum / pixels();
+    }
+
+    public double stddev(int channel) {
+        double m = mean(channel);
+        double sum = 0;
+        for (int v = 0; v < 256; v++) sum += (v - m) * (v - m) * counts[channel][v];
+        return pixels() == 0 ? 0 : Math.sqrt(sum / pixels());
+    }
+
+    /** Smallest value v such that at least {@code fraction} of the pixels are &lt;= v. */
+    public int percentile(int channel, double fraction) {
+        long target = (long) Math.ceil(fraction * pixels());
+        long seen = 0;
+        for (int v = 0; v < 256; v++) {
+            seen += counts[channel][v];
+            if (seen >= Math.max(1, target)) return v;
+        }
+        return 255;
+    }
+
+    /** Fraction of fully transparent pixels. */
+    public double transparentFraction() {
+        return pixels() == 0 ? 0 : (double) counts[ALPHA][0] / pixels();
+    }
+
+    public String toJson(boolean withHistograms) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"width\": ").append(width).append(",\n");
+        sb.append("  \"height\": ").append(height).append(",\n");
+        sb.append("  \"pixels\": ").append(pixels()).append(",\n");
+        sb.append("  \"transparentFraction\": ").append(num(transparentFraction())).append(",\n");
+        sb.append("  \"channels\": {\n");
+        for (int c = 0; c < 4; c++) {
+            sb.append("    \"").append(NAMES[c]).append("\": {");
+            sb.append("\"min\": ").append(min(c));
+            sb.append(", \"max\": ").append(max(c));
+            sb.append(", \"mean\": ").append(num(mean(c)));
+            sb.append(", \"stddev\": ").append(num(stddev(c)));
+            if (withHistograms) {
+                sb.append(", \"histogram\": [");
+                for (int v = 0; v < 256; v++) {
+                    if (v > 0) sb.append(',');
+                    sb.append(counts[c][v]);
+                }
+                sb.append(']');
+            }
+            sb.append(c < 3 ? "},\n" : "}\n");
+        }
+        sb.append("  }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static String num(double v) {
+        return String.format(Locale.ROOT, "%.4f", v);
+    }
+}
@@ -1,72 +1,397 @@
 package ch.heigvd.util;
 
-import picocli.CommandLine;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.io.File;
 
 import ch.heigvd.IOOptions;
 
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.BufferedInputStream;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Iterator;
 
 public class Images {
 
-    @CommandLine.Mixin
-    public static IOOptions io;
+    /** File name standing for standard input (-i) or standard output (-o). */
+    public static final String STDIO = "-";
+
+    private static final int STREAM_BUFFER = 1 << 16;
+
+    // Entrée standard : un seul flux pour toute la commande (en-tête puis pixels), gardé en mémoire pour
+    // pouvoir revenir au début ; jamais fermé
+    private static ImageInputStream stdin;
+
+    static {
+        // Les flux sans fichier (entrée/sortie standard, encodage en mémoire) sont mis en cache en mémoire,
+        // pas dans java.io.tmpdir
+        ImageIO.setUseCache(false);
+    }
+
+    public static BufferedImage readImage(File input) {
+        return readImage(input, null, 0, 0);
+    }
 
-    public static BufferedImage readImage() {
-        File input = io.inputFile;
+    /** Header information, read without decoding any pixel. */
+    public record ImageInfo(int width, int height, String format, boolean hasAlpha) {
+        public long pixels() {
+            return (long) width * height;
+        }
+    }
 
+    /**
+     * Reads width, height, format and alpha from the image header only (no pixel is decoded).
+     */
+    public static ImageInfo probe(File input) {
+        ImageInputStream iis = null;
         try {
-            if (input == null) {
-                throw new IllegalArgumentException("Input file is null.");
-            }
-            if (!input.exists()) {
-                throw new IllegalArgumentException("Input file not found: " + input);
+            iis = open(input);
+            ImageReader reader = readerFor(iis, input);
+            try {
+                reader.setInput(iis, !isStdio(input), true);
+                int w = reader.getWidth(0);
+                int h = reader.getHeight(0);
+                boolean alpha = false;
+                ImageTypeSpecifier raw = reader.getRawImageType(0);
+                if (raw != null && raw.getColorModel() != null) {
+                    alpha = raw.getColorModel().hasAlpha();
+                }
+                return new ImageInfo(w, h, reader.getFormatName().toLowerCase(), alpha);
+            } finally {
+                reader.dispose();
             }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read image header: " + input + " (" + e.getMessage() + ")", e);
+        } finally {
+            close(iis, input);
+        }
+    }
 
-            try (InputStream fis = new FileInputStream(input);
-                 BufferedInputStream bis = new BufferedInputStream(fis)) {
+    /**
+     * Reads an image through an {@link ImageReader}, optionally decoding only part of it.
+     *
+     * @param region  source region in pixels (clipped to the image), or null for the whole image
+     * @param targetW when &gt; 0 (with targetH), the image is subsampled by the largest integer factor that keeps
+     *                the decoded region at least targetW x targetH; fewer pixels are stored and converted
+     * @param targetH see targetW
+     */
+    public static BufferedImage readImage(File input, Rectangle region, int targetW, int targetH) {
+        ImageInputStream iis = null;
+        try {
+            iis = open(input);
+            ImageReader reader = readerFor(iis, input);
+            try {
+                reader.setInput(iis, !isStdio(input), true);
+                ImageReadParam param = reader.getDefaultReadParam();
+
+                int srcW = reader.getWidth(0);
+                int srcH = reader.getHeight(0);
+                Rectangle r = new Rectangle(0, 0, srcW, srcH);
+                if (region != null) {
+                    r = r.intersection(region);
+                    if (r.isEmpty()) {
+                        throw new IllegalArgumentException("Region " + region.x + "," + region.y + "," + region.width + "x"
+                                + region.height + " is outside the image (" + srcW + "x" + srcH + "): " + input);
+                    }
+                    param.setSourceRegion(r);
+                }
 
-                BufferedImage img = ImageIO.read(bis); // Detect format automatically
+                int step = subsampling(r.width, r.height, targetW, targetH);
+                if (step > 1) {
+                    param.setSourceSubsampling(step, step, 0, 0);
+                }
+
+                long t = Metrics.start();
+                BufferedImage img = reader.read(0, param);
                 if (img == null) {
                     throw new IllegalArgumentException("Unsupported or corrupt image: " + input);
                 }
+                Metrics.stop(Metrics.Stage.DECODE, t);
+                Metrics.decoded((long) img.getWidth() * img.getHeight());
                 return img;
+            } finally {
+                reader.dispose();
             }
         } catch (IOException e) {
             throw new RuntimeException("Failed to read image: " + input + " (" + e.getMessage() + ")", e);
+        } finally {
+            close(iis, input);
+        }
+    }
+
+    /**
+     * Keeps one {@link ImageReader} open to decode successive regions of the same file (e.g. horizontal strips),
+     * so that a very large image never has to be held in memory at once.
+     * Formats stored in strips or tiles (TIFF) decode each region directly; sequential formats (PNG, JPEG) have to
+     * scan the compressed data before the region on every call, so fewer, taller regions are cheaper there.
+     */
+    public static final class RegionReader implements AutoCloseable {
+        private final File input;
+        private final ImageInputStream iis;
+        private final ImageReader reader;
+        private final int width;
+        private final int height;
+
+        public RegionReader(File input) {
+            this.input = input;
+            try {
+                this.iis = open(input);
+                this.reader = readerFor(iis, input);
+                reader.setInput(iis, false, true);
+                this.width = reader.getWidth(0);
+                this.height = reader.getHeight(0);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read image: " + input + " (" + e.getMessage() + ")", e);
+            }
+        }
+
+        public int width() {
+            return width;
+        }
+
+        public int height() {
+            return height;
+        }
+
+        public BufferedImage read(Rectangle region) {
+            try {
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(region);
+                long t = Metrics.start();
+                BufferedImage img = reader.read(0, param);
+                if (img == null) {
+                    throw new IllegalArgumentException("Unsupported or corrupt image: " + input);
+                }
+                Metrics.stop(Metrics.Stage.DECODE, t);
+                Metrics.decoded((long) img.getWidth() * img.getHeight());
+                return img;
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read image: " + input + " (" + e.getMessage() + ")", e);
+            }
+        }
+
+        @Override
+        public void close() {
+            reader.dispose();
+            Images.close(iis, input);
         }
     }
 
-    public static void writeImage(BufferedImage image) {
-        File output = io.outputFile;
+    /** Largest integer subsampling keeping a w x h region at least targetW x targetH (1 = no subsampling). */
+    public static int subsampling(int w, int h, int targetW, int targetH) {
+        if (targetW <= 0 || targetH <= 0) return 1;
+        return Math.max(1, Math.min(w / targetW, h / targetH));
+    }
+
+    /** True when {@code f} is "-" (standard input or output). */
+    public static boolean isStdio(File f) {
+        return f != null && f.getPath().equals(STDIO);
+    }
+
+    static ImageInputStream open(File input) throws IOException {
+        if (isStdio(input)) {
+            synchronized (Images.class) {
+                if (stdin == null) {
+                    stdin = new MemoryCacheImageInputStream(
+                            new BufferedInputStream(new FileInputStream(FileDescriptor.in), STREAM_BUFFER)) {
+                        @Override
+                        public void flushBefore(long pos) {
+                            // Certains lecteurs libèrent ce qu'ils ont lu : on garde tout pour la lecture suivante
+                        }
+                    };
+                }
+                stdin.seek(0);
+                return stdin;
+            }
+        }
+        checkInput(input);
+        return ImageIO.createImageInputStream(input);
+    }
 
+    static void close(ImageInputStream iis, File input) {
+        if (iis == null || isStdio(input)) return;
         try {
-            if (output == null) {
-                throw new IllegalArgumentException("Output file is null.");
+            iis.close();
+        } catch (IOException ignored) {
+            // lecture terminée : rien à récupérer
+        }
+    }
+
+    private static void checkInput(File input) {
+        if (input == null) {
+            throw new IllegalArgumentException("Input file is null.");
+        }
+        if (!input.exists()) {
+            throw new IllegalArgumentException("Input file not found: " + input);
+        }
+    }
+
+    static ImageReader readerFor(ImageInputStream iis, File input) {
+        if (iis == null) {
+            throw new IllegalArgumentException("Cannot open image: " + input);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            throw new IllegalArgumentException("Unsupported or corrupt image: " + input);
+        }
+        return readers.next();
+    }
+
+    /** Image format inferred from the file extension (lower case), or null. */
+    public static String formatOf(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0) ? name.substring(dot + 1).toLowerCase() : null;
+    }
+
+    /**
+     * Encodes an image in memory (used when the encoded bytes are cached or written elsewhere), with the palette
+     * options of {@code options}, which may be null.
+     */
+    public static byte[] encode(BufferedImage image, String format, IOOptions options) {
+        long t = Metrics.start();
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            BufferedImage opaque = opaque(image, format);
+            BufferedImage out = indexed(opaque, format, options);
+            try {
+                if (!ImageIO.write(out, format, bos)) {
+                    throw new RuntimeException("No writer for format: " + format);
+                }
+            } finally {
+                releaseIndexed(opaque, out);
             }
+            Metrics.stop(Metrics.Stage.ENCODE, t);
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to encode image as " + format + " (" + e.getMessage() + ")", e);
+        }
+    }
 
-            String name = output.getName();
-            int dot = name.lastIndexOf('.');
-            String format = (dot > 0) ? name.substring(dot + 1).toLowerCase() : null;
+    /**
+     * Format written to {@code output}: the --format of {@code options} when given, otherwise the file extension.
+     * Standard output (-o -) has no extension and needs --format.
+     */
+    public static String outputFormat(File output, IOOptions options) {
+        if (options != null && options.format != null) {
+            return options.format.trim().toLowerCase();
+        }
+        String format = isStdio(output) ? null : formatOf(output);
+        if (format == null) {
+            throw new IllegalArgumentException("Unknown output format for " + output + ": use --format.");
+        }
+        return format;
+    }
 
-            try (OutputStream fos = new FileOutputStream(output);
-                 BufferedOutputStream bos = new BufferedOutputStream(fos)) {
+    /**
+     * Writes {@code image} to {@code output} ("-" = standard output), in the format given by {@link #outputFormat}
+     * and with the palette options of {@code options}: each job passes its own, several can run in one JVM.
+     */
+    public static void writeImage(BufferedImage image, File output, IOOptions options) {
+        if (output == null) {
+            throw new IllegalArgumentException("Output file is null.");
+        }
+        writeImage(image, output, outputFormat(output, options), options);
+    }
 
-                if (!ImageIO.write(image, format, bos)) {
+    /**
+     * Writes {@code image} to {@code output} in {@code format}, whatever the extension and --format say (tiles of a
+     * pyramid have their own format); the palette options come from {@code options}, which may be null.
+     */
+    public static void writeImage(BufferedImage image, File output, String format, IOOptions options) {
+        try {
+            long t = Metrics.start();
+            // Avant d'ouvrir la sortie : un writer refusé ne doit pas laisser un fichier vide
+            BufferedImage opaque = opaque(image, format);
+            BufferedImage out = indexed(opaque, format, options);
+            try (OutputStream bos = openOutput(output)) {
+                if (!ImageIO.write(out, format, bos)) {
                     throw new RuntimeException("No writer for format: " + format);
                 }
                 bos.flush();
+            } finally {
+                releaseIndexed(opaque, out);
             }
+            Metrics.stop(Metrics.Stage.ENCODE, t);
         } catch (IOException e) {
             throw new RuntimeException("Failed to write image: " + output + " (" + e.getMessage() + ")", e);
         }
     }
+
+    /**
+     * {@code image} reduced to a palette when --colors is set (PNG-8 / GIF), otherwise {@code image} itself.
+     * Other formats have no palette and are refused rather than silently written in full color.
+     */
+    private static BufferedImage indexed(BufferedImage image, String format, IOOptions options) {
+        if (options == null || options.colors == 0) {
+            return image;
+        }
+        if (!"png".equals(format) && !"gif".equals(format)) {
+            throw new IllegalArgumentException("--colors needs a png or gif output (got " + format + ").");
+        }
+        return Quantizer.quantize(image, options.colors, Quantizer.Dither.parse(options.dither));
+    }
+
+    /**
+     * {@code image} flattened onto white when {@code format} has no alpha channel (JPEG, BMP: ImageIO has no writer
+     * for an image with alpha in these formats), otherwise {@code image} itself.
+     */
+    private static BufferedImage opaque(BufferedImage image, String format) {
+        boolean noAlpha = "jpg".equals(format) || "jpeg".equals(format) || "bmp".equals(format);
+        if (!noAlpha || !image.getColorModel().hasAlpha()) {
+            return image;
+        }
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = rgb.createGraphics();
+        try {
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, rgb.getWidth(), rgb.getHeight());
+            g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return rgb;
+    }
+
+    private static void releaseIndexed(BufferedImage image, BufferedImage out) {
+        if (out != image) {
+            PixelPool.release(((DataBufferByte) out.getRaster().getDataBuffer()).getData());
+        }
+    }
+
+    /** Writes already encoded bytes (PDF, JSON...) to {@code output} ("-" = standard output). */
+    public static void writeBytes(byte[] bytes, File output) {
+        try (OutputStream os = openOutput(output)) {
+            os.write(bytes);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write: " + output + " (" + e.getMessage() + ")", e);
+        }
+    }
+
+    static OutputStream openOutput(File output) throws IOException {
+        if (isStdio(output)) {
+            // Le descripteur lui-même : System.out peut avoir été redirigé vers stderr pour les messages
+            return new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), STREAM_BUFFER) {
+                @Override
+                public void close() throws IOException {
+                    flush(); // stdout reste ouvert
+                }
+            };
+        }
+        return new BufferedOutputStream(new FileOutputStream(output), STREAM_BUFFER);
+    }
 }
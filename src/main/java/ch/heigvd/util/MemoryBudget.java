@@ -0,0 +1,116 @@
+package ch.heigvd.util;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Global heap budget shared by every job of the JVM (one command, or the jobs of a batch running in parallel).
+ *
+ * Each job reserves its estimated peak footprint before decoding anything and gives it back when it ends.
+ * Reservations are counted in MB on a fair semaphore, so a large job waiting for memory is not overtaken forever
+ * by a stream of small ones. A job larger than the whole budget can never run and is rejected immediately.
+ */
+public final class MemoryBudget {
+
+    public enum Policy {
+        /** Wait until enough memory is released by the other jobs. */
+        QUEUE,
+        /** Fail immediately when the memory is not free now. */
+        REJECT;
+
+        public static Policy parse(String spec) {
+            String s = (spec == null) ? "queue" : spec.trim().toLowerCase();
+            switch (s) {
+                case "queue":
+                    return QUEUE;
+                case "reject":
+                    return REJECT;
+                default:
+                    throw new IllegalArgumentException("Invalid --over-budget: '" + spec + "'. Use queue|reject.");
+            }
+        }
+    }
+
+    private static final long MB = 1024 * 1024;
+    private static MemoryBudget shared;
+
+    private final int capacityMb;
+    private final Semaphore free;
+
+    private MemoryBudget(int capacityMb) {
+        this.capacityMb = capacityMb;
+        this.free = new Semaphore(capacityMb, true);
+    }
+
+    /**
+     * The JVM-wide budget. The first call fixes its size: {@code maxMb} when &gt; 0, otherwise 90 % of the maximum
+     * heap (the rest is left to the JVM and to what the estimates do not count).
+     */
+    public static synchronized MemoryBudget shared(long maxMb) {
+        if (shared == null) {
+            long mb = (maxMb > 0) ? maxMb : Runtime.getRuntime().maxMemory() / MB * 9 / 10;
+            shared = new MemoryBudget((int) Math.max(1, Math.min(Integer.MAX_VALUE, mb)));
+        }
+        return shared;
+    }
+
+    public int capacityMb() {
+        return capacityMb;
+    }
+
+    public int freeMb() {
+        return free.availablePermits();
+    }
+
+    public boolean fits(long bytes) {
+        return toMb(bytes) <= capacityMb;
+    }
+
+    /**
+     * Reserves {@code bytes} for a job.
+     *
+     * @throws IllegalStateException when the job is larger than the whole budget, or (REJECT) when the memory is
+     *                               not free now
+     */
+    public Lease acquire(String job, long bytes, Policy policy) throws InterruptedException {
+        int mb = toMb(bytes);
+        if (mb > capacityMb) {
+            throw new IllegalStateException(job + " needs about " + mb + " MB, more than the memory budget ("
+                    + capacityMb + " MB). Raise --max-memory (and -Xmx) or use a smaller input.");
+        }
+        if (!free.tryAcquire(mb)) {
+            if (policy == Policy.REJECT) {
+                throw new IllegalStateException(job + " needs about " + mb + " MB but only " + freeMb()
+                        + " MB of the budget are free now.");
+            }
+            System.err.println("[memory] " + job + " waits for " + mb + " MB (" + freeMb() + " MB free)...");
+            free.acquire(mb);
+        }
+        return new Lease(mb);
+    }
+
+    private static int toMb(long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, (bytes + MB - 1) / MB));
+    }
+
+    /** A reservation, released by {@link #close()}. */
+    public final class Lease implements AutoCloseable {
+        private final int mb;
+        private boolean released;
+
+        private Lease(int mb) {
+            this.mb = mb;
+        }
+
+        public int mb() {
+            return mb;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!released) {
+                released = true;
+                free.release(mb);
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package ch.heigvd.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Run metrics for capacity planning (--metrics-out): per-stage latency histograms, throughput counters, heap
+ * high-water mark and GC time, exported as JSON or in the Prometheus text format (node_exporter textfile collector).
+ *
+ * Disabled by default: {@link #start()} then returns 0 without reading the clock and {@link #stop} does nothing,
+ * so the instrumented paths cost one volatile read per image when no export is asked for.
+ */
+public final class Metrics {
+
+    /** Timed stages. TRANSFORM is what a job spends outside decoding and encoding on its own thread. */
+    public enum Stage {
+        DECODE, TRANSFORM, ENCODE, PDF, JOB;
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static volatile boolean enabled;
+    private static List<File> outputs = List.of();
+    private static final long STARTED = System.nanoTime();
+    private static final GcMonitor.Snapshot GC_START = GcMonitor.snapshot();
+
+    private static final LatencyHistogram[] STAGES = new LatencyHistogram[Stage.values().length];
+    static {
+        for (int i = 0; i < STAGES.length; i++) STAGES[i] = new LatencyHistogram();
+    }
+
+    private static final AtomicLong IMAGES_OK = new AtomicLong();
+    private static final AtomicLong IMAGES_FAILED = new AtomicLong();
+    private static final AtomicLong IMAGES_CACHED = new AtomicLong();
+    private static final AtomicLong FRAMES = new AtomicLong();
+    private static final AtomicLong PIXELS = new AtomicLong();
+    private static final AtomicLong BYTES_READ = new AtomicLong();
+    private static final AtomicLong BYTES_WRITTEN = new AtomicLong();
+
+    // Temps passé à décoder/encoder par le thread courant, pour en déduire la part "transform" d'un job
+    private static final ThreadLocal<long[]> IO_NANOS = ThreadLocal.withInitial(() -> new long[1]);
+
+    private Metrics() {}
+
+    /** Turns the metrics on; {@link #export()} writes them to {@code files} (.prom: Prometheus text, otherwise JSON). */
+    public static synchronized void enable(List<File> files) {
+        outputs = List.copyOf(files);
+        enabled = true;
+    }
+
+    public static boolean enabled() {
+        return enabled;
+    }
+
+    /** Start of a timed section, or 0 when the metrics are off. */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /** Records the section started at {@code start} (no-op when it is 0). */
+    public static void stop(Stage stage, long start) {
+        if (start == 0) return;
+        long nanos = System.nanoTime() - start;
+        STAGES[stage.ordinal()].record(nanos);
+        if (stage == Stage.DECODE || stage == Stage.ENCODE || stage == Stage.PDF) {
+            IO_NANOS.get()[0] += nanos;
+        }
+    }
+
+    /** Decoding and encoding time of the current thread so far (see {@link #job}). */
+    public static long ioNanos() {
+        return enabled ? IO_NANOS.get()[0] : 0;
+    }
+
+    /**
+     * Records one job (one image, or one animated file) started at {@code start} on this thread: its total time,
+     * and, when it succeeded and its transform was not timed directly ({@code transformTimed}), the time not spent
+     * decoding or encoding.
+     */
+    public static void job(long start, long ioBefore, boolean transformTimed, boolean ok, File input, File output) {
+        if (start == 0) return;
+        long total = System.nanoTime() - start;
+        STAGES[Stage.JOB.ordinal()].record(total);
+        if (ok && !transformTimed) {
+            STAGES[Stage.TRANSFORM.ordinal()].record(Math.max(0, total - (IO_NANOS.get()[0] - ioBefore)));
+        }
+        (ok ? IMAGES_OK : IMAGES_FAILED).incrementAndGet();
+        if (ok) {
+            BYTES_READ.addAndGet(fileSize(input));
+            BYTES_WRITTEN.addAndGet(fileSize(output));
+        }
+    }
+
+    public static void cached(File input, File output) {
+        if (!enabled) return;
+        IMAGES_CACHED.incrementAndGet();
+        BYTES_READ.addAndGet(fileSize(input));
+        BYTES_WRITTEN.addAndGet(fileSize(output));
+    }
+
+    public static void decoded(long pixels) {
+        if (enabled) PIXELS.addAndGet(pixels);
+    }
+
+    public static void frames(long n) {
+        if (enabled) FRAMES.addAndGet(n);
+    }
+
+    private static long fileSize(File f) {
+        // Entrée/sortie standard et dossiers (pyramide) : pas de taille de fichier
+        return (f != null && f.isFile()) ? f.length() : 0;
+    }
+
+    // ---- Export ----
+
+    /** Writes the current values to every --metrics-out file (atomically: the collector never reads half a file). */
+    public static synchronized void export() throws IOException {
+        if (!enabled) return;
+        for (File f : outputs) {
+            String text = f.getName().endsWith(".prom") ? prometheus() : json();
+            Path target = f.toPath().toAbsolutePath();
+            Files.createDirectories(target.getParent());
+            Path tmp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".tmp");
+            try {
+                Files.writeString(tmp, text, StandardCharsets.UTF_8);
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    private static double uptimeSeconds() {
+        return (System.nanoTime() - STARTED) / 1e9;
+    }
+
+    /** Sum of the peak usage of the heap pools (each pool's own peak: an upper bound of the real high-water mark). */
+    private static long heapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    static String json() {
+        double up = uptimeSeconds();
+        GcMonitor.Snapshot gc = GcMonitor.snapshot().since(GC_START);
+        long images = IMAGES_OK.get() + IMAGES_CACHED.get();
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"uptimeSeconds\": ").append(num(up)).append(",\n");
+        sb.append("  \"images\": {\"ok\": ").append(IMAGES_OK.get())
+                .append(", \"failed\": ").append(IMAGES_FAILED.get())
+                .append(", \"cached\": ").append(IMAGES_CACHED.get()).append("},\n");
+        sb.append("  \"frames\": ").append(FRAMES.get()).append(",\n");
+        sb.append("  \"pixelsDecoded\": ").append(PIXELS.get()).append(",\n");
+        sb.append("  \"bytesRead\": ").append(BYTES_READ.get()).append(",\n");
+        sb.append("  \"bytesWritten\": ").append(BYTES_WRITTEN.get()).append(",\n");
+        sb.append("  \"throughput\": {\"imagesPerSecond\": ").append(num(images / up))
+                .append(", \"megapixelsPerSecond\": ").append(num(PIXELS.get() / 1e6 / up))
+                .append(", \"bytesReadPerSecond\": ").append(num(BYTES_READ.get() / up))
+                .append(", \"bytesWrittenPerSecond\": ").append(num(BYTES_WRITTEN.get() / up)).append("},\n");
+        sb.append("  \"heap\": {\"peakBytes\": ").append(heapPeak())
+                .append(", \"maxBytes\": ").append(Runtime.getRuntime().maxMemory()).append("},\n");
+        sb.append("  \"gc\": {\"collections\": ").append(gc.collections())
+                .append(", \"millis\": ").append(gc.millis()).append("},\n");
+        sb.append("  \"stagesMs\": {\n");
+        Stage[] stages = Stage.values();
+        for (int i = 0; i < stages.length; i++) {
+            LatencyHistogram h = STAGES[i];
+            sb.append("    \"").append(stages[i].label()).append("\": {\"count\": ").append(h.count())
+                    .append(", \"p50\": ").append(ms(h.percentile(0.50)))
+                    .append(", \"p95\": ").append(ms(h.percentile(0.95)))
+                    .append(", \"p99\": ").append(ms(h.percentile(0.99)))
+                    .append(", \"max\": ").append(ms(h.max()))
+                    .append(", \"total\": ").append(ms(h.sum()))
+                    .append(i < stages.length - 1 ? "},\n" : "}\n");
+        }
+        sb.append("  }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    static String prometheus() {
+        GcMonitor.Snapshot gc = GcMonitor.snapshot().since(GC_START);
+        StringBuilder sb = new StringBuilder();
+        sb.append("# HELP imagetoolbox_stage_seconds Latency of each processing stage.\n");
+        sb.append("# TYPE imagetoolbox_stage_seconds summary\n");
+        Stage[] stages = Stage.values();
+        for (int i = 0; i < stages.length; i++) {
+            LatencyHistogram h = STAGES[i];
+            String label = "stage=\"" + stages[i].label() + "\"";
+            for (double q : new double[]{0.5, 0.95, 0.99}) {
+                sb.append("imagetoolbox_stage_seconds{").append(label).append(",quantile=\"").append(q).append("\"} ")
+                        .append(sec(h.percentile(q))).append('\n');
+            }
+            sb.append("imagetoolbox_stage_seconds_sum{").append(label).append("} ").append(sec(h.sum())).append('\n');
+            sb.append("imagetoolbox_stage_seconds_count{").append(label).append("} ").append(h.count()).append('\n');
+        }
+        sb.append("# HELP imagetoolbox_stage_max_seconds Slowest run of each stage.\n");
+        sb.append("# TYPE imagetoolbox_stage_max_seconds gauge\n");
+        for (int i = 0; i < stages.length; i++) {
+            sb.append("imagetoolbox_stage_max_seconds{stage=\"").append(stages[i].label()).append("\"} ")
+                    .append(sec(STAGES[i].max())).append('\n');
+        }
+        sb.append("# HELP imagetoolbox_images_total Jobs by result (cached: served from the result cache).\n");
+        sb.append("# TYPE imagetoolbox_images_total counter\n");
+        sb.append("imagetoolbox_images_total{result=\"ok\"} ").append(IMAGES_OK.get()).append('\n');
+        sb.append("imagetoolbox_images_total{result=\"failed\"} ").append(IMAGES_FAILED.get()).append('\n');
+        sb.append("imagetoolbox_images_total{result=\"cached\"} ").append(IMAGES_CACHED.get()).append('\n');
+        counter(sb, "frames_total", "Frames of animated GIF / multi-page TIFF inputs processed.", FRAMES.get());
+        counter(sb, "pixels_decoded_total", "Pixels decoded.", PIXELS.get());
+        counter(sb, "read_bytes_total", "Bytes of input files.", BYTES_READ.get());
+        counter(sb, "written_bytes_total", "Bytes of output files.", BYTES_WRITTEN.get());
+        gauge(sb, "heap_peak_bytes", "Heap high-water mark (sum of the heap pool peaks).", heapPeak());
+        gauge(sb, "heap_max_bytes", "Maximum heap size.", Runtime.getRuntime().maxMemory());
+        counter(sb, "gc_collections_total", "Garbage collections.", gc.collections());
+        sb.append("# HELP imagetoolbox_gc_seconds_total Time spent in garbage collection.\n");
+        sb.append("# TYPE imagetoolbox_gc_seconds_total counter\n");
+        sb.append("imagetoolbox_gc_seconds_total ").append(num(gc.millis() / 1e3)).append('\n');
+        sb.append("# HELP imagetoolbox_uptime_seconds Time since the start of the run.\n");
+        sb.append("# TYPE imagetoolbox_uptime_seconds gauge\n");
+        sb.append("imagetoolbox_uptime_seconds ").append(num(uptimeSeconds())).append('\n');
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP imagetoolbox_").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE imagetoolbox_").append(name).append(" counter\n");
+        sb.append("imagetoolbox_").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP imagetoolbox_").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE imagetoolbox_").append(name).append(" gauge\n");
+        sb.append("imagetoolbox_").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String num(double v) {
+        return String.format(Locale.ROOT, "%.4f", v);
+    }
+
+    private static String ms(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String sec(long nanos) {
+        return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+    }
+
+    /**
+     * HDR-style histogram of durations in nanoseconds: 64 linear sub-buckets per power of two, so any recorded
+     * value is known within 1.6% whatever its magnitude, in a fixed array. Lock-free; record() is a few atomics.
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BITS = 6;
+        private static final int SUB = 1 << SUB_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            long v = Math.max(0, nanos);
+            counts.incrementAndGet(index(v));
+            count.incrementAndGet();
+            sum.addAndGet(v);
+            max.accumulateAndGet(v, Math::max);
+        }
+
+        long count() {
+            return count.get();
+        }
+
+        long sum() {
+            return sum.get();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        /** Upper bound of the bucket holding the {@code q} quantile (never more than the max recorded). */
+        long percentile(double q) {
+            long n = count.get();
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * n));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(highest(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        // Valeurs < 64 : une case chacune ; au-delà, 64 cases par puissance de deux
+        static int index(long v) {
+            if (v < SUB) return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+            return (exp - SUB_BITS + 1) * SUB + sub;
+        }
+
+        static long highest(int index) {
+            if (index < SUB) return index;
+            int exp = index / SUB + SUB_BITS - 1;
+            long low = (long) (SUB + index % SUB) << (exp - SUB_BITS);
+            return low + (1L << (exp - SUB_BITS)) - 1;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package ch.heigvd.util;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Small helpers to split row-based image work into bands and run them on the common ForkJoinPool.
+ * The common pool copes with nested calls (a parallel band calling another parallel helper) without deadlocking.
+ */
+public final class Parallel {
+
+    private Parallel() {}
+
+    @FunctionalInterface
+    public interface Band {
+        void run(int from, int to);
+    }
+
+    @FunctionalInterface
+    public interface BandFunction<T> {
+        T apply(int from, int to);
+    }
+
+    /**
+     * Number of bands used to split {@code n} rows, keeping at least {@code minPerBand} rows per band.
+     * A few bands per core so that uneven rows still balance well.
+     */
+    public static int bandCount(int n, int minPerBand) {
+        if (n <= 0) return 0;
+        int byCores = Runtime.getRuntime().availableProcessors() * 4;
+        int bySize = Math.max(1, n / Math.max(1, minPerBand));
+        return Math.max(1, Math.min(byCores, bySize));
+    }
+
+    /** Runs {@code body} over [0, n) split in bands, in parallel. */
+    public static void forBands(int n, int minPerBand, Band body) {
+        int bands = bandCount(n, minPerBand);
+        if (bands <= 1) {
+            if (n > 0) body.run(0, n);
+            return;
+        }
+        IntStream.range(0, bands).parallel().forEach(b -> body.run(bandStart(n, bands, b), bandStart(n, bands, b + 1)));
+    }
+
+    /** Same as {@link #forBands} but collects one result per band, in band order. */
+    public static <T> List<T> mapBands(int n, int minPerBand, BandFunction<T> body) {
+        int bands = bandCount(n, minPerBand);
+        if (bands <= 1) {
+            return (n > 0) ? List.of(body.apply(0, n)) : List.of();
+        }
+        return IntStream.range(0, bands).parallel()
+                .mapToObj(b -> body.apply(bandStart(n, bands, b), bandStart(n, bands, b + 1)))
+                .toList();
+    }
+
+    private static int bandStart(int n, int bands, int b) {
+        return (int) ((long) n * b / bands);
+    }
+}
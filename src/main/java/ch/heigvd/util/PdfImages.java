@@ -0,0 +1,288 @@
+package ch.heigvd.util;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+import org.apache.pdfbox.pdmodel.graphics.color.PDIndexed;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes a page image into a PDF image XObject with a selectable strategy.
+ *
+ * <ul>
+ *   <li>{@code lossless}: PDFBox {@link LosslessFactory} (single-threaded Flate, the historical behaviour)</li>
+ *   <li>{@code jpeg}: DCT encoding with a quality setting (smallest/fastest for photos, lossy)</li>
+ *   <li>{@code indexed}: Flate on an 8-bit palette, for flat-color artwork with at most 256 colors</li>
+ *   <li>{@code parallel-flate}: RGB Flate where row chunks are compressed concurrently</li>
+ * </ul>
+ */
+public final class PdfImages {
+
+    private PdfImages() {}
+
+    public enum Encoding {
+        LOSSLESS, JPEG, INDEXED, PARALLEL_FLATE;
+
+        public static Encoding parse(String spec) {
+            String s = (spec == null) ? "lossless" : spec.trim().toLowerCase();
+            switch (s) {
+                case "lossless":
+                    return LOSSLESS;
+                case "jpeg":
+                case "dct":
+                    return JPEG;
+                case "indexed":
+                    return INDEXED;
+                case "parallel-flate":
+                    return PARALLEL_FLATE;
+                default:
+                    throw new IllegalArgumentException("Invalid --pdf-image-encoding: '" + spec + "'. Use lossless|jpeg|indexed|parallel-flate.");
+            }
+        }
+
+        public String label() {
+            return name().toLowerCase().replace('_', '-');
+        }
+    }
+
+    /** Result of an encode: the XObject, the encoding actually used, the encoded stream size and the time spent. */
+    public record Encoded(PDImageXObject image, Encoding encoding, long encodedBytes, long nanos) {
+        public long millis() {
+            return nanos / 1_000_000L;
+        }
+    }
+
+    // Rows compressed per parallel chunk (at least); smaller chunks cost a few bytes of ratio each.
+    private static final int MIN_ROWS_PER_CHUNK = 64;
+
+    public static Encoded encode(PDDocument doc, BufferedImage image, Encoding encoding, float jpegQuality) throws IOException {
+        long t0 = System.nanoTime();
+        Encoding used = encoding;
+        PDImageXObject pdImage;
+
+        switch (encoding) {
+            case JPEG:
+                pdImage = JPEGFactory.createFromImage(doc, image, jpegQuality);
+                break;
+            case INDEXED:
+                pdImage = createIndexed(doc, image);
+                if (pdImage == null) {
+                    // Trop de couleurs pour une palette : on retombe sur le Flate parallèle (sans perte).
+                    used = Encoding.PARALLEL_FLATE;
+                    pdImage = createParallelFlate(doc, image);
+                }
+                break;
+            case PARALLEL_FLATE:
+                pdImage = createParallelFlate(doc, image);
+                break;
+            case LOSSLESS:
+            default:
+                pdImage = LosslessFactory.createFromImage(doc, image);
+                break;
+        }
+
+        long nanos = System.nanoTime() - t0;
+        return new Encoded(pdImage, used, streamLength(pdImage), nanos);
+    }
+
+    private static long streamLength(PDImageXObject img) {
+        long len = img.getCOSObject().getLength();
+        PDImageXObject mask = null;
+        try {
+            mask = img.getSoftMask();
+        } catch (IOException ignored) {
+            // pas de masque lisible : on ne compte que l'image
+        }
+        if (mask != null) len += mask.getCOSObject().getLength();
+        return len;
+    }
+
+    // ---- Parallel Flate ----
+
+    private static PDImageXObject createParallelFlate(PDDocument doc, BufferedImage image) throws IOException {
+        int w = image.getWidth();
+        int h = image.getHeight();
+
+        byte[] rgb = deflateRows(h, (y0, y1) -> {
+            int[] argb = image.getRGB(0, y0, w, y1 - y0, null, 0, w);
+            byte[] raw = new byte[argb.length * 3];
+            int o = 0;
+            for (int p : argb) {
+                raw[o++] = (byte) (p >> 16);
+                raw[o++] = (byte) (p >> 8);
+                raw[o++] = (byte) p;
+            }
+            return raw;
+        });
+        PDImageXObject pdImage = flateXObject(doc, rgb, w, h, PDDeviceRGB.INSTANCE);
+
+        if (image.getColorModel().hasAlpha()) {
+            attachAlphaMask(doc, pdImage, image);
+        }
+        return pdImage;
+    }
+
+    private static void attachAlphaMask(PDDocument doc, PDImageXObject pdImage, BufferedImage image) throws IOException {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        byte[] alpha = deflateRows(h, (y0, y1) -> {
+            int[] argb = image.getRGB(0, y0, w, y1 - y0, null, 0, w);
+            byte[] raw = new byte[argb.length];
+            for (int i = 0; i < argb.length; i++) {
+                raw[i] = (byte) (argb[i] >>> 24);
+            }
+            return raw;
+        });
+        PDImageXObject mask = flateXObject(doc, alpha, w, h, PDDeviceGray.INSTANCE);
+        pdImage.getCOSObject().setItem(COSName.SMASK, mask);
+    }
+
+    private static PDImageXObject flateXObject(PDDocument doc, byte[] zlib, int w, int h, PDColorSpace cs) throws IOException {
+        return new PDImageXObject(doc, new ByteArrayInputStream(zlib), COSName.FLATE_DECODE, w, h, 8, cs);
+    }
+
+    /**
+     * Compresses rows into a single zlib stream. Each band is deflated independently (raw deflate, ended by a
+     * SYNC_FLUSH so it stays byte-aligned), which lets the bands be concatenated; the last band is FINISHed.
+     * The Adler-32 trailers of the bands are combined instead of re-scanning the whole raw data.
+     */
+    static byte[] deflateRows(int rows, Parallel.BandFunction<byte[]> rawRows) {
+        List<Chunk> chunks = Parallel.mapBands(rows, MIN_ROWS_PER_CHUNK,
+                (y0, y1) -> deflateChunk(rawRows.apply(y0, y1), y1 == rows));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(chunks.stream().mapToInt(c -> c.data.length).sum() + 6);
+        out.write(0x78);
+        out.write(0x9C); // zlib header: deflate, 32K window, default level
+
+        long adler = 1L;
+        for (Chunk c : chunks) {
+            out.write(c.data, 0, c.data.length);
+            adler = adler32Combine(adler, c.adler, c.rawLength);
+        }
+        out.write((int) (adler >>> 24) & 0xFF);
+        out.write((int) (adler >>> 16) & 0xFF);
+        out.write((int) (adler >>> 8) & 0xFF);
+        out.write((int) adler & 0xFF);
+        return out.toByteArray();
+    }
+
+    private record Chunk(byte[] data, long adler, long rawLength) {}
+
+    private static Chunk deflateChunk(byte[] raw, boolean last) {
+        Adler32 a = new Adler32();
+        a.update(raw, 0, raw.length);
+
+        Deflater d = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            d.setInput(raw);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, raw.length / 4));
+            byte[] buf = new byte[64 * 1024];
+            if (last) {
+                d.finish();
+                while (!d.finished()) {
+                    int n = d.deflate(buf);
+                    out.write(buf, 0, n);
+                }
+            } else {
+                int n;
+                do {
+                    n = d.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    out.write(buf, 0, n);
+                } while (n == buf.length);
+            }
+            return new Chunk(out.toByteArray(), a.getValue(), raw.length);
+        } finally {
+            d.end();
+        }
+    }
+
+    // Same as zlib's adler32_combine().
+    static long adler32Combine(long adler1, long adler2, long len2) {
+        final long base = 65521L;
+        long rem = len2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= (base << 1)) sum2 -= (base << 1);
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+    // ---- Indexed (palette) ----
+
+    /** Returns null when the image has more than 256 distinct colors. */
+    private static PDImageXObject createIndexed(PDDocument doc, BufferedImage image) throws IOException {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int[] argb = image.getRGB(0, 0, w, h, null, 0, w);
+
+        // Petite table de hachage à adressage ouvert (clé = RGB, valeur = index palette).
+        int[] keys = new int[1024];
+        int[] vals = new int[1024];
+        Arrays.fill(vals, -1);
+        int[] palette = new int[256];
+        int n = 0;
+
+        byte[] indices = new byte[argb.length];
+        int lastRgb = -1;
+        int lastIdx = -1;
+        for (int i = 0; i < argb.length; i++) {
+            int rgb = argb[i] & 0xFFFFFF;
+            if (rgb != lastRgb) {
+                int slot = (rgb * 0x9E3779B1) >>> 22;
+                while (vals[slot] >= 0 && keys[slot] != rgb) {
+                    slot = (slot + 1) & 1023;
+                }
+                if (vals[slot] < 0) {
+                    if (n == 256) return null;
+                    keys[slot] = rgb;
+                    vals[slot] = n;
+                    palette[n++] = rgb;
+                }
+                lastRgb = rgb;
+                lastIdx = vals[slot];
+            }
+            indices[i] = (byte) lastIdx;
+        }
+
+        byte[] lookup = new byte[n * 3];
+        for (int i = 0; i < n; i++) {
+            lookup[3 * i] = (byte) (palette[i] >> 16);
+            lookup[3 * i + 1] = (byte) (palette[i] >> 8);
+            lookup[3 * i + 2] = (byte) palette[i];
+        }
+        COSArray csArray = new COSArray();
+        csArray.add(COSName.INDEXED);
+        csArray.add(COSName.DEVICERGB);
+        csArray.add(COSInteger.get(n - 1));
+        csArray.add(new COSString(lookup));
+        PDIndexed indexed = new PDIndexed(csArray);
+
+        byte[] zlib = deflateRows(h, (y0, y1) -> Arrays.copyOfRange(indices, y0 * w, y1 * w));
+        PDImageXObject pdImage = flateXObject(doc, zlib, w, h, indexed);
+
+        if (image.getColorModel().hasAlpha()) {
+            attachAlphaMask(doc, pdImage, image);
+        }
+        return pdImage;
+    }
+}
@@ -0,0 +1,153 @@
+package ch.heigvd.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of pixel buffers reused across jobs, to avoid allocating (and collecting) a large array per image and per
+ * intermediate step. Image-sized arrays are "humongous" objects for G1: allocating them in a loop triggers extra
+ * collections and long pauses.
+ *
+ * Arrays come in size classes (four per power of two, so at most 25 % is wasted): an acquired array may be longer
+ * than requested and its content is undefined. Buffers are given back explicitly with {@code release}; a buffer
+ * that is never released is simply collected. The pool keeps at most {@link #limitBytes()} of free buffers.
+ */
+public final class PixelPool {
+
+    private PixelPool() {}
+
+    // Sous ce seuil, l'allocation est moins chère que le pool
+    private static final int MIN_POOLED = 1 << 14;
+    private static final int CLASSES = 4 * 32;
+
+    @SuppressWarnings("unchecked")
+    private static final ConcurrentLinkedDeque<int[]>[] INTS = (ConcurrentLinkedDeque<int[]>[]) new ConcurrentLinkedDeque<?>[CLASSES];
+    @SuppressWarnings("unchecked")
+    private static final ConcurrentLinkedDeque<byte[]>[] BYTES = (ConcurrentLinkedDeque<byte[]>[]) new ConcurrentLinkedDeque<?>[CLASSES];
+
+    static {
+        for (int i = 0; i < CLASSES; i++) {
+            INTS[i] = new ConcurrentLinkedDeque<>();
+            BYTES[i] = new ConcurrentLinkedDeque<>();
+        }
+    }
+
+    private static volatile long limitBytes = Math.min(256L << 20, Runtime.getRuntime().maxMemory() / 4);
+    private static final AtomicLong retainedBytes = new AtomicLong();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    /** Counters since the start of the JVM. */
+    public record Stats(long hits, long misses, long retainedBytes) {}
+
+    public static Stats stats() {
+        return new Stats(hits.get(), misses.get(), retainedBytes.get());
+    }
+
+    public static long limitBytes() {
+        return limitBytes;
+    }
+
+    /** Maximum size of the free buffers kept by the pool (0 disables pooling). */
+    public static void setLimitBytes(long bytes) {
+        limitBytes = Math.max(0, bytes);
+    }
+
+    // ---- int[] ----
+
+    /** An int[] of at least {@code length} elements; content undefined. */
+    public static int[] acquireInts(int length) {
+        if (length < MIN_POOLED) {
+            return new int[length];
+        }
+        int c = sizeClass(length);
+        int[] a = INTS[c].pollFirst();
+        if (a != null) {
+            retainedBytes.addAndGet(-4L * a.length);
+            hits.incrementAndGet();
+            return a;
+        }
+        misses.incrementAndGet();
+        return new int[classSize(c)];
+    }
+
+    /** Gives an array back; the caller must not use it anymore. Arrays that are not pooled sizes are dropped. */
+    public static void release(int[] a) {
+        if (a == null || a.length < MIN_POOLED) return;
+        int c = sizeClass(a.length);
+        if (classSize(c) != a.length || !reserve(4L * a.length)) return;
+        INTS[c].offerFirst(a);
+    }
+
+    // ---- byte[] ----
+
+    /** A byte[] of at least {@code length} elements; content undefined. */
+    public static byte[] acquireBytes(int length) {
+        if (length < MIN_POOLED) {
+            return new byte[length];
+        }
+        int c = sizeClass(length);
+        byte[] a = BYTES[c].pollFirst();
+        if (a != null) {
+            retainedBytes.addAndGet(-a.length);
+            hits.incrementAndGet();
+            return a;
+        }
+        misses.incrementAndGet();
+        return new byte[classSize(c)];
+    }
+
+    public static void release(byte[] a) {
+        if (a == null || a.length < MIN_POOLED) return;
+        int c = sizeClass(a.length);
+        if (classSize(c) != a.length || !reserve(a.length)) return;
+        BYTES[c].offerFirst(a);
+    }
+
+    // ---- Images ----
+
+    /** A w x h packed ARGB (or RGB) image backed by a pooled int[]; content undefined. */
+    public static BufferedImage image(int w, int h, boolean alpha) {
+        return Pixels.wrap(acquireInts(Math.multiplyExact(w, h)), w, h, alpha);
+    }
+
+    /** Gives back the buffer of an image obtained from {@link #image}; the image must not be used anymore. */
+    public static void release(BufferedImage img) {
+        if (img == null) return;
+        DataBuffer db = img.getRaster().getDataBuffer();
+        if (db instanceof DataBufferInt dbi && dbi.getNumBanks() == 1) {
+            release(dbi.getData());
+        }
+    }
+
+    // ---- Internes ----
+
+    private static boolean reserve(long bytes) {
+        long cur;
+        do {
+            cur = retainedBytes.get();
+            if (cur + bytes > limitBytes) return false;
+        } while (!retainedBytes.compareAndSet(cur, cur + bytes));
+        return true;
+    }
+
+    // Classes : 2^k, 1.25 * 2^k, 1.5 * 2^k, 1.75 * 2^k
+    private static int sizeClass(int length) {
+        int k = 31 - Integer.numberOfLeadingZeros(length);
+        int base = 1 << k;
+        if (length == base) return 4 * k;
+        int quarter = Math.max(1, base >> 2);
+        int step = (length - base + quarter - 1) / quarter; // 1..4
+        return 4 * k + step;
+    }
+
+    private static int classSize(int c) {
+        int k = c / 4;
+        int step = c % 4;
+        long size = (1L << k) + (long) step * ((1L << k) >> 2);
+        return (int) Math.min(Integer.MAX_VALUE - 8, size);
+    }
+}
@@ -0,0 +1,194 @@
+package ch.heigvd.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Fast access to packed ARGB pixels.
+ * For TYPE_INT_ARGB / TYPE_INT_RGB images (including getSubimage views), rows are read straight from the
+ * backing int[]; other types go through getRGB one row at a time.
+ */
+public final class Pixels {
+
+    private Pixels() {}
+
+    /** Reads rows of an image as packed ARGB (opaque alpha for images without alpha). Not thread-safe: one per thread. */
+    public static final class RowReader {
+        private final BufferedImage img;
+        private final int w;
+        private final int[] data;      // backing array, or null
+        private final int base;        // index of pixel (0,0)
+        private final int stride;
+        private final boolean opaque;  // TYPE_INT_RGB: alpha bits are undefined
+        private final int[] row;
+
+        public RowReader(BufferedImage img) {
+            this.img = img;
+            this.w = img.getWidth();
+            Raster r = img.getRaster();
+            int t = img.getType();
+            if ((t == BufferedImage.TYPE_INT_ARGB || t == BufferedImage.TYPE_INT_RGB)
+                    && r.getDataBuffer() instanceof DataBufferInt db
+                    && r.getSampleModel() instanceof SinglePixelPackedSampleModel sm) {
+                this.data = db.getData();
+                this.stride = sm.getScanlineStride();
+                this.base = db.getOffset() - r.getSampleModelTranslateY() * stride - r.getSampleModelTranslateX();
+                this.opaque = (t == BufferedImage.TYPE_INT_RGB);
+                this.row = opaque ? new int[w] : null;
+            } else {
+                this.data = null;
+                this.stride = 0;
+                this.base = 0;
+                this.opaque = false;
+                this.row = new int[w];
+            }
+        }
+
+        /**
+         * Returns an array holding row {@code y} starting at {@link #offset(int)}.
+         * The array may be the image's own buffer: read only.
+         */
+        public int[] row(int y) {
+            if (data != null && !opaque) {
+                return data;
+            }
+            if (data != null) {
+                int from = base + y * stride;
+                for (int x = 0; x < w; x++) {
+                    row[x] = data[from + x] | 0xFF000000;
+                }
+                return row;
+            }
+            img.getRGB(0, y, w, 1, row, 0, w);
+            return row;
+        }
+
+        /** Index of pixel (0, y) in the array returned by {@link #row(int)}. */
+        public int offset(int y) {
+            return (data != null && !opaque) ? base + y * stride : 0;
+        }
+    }
+
+    /** Packed ARGB copy of the whole image (row-major, stride = width). */
+    public static int[] toArgb(BufferedImage img) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        int[] out = new int[w * h];
+        Parallel.forBands(h, 32, (y0, y1) -> {
+            RowReader rr = new RowReader(img);
+            for (int y = y0; y < y1; y++) {
+                System.arraycopy(rr.row(y), rr.offset(y), out, y * w, w);
+            }
+        });
+        return out;
+    }
+
+    /** Wraps a packed ARGB array (stride = width) as an image, without copying. */
+    public static BufferedImage wrap(int[] argb, int w, int h, boolean alpha) {
+        DirectColorModel cm = alpha
+                ? new DirectColorModel(32, 0x00FF0000, 0x0000FF00, 0x000000FF, 0xFF000000)
+                : new DirectColorModel(24, 0x00FF0000, 0x0000FF00, 0x000000FF, 0);
+        int[] masks = alpha
+                ? new int[]{0x00FF0000, 0x0000FF00, 0x000000FF, 0xFF000000}
+                : new int[]{0x00FF0000, 0x0000FF00, 0x000000FF};
+        DataBufferInt db = new DataBufferInt(argb, w * h);
+        WritableRaster raster = Raster.createPackedRaster(db, w, h, w, masks, null);
+        return new BufferedImage(cm, raster, false, null);
+    }
+
+    /**
+     * Mirrored copy (left-right and/or top-bottom), keeping the alpha channel.
+     * The copy's buffer comes from {@link PixelPool}.
+     */
+    public static BufferedImage mirror(BufferedImage src, boolean horizontal, boolean vertical) {
+        int w = src.getWidth();
+        int h = src.getHeight();
+        BufferedImage out = PixelPool.image(w, h, src.getColorModel().hasAlpha());
+        int[] dst = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
+        Parallel.forBands(h, 32, (y0, y1) -> {
+            RowReader rr = new RowReader(src);
+            for (int y = y0; y < y1; y++) {
+                int[] row = rr.row(y);
+                int off = rr.offset(y);
+                int o = (vertical ? h - 1 - y : y) * w;
+                if (horizontal) {
+                    for (int x = 0, t = o + w - 1; x < w; x++, t--) {
+                        dst[t] = row[off + x];
+                    }
+                } else {
+                    System.arraycopy(row, off, dst, o, w);
+                }
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Copy rotated by a quarter turn, clockwise or not, keeping the alpha channel.
+     * The copy's buffer comes from {@link PixelPool}.
+     */
+    public static BufferedImage rotateQuarter(BufferedImage src, boolean clockwise) {
+        int w = src.getWidth();
+        int h = src.getHeight();
+        // Sortie h x w : le pixel (X, Y) est à Y * h + X
+        BufferedImage out = PixelPool.image(h, w, src.getColorModel().hasAlpha());
+        int[] dst = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
+        Parallel.forBands(h, 32, (y0, y1) -> {
+            RowReader rr = new RowReader(src);
+            for (int y = y0; y < y1; y++) {
+                int[] row = rr.row(y);
+                int off = rr.offset(y);
+                if (clockwise) { // (x,y) --> (h-1-y, x)
+                    for (int x = 0, t = h - 1 - y; x < w; x++, t += h) {
+                        dst[t] = row[off + x];
+                    }
+                } else { // (x,y) --> (y, w-1-x)
+                    for (int x = 0, t = (w - 1) * h + y; x < w; x++, t -= h) {
+                        dst[t] = row[off + x];
+                    }
+                }
+            }
+        });
+        return out;
+    }
+
+    // ---- Alpha prémultiplié ----
+
+    /** Converts packed ARGB to premultiplied alpha, in place. */
+    public static void premultiply(int[] px) {
+        Parallel.forBands(px.length, 1 << 16, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                px[i] = premultiply(px[i]);
+            }
+        });
+    }
+
+    public static int premultiply(int argb) {
+        int a = argb >>> 24;
+        if (a == 0xFF) return argb;
+        if (a == 0) return 0;
+        int r = ((argb >> 16) & 0xFF) * a / 255;
+        int g = ((argb >> 8) & 0xFF) * a / 255;
+        int b = (argb & 0xFF) * a / 255;
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /** Inverse of {@link #premultiply(int[])}, in place. */
+    public static void unpremultiply(int[] px) {
+        Parallel.forBands(px.length, 1 << 16, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                int argb = px[i];
+                int a = argb >>> 24;
+                if (a == 0xFF || a == 0) continue;
+                int r = Math.min(255, (((argb >> 16) & 0xFF) * 255 + a / 2) / a);
+                int g = Math.min(255, (((argb >> 8) & 0xFF) * 255 + a / 2) / a);
+                int b = Math.min(255, ((argb & 0xFF) * 255 + a / 2) / a);
+                px[i] = (a << 24) | (r << 16) | (g << 8) | b;
+            }
+        });
+    }
+}
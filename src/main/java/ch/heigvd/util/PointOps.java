@@ -0,0 +1,330 @@
+package ch.heigvd.util;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Point operations: each output pixel only depends on the same input pixel.
+ *
+ * Two building blocks cover most color adjustments:
+ * <ul>
+ *   <li>{@link Lut}: one 256-entry table per channel (invert, gamma, levels, curves, threshold, posterize...);</li>
+ *   <li>{@link ColorMatrix}: a 4x5 fixed-point matrix mixing R, G, B, A plus an offset (grayscale, sepia,
+ *       channel swap, saturation...).</li>
+ * </ul>
+ * Both compose (a chain of LUTs is one LUT, a chain of matrices is one matrix) and {@link #apply} runs the
+ * matrix then the LUT in a single parallel pass over packed pixels, without allocating per pixel or per row.
+ */
+public final class PointOps {
+
+    private PointOps() {}
+
+    // ---- Tables ----
+
+    /** Per-channel lookup tables (R, G, B, A), each mapping 0-255 to 0-255. */
+    public static final class Lut {
+        final int[][] t; // [canal][valeur]
+
+        private Lut(int[][] t) {
+            this.t = t;
+        }
+
+        public static Lut identity() {
+            int[][] t = new int[4][256];
+            for (int c = 0; c < 4; c++) {
+                for (int v = 0; v < 256; v++) t[c][v] = v;
+            }
+            return new Lut(t);
+        }
+
+        /** Same table for R, G and B; alpha unchanged. */
+        public static Lut rgb(IntUnary f) {
+            Lut l = identity();
+            for (int v = 0; v < 256; v++) {
+                int o = clamp(f.apply(v));
+                l.t[0][v] = o;
+                l.t[1][v] = o;
+                l.t[2][v] = o;
+            }
+            return l;
+        }
+
+        /** One table per color channel (R, G, B, 256 entries each); alpha unchanged. */
+        public static Lut perChannel(int[] red, int[] green, int[] blue) {
+            Lut l = identity();
+            for (int v = 0; v < 256; v++) {
+                l.t[0][v] = clamp(red[v]);
+                l.t[1][v] = clamp(green[v]);
+                l.t[2][v] = clamp(blue[v]);
+            }
+            return l;
+        }
+
+        public static Lut invert() {
+            return rgb(v -> 255 - v);
+        }
+
+        /** out = 255 * (in / 255)^(1 / gamma): gamma &gt; 1 brightens the mid-tones. */
+        public static Lut gamma(double gamma) {
+            if (gamma <= 0) {
+                throw new IllegalArgumentException("Invalid gamma: " + gamma + " (expected > 0).");
+            }
+            return rgb(v -> (int) Math.round(255 * Math.pow(v / 255.0, 1.0 / gamma)));
+        }
+
+        /** Maps [inLo, inHi] linearly to [outLo, outHi] (clamped outside). */
+        public static Lut levels(int inLo, int inHi, int outLo, int outHi) {
+            if (inHi <= inLo) {
+                throw new IllegalArgumentException("Invalid levels: " + inLo + "-" + inHi + " (low must be below high).");
+            }
+            return rgb(v -> {
+                int c = Math.max(inLo, Math.min(inHi, v));
+                return (int) Math.round(outLo + (c - inLo) * (double) (outHi - outLo) / (inHi - inLo));
+            });
+        }
+
+        /**
+         * Curve through control points {@code "in:out"} (e.g. {@code "0:0,64:40,192:220,255:255"}), linear between
+         * points and flat beyond the first/last one.
+         */
+        public static Lut curve(String spec) {
+            String[] parts = spec.split(",");
+            int n = parts.length;
+            int[] xs = new int[n];
+            int[] ys = new int[n];
+            try {
+                for (int i = 0; i < n; i++) {
+                    String[] xy = parts[i].trim().split(":");
+                    xs[i] = Integer.parseInt(xy[0].trim());
+                    ys[i] = Integer.parseInt(xy[1].trim());
+                    if (i > 0 && xs[i] <= xs[i - 1]) {
+                        throw new IllegalArgumentException("Curve points must have increasing inputs: '" + spec + "'.");
+                    }
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Invalid curve: '" + spec + "'. Use in:out,in:out,...");
+            }
+            return rgb(v -> {
+                if (v <= xs[0]) return ys[0];
+                for (int i = 1; i < n; i++) {
+                    if (v <= xs[i]) {
+                        return (int) Math.round(ys[i - 1] + (v - xs[i - 1]) * (double) (ys[i] - ys[i - 1]) / (xs[i] - xs[i - 1]));
+                    }
+                }
+                return ys[n - 1];
+            });
+        }
+
+        /** 0 below {@code t}, 255 from {@code t} up. */
+        public static Lut threshold(int t) {
+            return rgb(v -> v >= t ? 255 : 0);
+        }
+
+        /** Keeps {@code levels} evenly spaced values per channel (2-256). */
+        public static Lut posterize(int levels) {
+            if (levels < 2 || levels > 256) {
+                throw new IllegalArgumentException("Invalid posterize levels: " + levels + " (expected 2 - 256).");
+            }
+            return rgb(v -> (int) Math.round(Math.round(v * (levels - 1) / 255.0) * 255.0 / (levels - 1)));
+        }
+
+        /** This table followed by {@code next}. */
+        public Lut then(Lut next) {
+            int[][] r = new int[4][256];
+            for (int c = 0; c < 4; c++) {
+                for (int v = 0; v < 256; v++) r[c][v] = next.t[c][t[c][v]];
+            }
+            return new Lut(r);
+        }
+
+        boolean isIdentity() {
+            for (int c = 0; c < 4; c++) {
+                for (int v = 0; v < 256; v++) if (t[c][v] != v) return false;
+            }
+            return true;
+        }
+    }
+
+    @FunctionalInterface
+    public interface IntUnary {
+        int apply(int v);
+    }
+
+    // ---- Matrices ----
+
+    /**
+     * Color matrix: {@code [r' g' b' a'] = M * [r g b a 255]}, coefficients in 16.16 fixed point.
+     * Applied on straight (non-premultiplied) values.
+     */
+    public static final class ColorMatrix {
+        private static final int BITS = 16;
+        private static final double ONE = 1 << BITS;
+
+        final int[] m = new int[20]; // 4 lignes x 5 colonnes
+
+        private ColorMatrix(double[] coeffs) {
+            for (int i = 0; i < 20; i++) {
+                // 5e colonne : décalage, multiplié par 255 (1.0 = +255)
+                m[i] = (int) Math.round(coeffs[i] * ONE);
+            }
+        }
+
+        private double[] d() {
+            double[] r = new double[20];
+            for (int i = 0; i < 20; i++) r[i] = m[i] / ONE;
+            return r;
+        }
+
+        public static ColorMatrix of(double... coeffs) {
+            if (coeffs.length != 20) {
+                throw new IllegalArgumentException("A color matrix has 20 coefficients (4 rows x 5).");
+            }
+            return new ColorMatrix(coeffs);
+        }
+
+        public static ColorMatrix identity() {
+            return of(
+                    1, 0, 0, 0, 0,
+                    0, 1, 0, 0, 0,
+                    0, 0, 1, 0, 0,
+                    0, 0, 0, 1, 0);
+        }
+
+        /** Luma weights of a standard: "bt601" (0.299, 0.587, 0.114) or "bt709" (0.2126, 0.7152, 0.0722). */
+        public static double[] lumaWeights(String standard) {
+            String s = (standard == null) ? "bt601" : standard.trim().toLowerCase();
+            switch (s) {
+                case "bt601":
+                    return new double[]{0.299, 0.587, 0.114};
+                case "bt709":
+                    return new double[]{0.2126, 0.7152, 0.0722};
+                default:
+                    throw new IllegalArgumentException("Invalid luma weights: '" + standard + "'. Use bt601|bt709.");
+            }
+        }
+
+        public static ColorMatrix grayscale(double[] w) {
+            return of(
+                    w[0], w[1], w[2], 0, 0,
+                    w[0], w[1], w[2], 0, 0,
+                    w[0], w[1], w[2], 0, 0,
+                    0, 0, 0, 1, 0);
+        }
+
+        public static ColorMatrix sepia() {
+            return of(
+                    0.393, 0.769, 0.189, 0, 0,
+                    0.349, 0.686, 0.168, 0, 0,
+                    0.272, 0.534, 0.131, 0, 0,
+                    0, 0, 0, 1, 0);
+        }
+
+        /** 0 = gray, 1 = unchanged, &gt; 1 = more saturated (around BT.709 luma). */
+        public static ColorMatrix saturation(double s) {
+            double[] w = lumaWeights("bt709");
+            double[] c = new double[20];
+            for (int row = 0; row < 3; row++) {
+                for (int col = 0; col < 3; col++) {
+                    c[row * 5 + col] = (1 - s) * w[col] + (row == col ? s : 0);
+                }
+            }
+            c[18] = 1;
+            return of(c);
+        }
+
+        /** Reorders the color channels, e.g. "bgr" swaps red and blue, "rrr" copies red everywhere. */
+        public static ColorMatrix swap(String order) {
+            String o = (order == null) ? "" : order.trim().toLowerCase();
+            if (!o.matches("[rgb]{3}")) {
+                throw new IllegalArgumentException("Invalid channel order: '" + order + "'. Use three of r, g, b (e.g. bgr).");
+            }
+            double[] c = new double[20];
+            for (int row = 0; row < 3; row++) {
+                c[row * 5 + "rgb".indexOf(o.charAt(row))] = 1;
+            }
+            c[18] = 1;
+            return of(c);
+        }
+
+        /** This matrix followed by {@code next} (next * this). */
+        public ColorMatrix then(ColorMatrix next) {
+            double[] a = d();
+            double[] b = next.d();
+            double[] r = new double[20];
+            for (int row = 0; row < 4; row++) {
+                for (int col = 0; col < 5; col++) {
+                    double s = (col == 4) ? b[row * 5 + 4] : 0;
+                    for (int k = 0; k < 4; k++) {
+                        s += b[row * 5 + k] * a[k * 5 + col];
+                    }
+                    r[row * 5 + col] = s;
+                }
+            }
+            return of(r);
+        }
+
+        boolean isIdentity() {
+            int one = 1 << BITS;
+            for (int row = 0; row < 4; row++) {
+                for (int col = 0; col < 5; col++) {
+                    if (m[row * 5 + col] != (row == col ? one : 0)) return false;
+                }
+            }
+            return true;
+        }
+
+        boolean keepsAlpha() {
+            return m[15] == 0 && m[16] == 0 && m[17] == 0 && m[18] == (1 << BITS) && m[19] == 0;
+        }
+    }
+
+    // ---- Application ----
+
+    /**
+     * Applies {@code matrix} (may be null) then {@code lut} (may be null) to every pixel, in one parallel pass.
+     * The result has an alpha channel when the source has one; its buffer comes from {@link PixelPool}
+     * (give it back with {@link PixelPool#release(BufferedImage)} once written).
+     */
+    public static BufferedImage apply(BufferedImage src, ColorMatrix matrix, Lut lut) {
+        int w = src.getWidth();
+        int h = src.getHeight();
+        int[] out = PixelPool.acquireInts(w * h);
+        Parallel.forBands(h, 32, (y0, y1) -> {
+            Pixels.RowReader rr = new Pixels.RowReader(src);
+            for (int y = y0; y < y1; y++) {
+                System.arraycopy(rr.row(y), rr.offset(y), out, y * w, w);
+            }
+            apply(out, y0 * w, y1 * w, matrix, lut);
+        });
+        return Pixels.wrap(out, w, h, src.getColorModel().hasAlpha());
+    }
+
+    /** In-place version on packed ARGB, for the range [from, to). */
+    public static void apply(int[] px, int from, int to, ColorMatrix matrix, Lut lut) {
+        if (matrix != null && !matrix.isIdentity()) {
+            int[] m = matrix.m;
+            int half = 1 << (ColorMatrix.BITS - 1);
+            int o0 = m[4] * 255 + half, o1 = m[9] * 255 + half, o2 = m[14] * 255 + half, o3 = m[19] * 255 + half;
+            boolean keepAlpha = matrix.keepsAlpha();
+            for (int i = from; i < to; i++) {
+                int p = px[i];
+                int a = p >>> 24, r = (p >> 16) & 0xFF, g = (p >> 8) & 0xFF, b = p & 0xFF;
+                int nr = clamp((m[0] * r + m[1] * g + m[2] * b + m[3] * a + o0) >> ColorMatrix.BITS);
+                int ng = clamp((m[5] * r + m[6] * g + m[7] * b + m[8] * a + o1) >> ColorMatrix.BITS);
+                int nb = clamp((m[10] * r + m[11] * g + m[12] * b + m[13] * a + o2) >> ColorMatrix.BITS);
+                int na = keepAlpha ? a : clamp((m[15] * r + m[16] * g + m[17] * b + m[18] * a + o3) >> ColorMatrix.BITS);
+                px[i] = (na << 24) | (nr << 16) | (ng << 8) | nb;
+            }
+        }
+        if (lut != null && !lut.isIdentity()) {
+            int[] lr = lut.t[0], lg = lut.t[1], lb = lut.t[2], la = lut.t[3];
+            for (int i = from; i < to; i++) {
+                int p = px[i];
+                px[i] = (la[p >>> 24] << 24) | (lr[(p >> 16) & 0xFF] << 16) | (lg[(p >> 8) & 0xFF] << 8) | lb[p & 0xFF];
+            }
+        }
+    }
+
+    private static int clamp(int v) {
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+}
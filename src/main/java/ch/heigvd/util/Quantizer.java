@@ -0,0 +1,392 @@
+package ch.heigvd.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Palette quantization to an 8-bit indexed image (PNG-8), for flat-color artwork.
+ *
+ * When the image already has at most N distinct colors (detected with a small open-addressing hash set that gives
+ * up as soon as it overflows), that exact palette is used and the result is lossless. Otherwise a median cut over a
+ * 5-5-5-3 bit (RGB + alpha) histogram picks the palette, and pixels are mapped through a lazily filled table from
+ * histogram cell to nearest palette entry. Mapping runs in parallel bands, except Floyd-Steinberg dithering whose
+ * error flows from row to row.
+ */
+public final class Quantizer {
+
+    private Quantizer() {}
+
+    public enum Dither {
+        NONE, ORDERED, FLOYD_STEINBERG;
+
+        public static Dither parse(String spec) {
+            String s = (spec == null) ? "none" : spec.trim().toLowerCase();
+            switch (s) {
+                case "none":
+                    return NONE;
+                case "ordered":
+                    return ORDERED;
+                case "floyd-steinberg":
+                case "fs":
+                    return FLOYD_STEINBERG;
+                default:
+                    throw new IllegalArgumentException("Invalid --dither: '" + spec + "'. Use none|ordered|floyd-steinberg.");
+            }
+        }
+    }
+
+    // Cellules de l'histogramme : 5 bits par couleur, 3 bits d'alpha
+    private static final int CELLS = 1 << 18;
+
+    // Bayer 4x4, centré sur 0 (en 1/16 d'un pas de quantification)
+    private static final int[] BAYER = {0, 8, 2, 10, 12, 4, 14, 6, 3, 11, 1, 9, 15, 7, 13, 5};
+
+    /**
+     * Returns {@code src} as a TYPE_BYTE_INDEXED image with at most {@code colors} (2-256) palette entries.
+     * Its byte buffer comes from {@link PixelPool}.
+     */
+    public static BufferedImage quantize(BufferedImage src, int colors, Dither dither) {
+        if (colors < 2 || colors > 256) {
+            throw new IllegalArgumentException("--colors must be between 2 and 256 (got " + colors + ").");
+        }
+        int w = src.getWidth();
+        int h = src.getHeight();
+        int[] px = Pixels.toArgb(src);
+        boolean alpha = src.getColorModel().hasAlpha();
+        if (!alpha) {
+            for (int i = 0; i < px.length; i++) px[i] |= 0xFF000000;
+        }
+        byte[] idx = PixelPool.acquireBytes(w * h);
+
+        int[] palette = exactPalette(px, colors);
+        if (palette != null) {
+            ColorSet set = new ColorSet(palette.length);
+            for (int i = 0; i < palette.length; i++) set.put(palette[i], i);
+            Parallel.forBands(h, 32, (y0, y1) -> {
+                for (int i = y0 * w, end = y1 * w; i < end; i++) {
+                    idx[i] = (byte) set.get(px[i]);
+                }
+            });
+        } else {
+            palette = medianCut(px, colors);
+            int[] nearest = new int[CELLS];
+            Arrays.fill(nearest, -1);
+            int[] pal = palette;
+            switch (dither) {
+                case NONE -> Parallel.forBands(h, 32, (y0, y1) -> {
+                    for (int i = y0 * w, end = y1 * w; i < end; i++) {
+                        idx[i] = (byte) lookup(px[i], pal, nearest);
+                    }
+                });
+                case ORDERED -> Parallel.forBands(h, 32, (y0, y1) -> {
+                    for (int y = y0; y < y1; y++) {
+                        for (int x = 0, i = y * w; x < w; x++, i++) {
+                            // Décalage de -4..+3.5 niveaux : environ un pas de la grille 5 bits
+                            int d = (BAYER[((y & 3) << 2) | (x & 3)] - 8) >> 1;
+                            int p = px[i];
+                            int c = (p & 0xFF000000)
+                                    | (clamp(((p >> 16) & 0xFF) + d) << 16)
+                                    | (clamp(((p >> 8) & 0xFF) + d) << 8)
+                                    | clamp((p & 0xFF) + d);
+                            idx[i] = (byte) lookup(c, pal, nearest);
+                        }
+                    }
+                });
+                case FLOYD_STEINBERG -> floydSteinberg(px, w, h, pal, nearest, idx);
+            }
+        }
+        return indexed(idx, w, h, palette);
+    }
+
+    // ---- Palette exacte ----
+
+    /** The distinct colors of {@code px} if there are at most {@code max}, else null. */
+    static int[] exactPalette(int[] px, int max) {
+        ColorSet set = new ColorSet(max);
+        int last = px.length > 0 ? ~px[0] : 0;
+        for (int p : px) {
+            if (p == last) continue; // aplats : la même couleur se répète
+            last = p;
+            if (set.get(p) < 0) {
+                if (set.size() == max) return null;
+                set.put(p, set.size());
+            }
+        }
+        return set.keys();
+    }
+
+    /** Open-addressing int -> int map for at most a few hundred colors. */
+    static final class ColorSet {
+        private final int[] keys;
+        private final int[] values;
+        private final boolean[] used;
+        private final int mask;
+        private final int[] order;
+        private int size;
+
+        ColorSet(int capacity) {
+            int n = Integer.highestOneBit(Math.max(4, capacity * 4 - 1)) << 1;
+            keys = new int[n];
+            values = new int[n];
+            used = new boolean[n];
+            mask = n - 1;
+            order = new int[capacity];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int get(int key) {
+            for (int i = hash(key) & mask; used[i]; i = (i + 1) & mask) {
+                if (keys[i] == key) return values[i];
+            }
+            return -1;
+        }
+
+        void put(int key, int value) {
+            int i = hash(key) & mask;
+            while (used[i] && keys[i] != key) i = (i + 1) & mask;
+            if (!used[i]) {
+                used[i] = true;
+                keys[i] = key;
+                order[size++] = key;
+            }
+            values[i] = value;
+        }
+
+        int[] keys() {
+            return Arrays.copyOf(order, size);
+        }
+
+        private static int hash(int k) {
+            k *= 0x9E3779B1;
+            return k ^ (k >>> 16);
+        }
+    }
+
+    // ---- Median cut ----
+
+    private static int cell(int p) {
+        return ((p >>> 29) << 15) | (((p >> 19) & 0x1F) << 10) | (((p >> 11) & 0x1F) << 5) | ((p >> 3) & 0x1F);
+    }
+
+    private static int[] medianCut(int[] px, int colors) {
+        // Histogramme par bande (sans contention), puis somme
+        List<int[]> bands = Parallel.mapBands(px.length, 1 << 16, (from, to) -> {
+            int[] count = new int[CELLS];
+            for (int i = from; i < to; i++) count[cell(px[i])]++;
+            return count;
+        });
+        long[] count = new long[CELLS];
+        for (int[] band : bands) {
+            for (int i = 0; i < CELLS; i++) count[i] += band[i];
+        }
+
+        int n = 0;
+        for (long c : count) if (c > 0) n++;
+        int[] cells = new int[n];
+        for (int i = 0, k = 0; i < CELLS; i++) if (count[i] > 0) cells[k++] = i;
+
+        // Boîtes = intervalles de cells ; on coupe toujours la plus "lourde" (pixels x étendue) à sa médiane
+        List<Box> boxes = new ArrayList<>();
+        boxes.add(new Box(cells, count, 0, n));
+        while (boxes.size() < colors) {
+            int best = -1;
+            for (int b = 0; b < boxes.size(); b++) {
+                Box box = boxes.get(b);
+                if (box.score > 0 && (best < 0 || box.score > boxes.get(best).score)) best = b;
+            }
+            if (best < 0) break;
+
+            Box box = boxes.get(best);
+            // Tri primitif : la composante dans les bits de poids fort, la cellule (18 bits) dessous
+            for (int i = box.from; i < box.to; i++) cells[i] |= component(cells[i], box.axis) << 18;
+            Arrays.sort(cells, box.from, box.to);
+            for (int i = box.from; i < box.to; i++) cells[i] &= CELLS - 1;
+
+            long seen = 0;
+            int cut = box.from + 1;
+            for (int i = box.from; i < box.to - 1; i++) {
+                seen += count[cells[i]];
+                cut = i + 1;
+                if (seen * 2 >= box.pixels) break;
+            }
+            boxes.set(best, new Box(cells, count, box.from, cut));
+            boxes.add(new Box(cells, count, cut, box.to));
+        }
+
+        // Couleur de chaque boîte = moyenne exacte de ses pixels (et non des centres de cellules)
+        int[] boxOf = new int[CELLS];
+        for (int b = 0; b < boxes.size(); b++) {
+            Box box = boxes.get(b);
+            for (int i = box.from; i < box.to; i++) boxOf[cells[i]] = b;
+        }
+        int k = boxes.size();
+        List<long[]> sums = Parallel.mapBands(px.length, 1 << 16, (from, to) -> {
+            long[] s = new long[k * 4];
+            for (int i = from; i < to; i++) {
+                int p = px[i];
+                int o = 4 * boxOf[cell(p)];
+                s[o] += p >>> 24;
+                s[o + 1] += (p >> 16) & 0xFF;
+                s[o + 2] += (p >> 8) & 0xFF;
+                s[o + 3] += p & 0xFF;
+            }
+            return s;
+        });
+        int[] palette = new int[k];
+        for (int b = 0; b < k; b++) {
+            long pixels = boxes.get(b).pixels;
+            int argb = 0;
+            for (int c = 0; c < 4; c++) {
+                long sum = 0;
+                for (long[] s : sums) sum += s[4 * b + c];
+                argb = (argb << 8) | (int) ((sum + pixels / 2) / pixels);
+            }
+            palette[b] = argb;
+        }
+        return palette;
+    }
+
+    private static final class Box {
+        final int from;
+        final int to;
+        final long pixels;
+        final int axis;
+        final long score;
+
+        Box(int[] cells, long[] count, int from, int to) {
+            this.from = from;
+            this.to = to;
+            long sum = 0;
+            for (int i = from; i < to; i++) sum += count[cells[i]];
+            int axis = 0;
+            int range = 0;
+            for (int a = 0; a < 4; a++) {
+                int lo = 31, hi = 0;
+                for (int i = from; i < to; i++) {
+                    int v = component(cells[i], a);
+                    if (v < lo) lo = v;
+                    if (v > hi) hi = v;
+                }
+                if (hi - lo > range) {
+                    range = hi - lo;
+                    axis = a;
+                }
+            }
+            this.pixels = sum;
+            this.axis = axis;
+            this.score = (to - from < 2) ? 0 : sum * range;
+        }
+    }
+
+    // axe 0 = alpha (3 bits, mis à l'échelle 5 bits), 1..3 = r, g, b
+    private static int component(int cell, int axis) {
+        return switch (axis) {
+            case 0 -> (cell >>> 15) << 2;
+            case 1 -> (cell >> 10) & 0x1F;
+            case 2 -> (cell >> 5) & 0x1F;
+            default -> cell & 0x1F;
+        };
+    }
+
+    // ---- Association pixel -> palette ----
+
+    // Cache par cellule : plusieurs threads peuvent calculer la même entrée, ils écrivent la même valeur
+    private static int lookup(int p, int[] palette, int[] nearest) {
+        int c = cell(p);
+        int i = nearest[c];
+        if (i < 0) {
+            // Centre de la cellule ; les extrêmes d'alpha restent exacts (opaque, transparent)
+            int a3 = c >>> 15;
+            int a = (a3 == 7) ? 255 : (a3 == 0) ? 0 : (a3 << 5) | 0x10;
+            int r = (((c >> 10) & 0x1F) << 3) | 4;
+            int g = (((c >> 5) & 0x1F) << 3) | 4;
+            int b = ((c & 0x1F) << 3) | 4;
+            i = nearest(palette, a, r, g, b);
+            nearest[c] = i;
+        }
+        return i;
+    }
+
+    private static int nearest(int[] palette, int a, int r, int g, int b) {
+        int best = 0;
+        long bestD = Long.MAX_VALUE;
+        for (int i = 0; i < palette.length; i++) {
+            int q = palette[i];
+            int da = (q >>> 24) - a;
+            int dr = ((q >> 16) & 0xFF) - r;
+            int dg = ((q >> 8) & 0xFF) - g;
+            int db = (q & 0xFF) - b;
+            // Poids perceptifs approximatifs ; l'alpha compte beaucoup (un trou ne doit pas se remplir)
+            long d = 3L * dr * dr + 4L * dg * dg + 2L * db * db + 4L * da * da;
+            if (d < bestD) {
+                bestD = d;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private static void floydSteinberg(int[] px, int w, int h, int[] palette, int[] nearest, byte[] idx) {
+        // Erreurs (x16) de la ligne courante et de la suivante, 3 canaux, avec une marge d'un pixel de chaque côté
+        int[] cur = new int[(w + 2) * 3];
+        int[] nxt = new int[(w + 2) * 3];
+        for (int y = 0; y < h; y++) {
+            Arrays.fill(nxt, 0);
+            for (int x = 0; x < w; x++) {
+                int i = y * w + x;
+                int p = px[i];
+                int e = (x + 1) * 3;
+                int r = clamp(((p >> 16) & 0xFF) + (cur[e] >> 4));
+                int g = clamp(((p >> 8) & 0xFF) + (cur[e + 1] >> 4));
+                int b = clamp((p & 0xFF) + (cur[e + 2] >> 4));
+                int k = lookup((p & 0xFF000000) | (r << 16) | (g << 8) | b, palette, nearest);
+                idx[i] = (byte) k;
+                if ((p >>> 24) == 0) continue; // pas de diffusion depuis les trous
+                int q = palette[k];
+                int er = r - ((q >> 16) & 0xFF);
+                int eg = g - ((q >> 8) & 0xFF);
+                int eb = b - (q & 0xFF);
+                diffuse(cur, e + 3, er, eg, eb, 7);
+                diffuse(nxt, e - 3, er, eg, eb, 3);
+                diffuse(nxt, e, er, eg, eb, 5);
+                diffuse(nxt, e + 3, er, eg, eb, 1);
+            }
+            int[] t = cur;
+            cur = nxt;
+            nxt = t;
+        }
+    }
+
+    private static void diffuse(int[] err, int e, int er, int eg, int eb, int weight) {
+        err[e] += er * weight;
+        err[e + 1] += eg * weight;
+        err[e + 2] += eb * weight;
+    }
+
+    private static int clamp(int v) {
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+
+    private static BufferedImage indexed(byte[] idx, int w, int h, int[] palette) {
+        int n = palette.length;
+        byte[] r = new byte[n], g = new byte[n], b = new byte[n], a = new byte[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = (byte) (palette[i] >>> 24);
+            r[i] = (byte) (palette[i] >> 16);
+            g[i] = (byte) (palette[i] >> 8);
+            b[i] = (byte) palette[i];
+        }
+        IndexColorModel cm = new IndexColorModel(8, n, r, g, b, a);
+        WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(idx, w * h), w, h, w, 1, new int[]{0}, null);
+        return new BufferedImage(cm, raster, false, null);
+    }
+}
@@ -0,0 +1,337 @@
+package ch.heigvd.util;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Image resampling.
+ *
+ * {@link #resize} is a separable engine: one horizontal and one vertical pass over packed ARGB arrays, each
+ * output column/row reading a precomputed list of source indices and fixed-point weights (computed once per
+ * pass, not per pixel). Rows are processed in parallel bands. When downscaling, the filter is stretched by the
+ * scale factor so that every source pixel contributes (area-correct, no aliasing).
+ */
+public final class Resampler {
+
+    private Resampler() {}
+
+    public enum Filter {
+        BOX(0.5), BILINEAR(1.0), BICUBIC(2.0), LANCZOS3(3.0);
+
+        final double support;
+
+        Filter(double support) {
+            this.support = support;
+        }
+
+        double weight(double x) {
+            x = Math.abs(x);
+            switch (this) {
+                case BOX:
+                    return x < 0.5 ? 1.0 : (x == 0.5 ? 0.5 : 0.0);
+                case BILINEAR:
+                    return x < 1.0 ? 1.0 - x : 0.0;
+                case BICUBIC: {
+                    // Catmull-Rom (a = -0.5)
+                    final double a = -0.5;
+                    if (x <= 1) return ((a + 2) * x - (a + 3)) * x * x + 1;
+                    if (x < 2) return ((a * x - 5 * a) * x + 8 * a) * x - 4 * a;
+                    return 0.0;
+                }
+                case LANCZOS3:
+                    return x < 3.0 ? sinc(x) * sinc(x / 3.0) : 0.0;
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+
+        public static Filter parse(String spec) {
+            String s = (spec == null) ? "lanczos3" : spec.trim().toLowerCase();
+            switch (s) {
+                case "box":
+                case "area":
+                    return BOX;
+                case "bilinear":
+                case "triangle":
+                    return BILINEAR;
+                case "bicubic":
+                    return BICUBIC;
+                case "lanczos3":
+                case "lanczos":
+                    return LANCZOS3;
+                default:
+                    throw new IllegalArgumentException("Invalid --filter: '" + spec + "'. Use box|bilinear|bicubic|lanczos3.");
+            }
+        }
+    }
+
+    private static double sinc(double x) {
+        if (x == 0.0) return 1.0;
+        x *= Math.PI;
+        return Math.sin(x) / x;
+    }
+
+    // Poids en virgule fixe 14 bits : 255 * somme(|w|) tient largement dans un int
+    private static final int W_BITS = 14;
+    private static final int W_ROUND = 1 << (W_BITS - 1);
+
+    /**
+     * Contributions of the source pixels to each output pixel along one axis:
+     * output i reads {@code count[i]} source pixels starting at {@code start[i]}, with weights
+     * {@code weights[i * stride + k]} (fixed point, summing to 1 &lt;&lt; W_BITS).
+     */
+    private record Table(int[] start, int[] count, int[] weights, int stride) {}
+
+    private static Table table(int inSize, int outSize, Filter filter) {
+        double scale = (double) inSize / outSize;
+        double fscale = Math.max(1.0, scale);
+        double support = filter.support * fscale;
+        int stride = (int) Math.ceil(support) * 2 + 1;
+
+        int[] start = new int[outSize];
+        int[] count = new int[outSize];
+        int[] weights = new int[outSize * stride];
+        double[] w = new double[stride];
+
+        for (int i = 0; i < outSize; i++) {
+            double center = (i + 0.5) * scale;
+            int x0 = Math.max(0, (int) Math.floor(center - support));
+            int x1 = Math.min(inSize, (int) Math.ceil(center + support));
+            int n = Math.min(stride, x1 - x0);
+
+            double sum = 0;
+            for (int k = 0; k < n; k++) {
+                w[k] = filter.weight((x0 + k + 0.5 - center) / fscale);
+                sum += w[k];
+            }
+            if (sum == 0) {
+                // Filtre trop étroit pour tomber sur un centre de pixel : plus proche voisin
+                n = 1;
+                x0 = Math.min(inSize - 1, Math.max(0, (int) center));
+                w[0] = 1;
+                sum = 1;
+            }
+
+            // Normalisation en entiers ; l'erreur d'arrondi va sur le poids le plus fort
+            int total = 0;
+            int best = 0;
+            for (int k = 0; k < n; k++) {
+                int q = (int) Math.round(w[k] / sum * (1 << W_BITS));
+                weights[i * stride + k] = q;
+                total += q;
+                if (q > weights[i * stride + best]) best = k;
+            }
+            weights[i * stride + best] += (1 << W_BITS) - total;
+            start[i] = x0;
+            count[i] = n;
+        }
+        return new Table(start, count, weights, stride);
+    }
+
+    /**
+     * Resizes {@code src} to exactly {@code targetW x targetH} with {@code filter}.
+     * Images with alpha are filtered premultiplied (no dark fringes around transparent areas).
+     *
+     * @param halving when true, large reductions first halve the image with 2x2 box averages (cheap) while it stays
+     *                at least twice the target, then finish with {@code filter}; slightly softer, much faster
+     */
+    public static BufferedImage resize(BufferedImage src, int targetW, int targetH, Filter filter, boolean halving) {
+        targetW = Math.max(1, targetW);
+        targetH = Math.max(1, targetH);
+        boolean alpha = src.getColorModel().hasAlpha();
+
+        int w = src.getWidth();
+        int h = src.getHeight();
+        int[] px = Pixels.toArgb(src);
+        if (alpha) {
+            Pixels.premultiply(px);
+        }
+
+        if (halving) {
+            while (w / 2 >= targetW * 2 && h / 2 >= targetH * 2) {
+                px = halve(px, w, h);
+                w /= 2;
+                h /= 2;
+            }
+        }
+
+        int[] out = resample(px, w, h, targetW, targetH, filter);
+        if (alpha) {
+            Pixels.unpremultiply(out);
+        }
+        return Pixels.wrap(out, targetW, targetH, alpha);
+    }
+
+    /** Separable resampling of a packed (premultiplied) ARGB array. */
+    static int[] resample(int[] px, int w, int h, int targetW, int targetH, Filter filter) {
+        if (w == targetW && h == targetH) {
+            return px;
+        }
+        Table tx = table(w, targetW, filter);
+        Table ty = table(h, targetH, filter);
+
+        // Ordre des passes : celui qui fait le moins de multiplications
+        long horizontalFirst = (long) h * targetW * avgTaps(tx) + (long) targetW * targetH * avgTaps(ty);
+        long verticalFirst = (long) targetH * w * avgTaps(ty) + (long) targetW * targetH * avgTaps(tx);
+        if (w == targetW) {
+            return vertical(px, w, h, targetH, ty);
+        }
+        if (h == targetH) {
+            return horizontal(px, w, h, targetW, tx);
+        }
+        if (horizontalFirst <= verticalFirst) {
+            return vertical(horizontal(px, w, h, targetW, tx), targetW, h, targetH, ty);
+        }
+        return horizontal(vertical(px, w, h, targetH, ty), w, targetH, targetW, tx);
+    }
+
+    private static long avgTaps(Table t) {
+        long sum = 0;
+        for (int c : t.count()) sum += c;
+        return Math.max(1, sum / Math.max(1, t.count().length));
+    }
+
+    private static int[] horizontal(int[] in, int w, int h, int outW, Table t) {
+        int[] out = new int[outW * h];
+        int[] start = t.start();
+        int[] count = t.count();
+        int[] weights = t.weights();
+        int stride = t.stride();
+        Parallel.forBands(h, 16, (y0, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                int row = y * w;
+                int o = y * outW;
+                for (int x = 0; x < outW; x++) {
+                    int a = W_ROUND, r = W_ROUND, g = W_ROUND, b = W_ROUND;
+                    int s = row + start[x];
+                    int wi = x * stride;
+                    for (int k = 0, n = count[x]; k < n; k++) {
+                        int p = in[s + k];
+                        int wk = weights[wi + k];
+                        a += (p >>> 24) * wk;
+                        r += ((p >> 16) & 0xFF) * wk;
+                        g += ((p >> 8) & 0xFF) * wk;
+                        b += (p & 0xFF) * wk;
+                    }
+                    out[o + x] = pack(a, r, g, b);
+                }
+            }
+        });
+        return out;
+    }
+
+    private static int[] vertical(int[] in, int w, int h, int outH, Table t) {
+        int[] out = new int[w * outH];
+        int[] start = t.start();
+        int[] count = t.count();
+        int[] weights = t.weights();
+        int stride = t.stride();
+        Parallel.forBands(outH, 4, (y0, y1) -> {
+            // Accumulateurs d'une ligne complète : les lignes sources sont lues séquentiellement
+            int[] acc = new int[w * 4];
+            for (int y = y0; y < y1; y++) {
+                Arrays.fill(acc, W_ROUND);
+                int wi = y * stride;
+                for (int k = 0, n = count[y]; k < n; k++) {
+                    int row = (start[y] + k) * w;
+                    int wk = weights[wi + k];
+                    for (int x = 0, j = 0; x < w; x++, j += 4) {
+                        int p = in[row + x];
+                        acc[j] += (p >>> 24) * wk;
+                        acc[j + 1] += ((p >> 16) & 0xFF) * wk;
+                        acc[j + 2] += ((p >> 8) & 0xFF) * wk;
+                        acc[j + 3] += (p & 0xFF) * wk;
+                    }
+                }
+                int o = y * w;
+                for (int x = 0, j = 0; x < w; x++, j += 4) {
+                    out[o + x] = pack(acc[j], acc[j + 1], acc[j + 2], acc[j + 3]);
+                }
+            }
+        });
+        return out;
+    }
+
+    // Retour en 8 bits ; les filtres à lobes négatifs dépassent, et en prémultiplié la couleur reste <= alpha
+    private static int pack(int a, int r, int g, int b) {
+        a = clamp(a >> W_BITS, 255);
+        r = clamp(r >> W_BITS, a);
+        g = clamp(g >> W_BITS, a);
+        b = clamp(b >> W_BITS, a);
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    private static int clamp(int v, int max) {
+        return v < 0 ? 0 : (v > max ? max : v);
+    }
+
+    /** 2x2 box average (the last row/column of odd sizes is dropped). */
+    private static int[] halve(int[] in, int w, int h) {
+        int ow = w / 2;
+        int oh = h / 2;
+        int[] out = new int[ow * oh];
+        Parallel.forBands(oh, 16, (y0, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                int r0 = 2 * y * w;
+                int r1 = r0 + w;
+                int o = y * ow;
+                for (int x = 0; x < ow; x++) {
+                    int p00 = in[r0 + 2 * x], p10 = in[r0 + 2 * x + 1];
+                    int p01 = in[r1 + 2 * x], p11 = in[r1 + 2 * x + 1];
+                    // Deux canaux à la fois (0x00FF00FF) : la somme de 4 valeurs tient sur 10 bits
+                    int rb = (p00 & 0x00FF00FF) + (p10 & 0x00FF00FF) + (p01 & 0x00FF00FF) + (p11 & 0x00FF00FF);
+                    int ag = ((p00 >>> 8) & 0x00FF00FF) + ((p10 >>> 8) & 0x00FF00FF)
+                            + ((p01 >>> 8) & 0x00FF00FF) + ((p11 >>> 8) & 0x00FF00FF);
+                    rb = ((rb + 0x00020002) >>> 2) & 0x00FF00FF;
+                    ag = ((ag + 0x00020002) >>> 2) & 0x00FF00FF;
+                    out[o + x] = (ag << 8) | rb;
+                }
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Multi-step downscale: halves the image with bilinear filtering until it is within 2x of the target,
+     * then does one last bilinear step. Much less aliasing than a single large bilinear/bicubic step,
+     * and each step only touches a quarter of the pixels of the previous one.
+     * Returns {@code src} itself when no reduction is needed.
+     */
+    public static BufferedImage progressiveDownscale(BufferedImage src, int targetW, int targetH) {
+        targetW = Math.max(1, targetW);
+        targetH = Math.max(1, targetH);
+        if (targetW >= src.getWidth() && targetH >= src.getHeight()) {
+            return src;
+        }
+
+        int type = src.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage cur = src;
+        int w = src.getWidth();
+        int h = src.getHeight();
+
+        do {
+            w = (w / 2 >= targetW) ? w / 2 : targetW;
+            h = (h / 2 >= targetH) ? h / 2 : targetH;
+            cur = scaleBilinear(cur, w, h, type);
+        } while (w != targetW || h != targetH);
+
+        return cur;
+    }
+
+    private static BufferedImage scaleBilinear(BufferedImage src, int w, int h, int type) {
+        BufferedImage out = new BufferedImage(w, h, type);
+        Graphics2D g = out.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.Src);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(src, 0, 0, w, h, null);
+        } finally {
+            g.dispose();
+        }
+        return out;
+    }
+}
@@ -0,0 +1,281 @@
+package ch.heigvd.util;
+
+import ch.heigvd.IOOptions;
+import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.Model.OptionSpec;
+import picocli.CommandLine.Model.PositionalParamSpec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed cache of command outputs, shared by all processes using the same directory.
+ *
+ * The key is a SHA-256 of the tool version, the cache format ({@link #FORMAT}), the subcommand name, its options (normalized: parsed values, files
+ * replaced by the hash of their bytes) and the output format. Entries are written to a temp file and atomically
+ * renamed, so a reader never sees a partial entry; eviction (least recently used, by mtime) runs under a file lock.
+ *
+ * Layout: {@code <dir>/ab/abcdef...} for entries, {@code <dir>/tmp/} for writes in progress, {@code <dir>/.lock}.
+ */
+public final class ResultCache {
+
+    private static final long STALE_TMP_MS = 60 * 60 * 1000L;
+
+    /**
+     * Part of every key: bump it whenever a command writes different bytes for the same arguments, so that a cache
+     * filled by an older build is not served after an upgrade (the picocli version string does not change with
+     * every such release).
+     * 2: exact rotations (rotate), PointOps grayscale/invert, mirror keeping alpha.
+     * 3: the output format in the key is the written one (--format), not the extension of -o.
+     * 4: rotate by multiples of 90 keeps alpha.
+     */
+    static final int FORMAT = 4;
+
+    // Un verrou de fichier appartient à la JVM : deux threads (watch) qui le prennent en même temps lèvent
+    // OverlappingFileLockException. Les évictions d'une même JVM passent donc d'abord par ce verrou.
+    private static final Object EVICT_LOCK = new Object();
+
+    private final Path dir;
+    private final long maxBytes;
+    private final boolean link;
+
+    public ResultCache(File dir, long maxBytes, boolean link) {
+        this.dir = dir.toPath();
+        this.maxBytes = maxBytes;
+        this.link = link;
+    }
+
+    // ---- Clé ----
+
+    /**
+     * Cache key of a parsed subcommand. Inherited options ({@code -i}, {@code -o}, cache options) are not part of
+     * the options: the input is hashed by content and only the format of the output (and its palette size) counts.
+     */
+    public static String key(String version, CommandSpec command, IOOptions io) throws IOException {
+        File input = io.inputFile;
+        File output = io.outputFile;
+        MessageDigest md = sha256();
+        field(md, "imagetoolbox " + version);
+        field(md, "cache-format " + FORMAT);
+        field(md, command.qualifiedName(" "));
+        field(md, "input=" + (input != null ? hashFile(input) : ""));
+        field(md, "format=" + (output != null ? Images.outputFormat(output, io) : ""));
+        if (io.colors > 0) {
+            field(md, "colors=" + io.colors + "/" + io.dither);
+        }
+
+        List<OptionSpec> options = new ArrayList<>();
+        for (OptionSpec o : command.options()) {
+            if (!o.inherited() && !o.usageHelp() && !o.versionHelp()) {
+                options.add(o);
+            }
+        }
+        options.sort(Comparator.comparing(OptionSpec::longestName));
+        for (OptionSpec o : options) {
+            field(md, o.longestName() + "=" + normalize(o.getValue()));
+        }
+        for (PositionalParamSpec p : command.positionalParameters()) {
+            field(md, "@" + p.index() + "=" + normalize(p.getValue()));
+        }
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    private static String normalize(Object value) throws IOException {
+        if (value == null) {
+            return "";
+        }
+        if (value instanceof File f) {
+            return "sha256:" + hashFile(f);
+        }
+        if (value instanceof Collection<?> c) {
+            StringBuilder sb = new StringBuilder("[");
+            for (Object v : c) {
+                sb.append(normalize(v)).append(',');
+            }
+            return sb.append(']').toString();
+        }
+        return value.toString();
+    }
+
+    private static void field(MessageDigest md, String s) {
+        md.update(s.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) '\n');
+    }
+
+    /** SHA-256 of the file content, read sequentially in 1 MiB chunks. */
+    public static String hashFile(File f) throws IOException {
+        MessageDigest md = sha256();
+        ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            while (ch.read(buf) >= 0) {
+                buf.flip();
+                md.update(buf);
+                buf.clear();
+            }
+        } catch (NoSuchFileException e) {
+            throw new IllegalArgumentException("Input file not found: " + f);
+        }
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ---- Lecture / écriture ----
+
+    private Path entry(String key) {
+        return dir.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    /**
+     * Copies (or hard-links) the cached result to {@code output}. Returns false on a miss, including when the
+     * entry is evicted by another process while we look at it.
+     */
+    public boolean fetch(String key, Path output) throws IOException {
+        Path e = entry(key);
+        if (!Files.isRegularFile(e)) {
+            return false;
+        }
+        try {
+            // LRU : un hit rafraîchit la date de l'entrée
+            Files.setLastModifiedTime(e, FileTime.fromMillis(System.currentTimeMillis()));
+            if (link && tryLink(e, output)) {
+                return true;
+            }
+            detach(output);
+            Path tmp = Files.createTempFile(output.toAbsolutePath().getParent(), ".cache-", ".tmp");
+            try {
+                Files.copy(e, tmp, StandardCopyOption.REPLACE_EXISTING);
+                tmp.toFile().setWritable(true);
+                Files.move(tmp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            return true;
+        } catch (NoSuchFileException evicted) {
+            return false;
+        }
+    }
+
+    private static boolean tryLink(Path entry, Path output) throws IOException {
+        Files.deleteIfExists(output);
+        try {
+            Files.createLink(output, entry);
+            return true;
+        } catch (UnsupportedOperationException | IOException e) {
+            // Autre système de fichiers, liens interdits... : on copie
+            return false;
+        }
+    }
+
+    /**
+     * Removes {@code output} when it is a hard link to a cache entry (more than one link), so that the command
+     * about to rewrite it in place cannot alter the cached copy.
+     */
+    public static void detach(Path output) throws IOException {
+        try {
+            Object n = Files.getAttribute(output, "unix:nlink");
+            if (n instanceof Integer links && links > 1) {
+                Files.delete(output);
+            }
+        } catch (NoSuchFileException | UnsupportedOperationException | IllegalArgumentException ignored) {
+            // pas de sortie existante, ou pas de compteur de liens sur ce système
+        }
+    }
+
+    /** Stores {@code output} under {@code key} (temp file + atomic rename), then evicts down to the size limit. */
+    public void store(String key, Path output) throws IOException {
+        Path e = entry(key);
+        Path tmpDir = dir.resolve("tmp");
+        Files.createDirectories(e.getParent());
+        Files.createDirectories(tmpDir);
+
+        Path tmp = Files.createTempFile(tmpDir, key.substring(0, 8) + "-", ".tmp");
+        try {
+            Files.copy(output, tmp, StandardCopyOption.REPLACE_EXISTING);
+            tmp.toFile().setReadOnly();
+            Files.move(tmp, e, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        evict();
+    }
+
+    /**
+     * Deletes least recently used entries until the cache fits in {@code maxBytes}. Serialized across processes
+     * and across the threads of this JVM.
+     */
+    public void evict() throws IOException {
+        Files.createDirectories(dir);
+        synchronized (EVICT_LOCK) {
+            try (FileChannel lockFile = FileChannel.open(dir.resolve(".lock"),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = lockFile.lock();
+                try {
+                    evictLocked();
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    private void evictLocked() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(dir, 2)) {
+            files.filter(Files::isRegularFile).forEach(entries::add);
+        }
+
+        long now = System.currentTimeMillis();
+        long total = 0;
+        List<Entry> live = new ArrayList<>();
+        for (Path p : entries) {
+            try {
+                Path parent = p.getParent();
+                long mtime = Files.getLastModifiedTime(p).toMillis();
+                if (parent.equals(dir.resolve("tmp"))) {
+                    // écriture abandonnée par un processus tué
+                    if (now - mtime > STALE_TMP_MS) Files.deleteIfExists(p);
+                } else if (!parent.equals(dir)) {
+                    long size = Files.size(p);
+                    total += size;
+                    live.add(new Entry(p, size, mtime));
+                }
+            } catch (NoSuchFileException gone) {
+                // tmp renommé ou supprimé entre-temps par un autre processus
+            }
+        }
+
+        live.sort(Comparator.comparingLong(Entry::lastUsed));
+        for (Entry e : live) {
+            if (total <= maxBytes) break;
+            Files.deleteIfExists(e.path());
+            total -= e.size();
+        }
+    }
+
+    private record Entry(Path path, long size, long lastUsed) {}
+}
@@ -0,0 +1,321 @@
+package ch.heigvd.util;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Deep-zoom tile pyramid (DZI or XYZ layout) built in one streaming pass over the source.
+ *
+ * The source is decoded in horizontal strips and pushed row by row into the full-resolution level. Each level keeps
+ * only the rows of its current tile row (plus overlap) in a ring of row buffers, cuts tiles as soon as they are
+ * complete, and feeds every pair of rows, averaged 2x2, to the next level. Memory is therefore bounded by one strip
+ * plus about one tile row per level, whatever the image size. Tiles are encoded by a bounded writer pool; when it is
+ * full the producer encodes the tile itself, which throttles decoding instead of queueing pixels.
+ */
+public final class TilePyramid {
+
+    public enum Layout {
+        /** Deep Zoom: {@code name.dzi} + {@code name_files/<level>/<col>_<row>.<ext>}, levels down to 1x1. */
+        DZI,
+        /** {@code <dir>/<z>/<x>/<y>.<ext>}, zoom 0 being the level that fits in a single tile. */
+        XYZ;
+
+        public static Layout parse(String spec) {
+            String s = (spec == null) ? "dzi" : spec.trim().toLowerCase();
+            switch (s) {
+                case "dzi":
+                    return DZI;
+                case "xyz":
+                    return XYZ;
+                default:
+                    throw new IllegalArgumentException("Invalid --layout: '" + spec + "'. Use dzi|xyz.");
+            }
+        }
+    }
+
+    /** What was written. */
+    public record Result(int levels, long tiles, int width, int height) {}
+
+    private final Layout layout;
+    private final int tileSize;
+    private final int overlap;
+    private final String format;
+    private final int stripBytes;
+
+    private final AtomicInteger written = new AtomicInteger();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * @param stripBytes approximate size of one decoded strip of the source (at least one tile row is read)
+     */
+    public TilePyramid(Layout layout, int tileSize, int overlap, String format, int stripBytes) {
+        if (tileSize < 16) {
+            throw new IllegalArgumentException("Tile size must be at least 16 (got " + tileSize + ").");
+        }
+        if (overlap < 0 || overlap > tileSize / 2) {
+            throw new IllegalArgumentException("Overlap must be between 0 and " + tileSize / 2 + " (got " + overlap + ").");
+        }
+        this.layout = layout;
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+        this.format = format.toLowerCase();
+        this.stripBytes = stripBytes;
+    }
+
+    /**
+     * Builds the pyramid of {@code input}.
+     *
+     * @param output DZI: the descriptor file ({@code name.dzi}), tiles go to {@code name_files/} next to it;
+     *               XYZ: the root directory
+     */
+    public Result build(File input, File output) throws Exception {
+        try (Images.RegionReader reader = new Images.RegionReader(input)) {
+            int w = reader.width();
+            int h = reader.height();
+            boolean alpha = Images.probe(input).hasAlpha();
+            // Le JPEG n'a pas d'alpha : on aplatit sur du blanc
+            boolean keepAlpha = alpha && !format.equals("jpg") && !format.equals("jpeg");
+
+            int top = ceilLog2(Math.max(w, h));
+            int bottom = 0;
+            File root;
+            if (layout == Layout.DZI) {
+                root = new File(output.getAbsoluteFile().getParentFile(), baseName(output) + "_files");
+            } else {
+                // Niveau le plus bas : celui qui tient dans une seule tuile
+                bottom = top - ceilLog2((Math.max(w, h) + tileSize - 1) / tileSize);
+                root = output.getAbsoluteFile();
+            }
+
+            // Un niveau par facteur 2, du plus détaillé au plus petit
+            Level next = null;
+            Level first = null;
+            for (int l = bottom; l <= top; l++) {
+                int shift = top - l;
+                int lw = (int) (((long) w + (1L << shift) - 1) >> shift);
+                int lh = (int) (((long) h + (1L << shift) - 1) >> shift);
+                Level level = new Level(layout == Layout.DZI ? l : l - bottom, lw, lh, next, root, alpha, keepAlpha);
+                next = level;
+                first = level;
+            }
+
+            AtomicInteger threadIds = new AtomicInteger();
+            int threads = Runtime.getRuntime().availableProcessors();
+            ThreadPoolExecutor writers = new ThreadPoolExecutor(
+                    threads, threads, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(2 * threads),
+                    r -> {
+                        Thread t = new Thread(r, "Pyramid-Writer-" + threadIds.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    },
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            try {
+                int stripRows = (int) Math.max(tileSize, Math.min(h, stripBytes / (4L * w)));
+                int[] row = new int[w];
+                for (int y0 = 0; y0 < h && failure.get() == null; y0 += stripRows) {
+                    int sh = Math.min(stripRows, h - y0);
+                    BufferedImage strip = reader.read(new Rectangle(0, y0, w, sh));
+                    Pixels.RowReader rr = new Pixels.RowReader(strip);
+                    for (int y = 0; y < sh; y++) {
+                        System.arraycopy(rr.row(y), rr.offset(y), row, 0, w);
+                        if (alpha) {
+                            for (int x = 0; x < w; x++) row[x] = Pixels.premultiply(row[x]);
+                        }
+                        first.push(row, writers);
+                    }
+                }
+                first.finish(writers);
+            } finally {
+                writers.shutdown();
+                writers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            }
+
+            Throwable t = failure.get();
+            if (t != null) {
+                throw (t instanceof Exception e) ? e : new RuntimeException(t);
+            }
+            if (layout == Layout.DZI) {
+                writeDescriptor(output, w, h);
+            }
+            return new Result(top - bottom + 1, written.get(), w, h);
+        }
+    }
+
+    /** One resolution level: a ring of rows covering the tile row being filled. */
+    private final class Level {
+        private final int index;     // niveau dans le nom des dossiers
+        private final int width;
+        private final int height;
+        private final Level next;    // niveau deux fois plus petit, ou null
+        private final File dir;
+        private final boolean alpha;
+        private final boolean keepAlpha;
+
+        private final int[][] ring;
+        private int received;        // lignes reçues
+        private int tileRow;         // prochaine rangée de tuiles à découper
+        private final int tileRows;
+        private final int tileCols;
+
+        private int[] pendingRow;    // première ligne d'une paire en attente de réduction
+        private final int[] reduced;
+
+        Level(int index, int width, int height, Level next, File root, boolean alpha, boolean keepAlpha) {
+            this.index = index;
+            this.width = width;
+            this.height = height;
+            this.next = next;
+            this.dir = new File(root, Integer.toString(index));
+            this.alpha = alpha;
+            this.keepAlpha = keepAlpha;
+            this.ring = new int[Math.min(height, tileSize + 2 * overlap + 1)][width];
+            this.tileRows = (height + tileSize - 1) / tileSize;
+            this.tileCols = (width + tileSize - 1) / tileSize;
+            this.reduced = (next != null) ? new int[next.width] : null;
+        }
+
+        void push(int[] row, ThreadPoolExecutor writers) {
+            int[] slot = ring[received % ring.length];
+            System.arraycopy(row, 0, slot, 0, width);
+            received++;
+
+            if (next != null) {
+                if (pendingRow == null) {
+                    pendingRow = slot;
+                } else {
+                    reduce(pendingRow, slot);
+                    pendingRow = null;
+                    next.push(reduced, writers);
+                }
+            }
+            cutReadyTiles(writers);
+        }
+
+        void finish(ThreadPoolExecutor writers) {
+            if (next != null) {
+                if (pendingRow != null) {
+                    // Hauteur impaire : la dernière ligne est moyennée avec elle-même
+                    reduce(pendingRow, pendingRow);
+                    pendingRow = null;
+                    next.push(reduced, writers);
+                }
+                next.finish(writers);
+            }
+            cutReadyTiles(writers);
+        }
+
+        // 2x2 -> 1 ; largeur impaire : la dernière colonne est moyennée avec elle-même
+        private void reduce(int[] r0, int[] r1) {
+            int ow = next.width;
+            for (int x = 0; x < ow; x++) {
+                int x0 = 2 * x;
+                int x1 = Math.min(x0 + 1, width - 1);
+                int p00 = r0[x0], p10 = r0[x1], p01 = r1[x0], p11 = r1[x1];
+                // Deux canaux à la fois (0x00FF00FF) : la somme de 4 valeurs tient sur 10 bits
+                int rb = (p00 & 0x00FF00FF) + (p10 & 0x00FF00FF) + (p01 & 0x00FF00FF) + (p11 & 0x00FF00FF);
+                int ag = ((p00 >>> 8) & 0x00FF00FF) + ((p10 >>> 8) & 0x00FF00FF)
+                        + ((p01 >>> 8) & 0x00FF00FF) + ((p11 >>> 8) & 0x00FF00FF);
+                rb = ((rb + 0x00020002) >>> 2) & 0x00FF00FF;
+                ag = ((ag + 0x00020002) >>> 2) & 0x00FF00FF;
+                reduced[x] = (ag << 8) | rb;
+            }
+        }
+
+        private void cutReadyTiles(ThreadPoolExecutor writers) {
+            while (tileRow < tileRows && failure.get() == null) {
+                int y0 = Math.max(0, tileRow * tileSize - overlap);
+                int y1 = Math.min(height, (tileRow + 1) * tileSize + overlap);
+                if (received < y1) return;
+
+                if (tileRow == 0) {
+                    mkdirs(dir);
+                    if (layout == Layout.XYZ) {
+                        for (int col = 0; col < tileCols; col++) mkdirs(new File(dir, Integer.toString(col)));
+                    }
+                }
+                for (int col = 0; col < tileCols; col++) {
+                    int x0 = Math.max(0, col * tileSize - overlap);
+                    int x1 = Math.min(width, (col + 1) * tileSize + overlap);
+                    int tw = x1 - x0;
+                    int th = y1 - y0;
+                    int[] px = new int[tw * th];
+                    for (int y = y0; y < y1; y++) {
+                        System.arraycopy(ring[y % ring.length], x0, px, (y - y0) * tw, tw);
+                    }
+                    File file = tileFile(col, tileRow);
+                    writers.execute(() -> writeTile(px, tw, th, file));
+                }
+                tileRow++;
+            }
+        }
+
+        private File tileFile(int col, int row) {
+            if (layout == Layout.DZI) {
+                return new File(dir, col + "_" + row + "." + format);
+            }
+            return new File(new File(dir, Integer.toString(col)), row + "." + format);
+        }
+
+        private void writeTile(int[] px, int tw, int th, File file) {
+            if (failure.get() != null) return;
+            try {
+                if (alpha) {
+                    if (keepAlpha) {
+                        Pixels.unpremultiply(px);
+                    } else {
+                        // Prémultiplié sur fond blanc : c + (255 - a)
+                        for (int i = 0; i < px.length; i++) {
+                            int p = px[i];
+                            int bg = 255 - (p >>> 24);
+                            int r = ((p >> 16) & 0xFF) + bg;
+                            int g = ((p >> 8) & 0xFF) + bg;
+                            int b = (p & 0xFF) + bg;
+                            px[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+                        }
+                    }
+                }
+                // Le format de la pyramide (celui du descripteur), pas le --format global
+                Images.writeImage(Pixels.wrap(px, tw, th, keepAlpha), file, format, null);
+                written.incrementAndGet();
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        }
+    }
+
+    private void writeDescriptor(File output, int w, int h) throws IOException {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" Format=\"" + format + "\" Overlap=\""
+                + overlap + "\" TileSize=\"" + tileSize + "\">\n"
+                + "  <Size Width=\"" + w + "\" Height=\"" + h + "\"/>\n"
+                + "</Image>\n";
+        Files.writeString(output.toPath(), xml, StandardCharsets.UTF_8);
+    }
+
+    private static void mkdirs(File dir) {
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IllegalStateException("Cannot create directory: " + dir);
+        }
+    }
+
+    private static String baseName(File f) {
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0) ? name.substring(0, dot) : name;
+    }
+
+    // Plus petit n tel que 2^n >= v
+    private static int ceilLog2(int v) {
+        return (v <= 1) ? 0 : 32 - Integer.numberOfLeadingZeros(v - 1);
+    }
+}
@@ -0,0 +1,120 @@
+package ch.heigvd.util;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds the tight bounding box of the content of an image, i.e. what is not transparent padding
+ * (images with alpha) or not the uniform background color of the top-left corner (opaque images).
+ *
+ * The scan is row-parallel and exits early from each edge: the top/bottom passes stop at the first row with
+ * content, and the left/right passes only look at the columns outside the box found so far.
+ */
+public final class Trim {
+
+    private Trim() {}
+
+    /**
+     * Returns a zero-copy {@code getSubimage} view of the content, or {@code src} itself when there is nothing to
+     * trim (or when the image is entirely background).
+     *
+     * @param tolerance maximum alpha (images with alpha) or per-channel distance to the corner color (opaque images)
+     *                  still considered as background
+     */
+    public static BufferedImage trim(BufferedImage src, int tolerance) {
+        Rectangle box = contentBounds(src, tolerance);
+        if (box == null || (box.width == src.getWidth() && box.height == src.getHeight())) {
+            return src;
+        }
+        return src.getSubimage(box.x, box.y, box.width, box.height);
+    }
+
+    /** Bounding box of the content, or null when the image is entirely background. */
+    public static Rectangle contentBounds(BufferedImage src, int tolerance) {
+        int w = src.getWidth();
+        int h = src.getHeight();
+        boolean alpha = src.getColorModel().hasAlpha();
+        int bg = src.getRGB(0, 0);
+        Background isBg = alpha
+                ? (argb -> (argb >>> 24) <= tolerance)
+                : (argb -> closeTo(argb, bg, tolerance));
+
+        // --- Bord haut / bas : première ligne non vide depuis chaque bord ---
+        AtomicInteger top = new AtomicInteger(h);
+        Parallel.forBands(h, 16, (y0, y1) -> {
+            Pixels.RowReader rr = new Pixels.RowReader(src);
+            for (int y = y0; y < y1 && y < top.get(); y++) {
+                if (!rowIsBackground(rr, y, w, isBg)) {
+                    top.accumulateAndGet(y, Math::min);
+                    return;
+                }
+            }
+        });
+        if (top.get() == h) {
+            return null;
+        }
+
+        int t = top.get();
+        AtomicInteger bottom = new AtomicInteger(t);
+        Parallel.forBands(h - t, 16, (b0, b1) -> {
+            Pixels.RowReader rr = new Pixels.RowReader(src);
+            // Chaque bande est parcourue depuis son bas
+            for (int y = h - 1 - b0; y > h - 1 - b1 && y > bottom.get(); y--) {
+                if (!rowIsBackground(rr, y, w, isBg)) {
+                    bottom.accumulateAndGet(y, Math::max);
+                    return;
+                }
+            }
+        });
+        int b = bottom.get();
+
+        // --- Bords gauche / droit : par ligne, seulement en dehors de la boîte déjà trouvée ---
+        AtomicInteger left = new AtomicInteger(w);
+        AtomicInteger right = new AtomicInteger(-1);
+        Parallel.forBands(b - t + 1, 16, (r0, r1) -> {
+            Pixels.RowReader rr = new Pixels.RowReader(src);
+            for (int y = t + r0; y < t + r1; y++) {
+                int[] row = rr.row(y);
+                int off = rr.offset(y);
+
+                int l = left.get();
+                for (int x = 0; x < l; x++) {
+                    if (!isBg.test(row[off + x])) {
+                        left.accumulateAndGet(x, Math::min);
+                        break;
+                    }
+                }
+                int r = right.get();
+                for (int x = w - 1; x > r; x--) {
+                    if (!isBg.test(row[off + x])) {
+                        right.accumulateAndGet(x, Math::max);
+                        break;
+                    }
+                }
+            }
+        });
+
+        return new Rectangle(left.get(), t, right.get() - left.get() + 1, b - t + 1);
+    }
+
+    @FunctionalInterface
+    private interface Background {
+        boolean test(int argb);
+    }
+
+    private static boolean rowIsBackground(Pixels.RowReader rr, int y, int w, Background isBg) {
+        int[] row = rr.row(y);
+        int off = rr.offset(y);
+        for (int x = 0; x < w; x++) {
+            if (!isBg.test(row[off + x])) return false;
+        }
+        return true;
+    }
+
+    private static boolean closeTo(int argb, int ref, int tol) {
+        return Math.abs(((argb >> 16) & 0xFF) - ((ref >> 16) & 0xFF)) <= tol
+                && Math.abs(((argb >> 8) & 0xFF) - ((ref >> 8) & 0xFF)) <= tol
+                && Math.abs((argb & 0xFF) - (ref & 0xFF)) <= tol;
+    }
+}
@@ -0,0 +1,324 @@
+package ch.heigvd.util;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work queue shared by several processes (possibly on several machines) through a directory, with no other
+ * service: only atomic file operations that also hold on NFS (hard-link creation, rename).
+ *
+ * The manifest is split in fixed chunks. A worker claims a chunk by creating its lease file, keeps it alive with a
+ * heartbeat, journals every finished entry and marks the chunk done. A lease whose heartbeat stopped (crashed worker)
+ * expires and is taken over by another worker, which skips the entries already journaled; a restarted job skips the
+ * chunks already done.
+ *
+ * Layout: {@code job} (manifest hash, chunk size, command), {@code leases/<chunk>}, {@code journal/<chunk>},
+ * {@code done/<chunk>}, {@code tmp/}.
+ */
+public final class WorkQueue implements AutoCloseable {
+
+    private final Path dir;
+    private final List<String> entries;
+    private final int chunkSize;
+    private final long ttlMs;
+    private final String owner;
+    private final ScheduledExecutorService heartbeat;
+
+    /**
+     * Opens (or creates) the queue of {@code entries} in {@code dir}. All the workers of a job must give the same
+     * entries, chunk size and {@code job} description; another job in the same directory is refused.
+     */
+    public WorkQueue(Path dir, List<String> entries, int chunkSize, String job, long ttlMs) throws IOException {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize + " (expected > 0).");
+        }
+        this.dir = dir;
+        this.entries = List.copyOf(entries);
+        this.chunkSize = chunkSize;
+        this.ttlMs = ttlMs;
+        this.owner = ownerId();
+        for (String sub : new String[]{"leases", "journal", "done", "tmp"}) {
+            Files.createDirectories(dir.resolve(sub));
+        }
+
+        StringBuilder desc = new StringBuilder();
+        desc.append("entries=").append(entries.size()).append('\n');
+        desc.append("manifest=").append(sha256(String.join("\n", entries))).append('\n');
+        desc.append("chunk=").append(chunkSize).append('\n');
+        desc.append("job=").append(job).append('\n');
+        Path jobFile = dir.resolve("job");
+        if (!createWith(jobFile, desc.toString())) {
+            String existing = Files.readString(jobFile, StandardCharsets.UTF_8);
+            if (!existing.equals(desc.toString())) {
+                throw new IllegalArgumentException("Queue " + dir + " belongs to another job (manifest, chunk size or command differ).");
+            }
+        }
+
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lease-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** This worker's id: host, pid and a random suffix (a pid can be reused after a restart). */
+    public String owner() {
+        return owner;
+    }
+
+    public int chunks() {
+        return (entries.size() + chunkSize - 1) / chunkSize;
+    }
+
+    /** Entries of chunk {@code c}: indexes [first, first + size) of the manifest. */
+    public List<String> chunk(int c) {
+        int from = c * chunkSize;
+        return entries.subList(from, Math.min(entries.size(), from + chunkSize));
+    }
+
+    public int firstIndex(int c) {
+        return c * chunkSize;
+    }
+
+    public boolean isDone(int c) {
+        return Files.exists(dir.resolve("done").resolve(name(c)));
+    }
+
+    public int doneCount() {
+        int n = 0;
+        for (int c = 0; c < chunks(); c++) {
+            if (isDone(c)) n++;
+        }
+        return n;
+    }
+
+    // ---- Baux ----
+
+    /**
+     * Claims chunk {@code c}: a free chunk, or one whose lease expired (its worker stopped renewing it).
+     * Returns null when the chunk is done or held by a live worker.
+     */
+    public Lease claim(int c) throws IOException {
+        if (isDone(c)) return null;
+        Path lease = dir.resolve("leases").resolve(name(c));
+        if (createWith(lease, leaseContent())) {
+            return start(c, lease);
+        }
+
+        // Bail existant : repris seulement s'il a expiré
+        String content;
+        try {
+            content = Files.readString(lease, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null; // libéré entre-temps : sera pris au prochain tour
+        }
+        if (!expired(content)) return null;
+
+        // Le renommage est atomique : un seul repreneur l'obtient
+        Path stale = dir.resolve("tmp").resolve(name(c) + ".stale-" + owner);
+        try {
+            Files.move(lease, stale, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try {
+            String moved = Files.readString(stale, StandardCharsets.UTF_8);
+            if (!expired(moved)) {
+                // Renouvelé juste avant le renommage : on le remet en place
+                createLink(lease, stale);
+                return null;
+            }
+            if (!createWith(lease, leaseContent())) {
+                return null;
+            }
+            System.err.println("[batch] Reclaimed chunk " + c + " from " + field(moved, "owner") + " (lease expired).");
+            return start(c, lease);
+        } finally {
+            Files.deleteIfExists(stale);
+        }
+    }
+
+    private Lease start(int c, Path lease) {
+        Lease l = new Lease(c, lease);
+        long period = Math.max(100, ttlMs / 3);
+        l.task = heartbeat.scheduleAtFixedRate(l::renew, period, period, TimeUnit.MILLISECONDS);
+        return l;
+    }
+
+    /** A claimed chunk, renewed in the background until closed. */
+    public final class Lease implements AutoCloseable {
+        private final int chunk;
+        private final Path file;
+        private volatile boolean lost;
+        private ScheduledFuture<?> task;
+
+        private Lease(int chunk, Path file) {
+            this.chunk = chunk;
+            this.file = file;
+        }
+
+        public int chunk() {
+            return chunk;
+        }
+
+        /** True once another worker took the chunk over (this worker was too slow to renew): stop working on it. */
+        public boolean lost() {
+            return lost;
+        }
+
+        private void renew() {
+            try {
+                if (!owner.equals(field(Files.readString(file, StandardCharsets.UTF_8), "owner"))) {
+                    lost = true;
+                    task.cancel(false);
+                    return;
+                }
+                Path tmp = Files.createTempFile(dir.resolve("tmp"), name(chunk) + "-", ".lease");
+                Files.writeString(tmp, leaseContent(), StandardCharsets.UTF_8);
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException e) {
+                lost = true;
+                task.cancel(false);
+            } catch (IOException e) {
+                // Erreur passagère (NFS) : le prochain battement réessaie avant l'expiration
+                System.err.println("[batch] Lease renewal failed for chunk " + chunk + ": " + e.getMessage());
+            }
+        }
+
+        /** Entry indexes of this chunk already journaled (by this worker or by a previous owner). */
+        public Set<Integer> finished() throws IOException {
+            Set<Integer> done = new HashSet<>();
+            Path journal = dir.resolve("journal").resolve(name(chunk));
+            if (Files.exists(journal)) {
+                for (String line : Files.readAllLines(journal, StandardCharsets.UTF_8)) {
+                    String[] p = line.split(" ", 3);
+                    // Ligne tronquée par un arrêt brutal : ignorée, l'entrée sera refaite
+                    if (p.length >= 2 && !line.isBlank()) {
+                        try {
+                            done.add(Integer.parseInt(p[0]));
+                        } catch (NumberFormatException ignored) {
+                            // idem
+                        }
+                    }
+                }
+            }
+            return done;
+        }
+
+        /** Journals entry {@code index} as finished ("ok" or "failed ..."); only the lease holder writes the journal. */
+        public void record(int index, String status) throws IOException {
+            Files.writeString(dir.resolve("journal").resolve(name(chunk)), index + " " + status + "\n",
+                    StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+
+        /** Marks the chunk done (with a short summary) and releases the lease. */
+        public void complete(String summary) throws IOException {
+            if (lost) return;
+            createWith(dir.resolve("done").resolve(name(chunk)), "owner=" + owner + "\n" + summary + "\n");
+        }
+
+        @Override
+        public void close() throws IOException {
+            task.cancel(false);
+            try {
+                if (!lost && owner.equals(field(Files.readString(file, StandardCharsets.UTF_8), "owner"))) {
+                    Files.deleteIfExists(file);
+                }
+            } catch (NoSuchFileException ignored) {
+                // déjà repris
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        heartbeat.shutdownNow();
+    }
+
+    // ---- Fichiers ----
+
+    /**
+     * Creates {@code target} with {@code content} only if it does not exist, atomically: the content is written to a
+     * temp file first, then hard-linked (link creation is exclusive, NFS included). False if it already existed.
+     */
+    private boolean createWith(Path target, String content) throws IOException {
+        Path tmp = Files.createTempFile(dir.resolve("tmp"), target.getFileName() + "-", ".new");
+        try {
+            Files.writeString(tmp, content, StandardCharsets.UTF_8);
+            return createLink(target, tmp);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static boolean createLink(Path target, Path existing) throws IOException {
+        try {
+            Files.createLink(target, existing);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    private String leaseContent() {
+        return "owner=" + owner + "\nexpires=" + (System.currentTimeMillis() + ttlMs) + "\n";
+    }
+
+    // Les horloges des machines doivent être à peu près synchronisées (NTP) : bien moins que la durée du bail
+    private static boolean expired(String lease) {
+        try {
+            return System.currentTimeMillis() > Long.parseLong(field(lease, "expires"));
+        } catch (NumberFormatException e) {
+            return true; // bail illisible (écriture interrompue)
+        }
+    }
+
+    private static String field(String content, String key) {
+        for (String line : content.split("\n")) {
+            if (line.startsWith(key + "=")) return line.substring(key.length() + 1).trim();
+        }
+        return "";
+    }
+
+    private static String sha256(String s) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(md.digest(s.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String name(int c) {
+        return String.format("%06d", c);
+    }
+
+    private static String ownerId() {
+        String host = System.getenv("HOSTNAME");
+        if (host == null || host.isBlank()) {
+            // "pid@host" pour la plupart des JVM
+            String runtime = ManagementFactory.getRuntimeMXBean().getName();
+            int at = runtime.indexOf('@');
+            host = (at >= 0) ? runtime.substring(at + 1) : "localhost";
+        }
+        return host + ":" + ProcessHandle.current().pid() + ":" + UUID.randomUUID().toString().substring(0, 8);
+    }
+}